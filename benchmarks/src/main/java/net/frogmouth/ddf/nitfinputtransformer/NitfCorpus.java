@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+/**
+ * The named synthetic files the benchmarks run against. Each has a fixed seed, so a name
+ * always means the same bytes and results can be compared across commits.
+ */
+final class NitfCorpus {
+
+    static final String BASELINE = "baseline";
+
+    static final String LARGE_PAYLOAD = "largePayload";
+
+    static final String MANY_SEGMENTS = "manySegments";
+
+    static final String MANY_TRES = "manyTres";
+
+    static final String DEEP_TRES = "deepTres";
+
+    private NitfCorpus() {
+    }
+
+    static SyntheticNitfGenerator generator(String name) {
+        SyntheticNitfGenerator generator = new SyntheticNitfGenerator().seed(20150101L);
+        if (BASELINE.equals(name)) {
+            // One small image with a couple of flat TREs
+            return generator.imageSize(256, 256).treCount(2).treGroupDepth(1).treGroupCount(4);
+        } else if (LARGE_PAYLOAD.equals(name)) {
+            // 16 MB of pixels that the header only parse must skip over
+            return generator.imageSize(4096, 4096).treCount(2).treGroupDepth(1);
+        } else if (MANY_SEGMENTS.equals(name)) {
+            return generator.imageSegments(16).graphicSegments(16).textSegments(16)
+                    .imageSize(64, 64).treCount(1).treGroupDepth(0);
+        } else if (MANY_TRES.equals(name)) {
+            return generator.imageSize(256, 256).treCount(200).treGroupDepth(1)
+                    .treGroupCount(8);
+        } else if (DEEP_TRES.equals(name)) {
+            // Kept under the 99999 byte limit on a subheader's TRE data
+            return generator.imageSize(256, 256).treCount(20).treGroupDepth(2)
+                    .treGroupCount(8);
+        }
+        throw new IllegalArgumentException("Unknown corpus " + name);
+    }
+}
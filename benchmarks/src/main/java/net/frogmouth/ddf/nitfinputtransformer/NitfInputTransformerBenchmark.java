@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.codice.imaging.nitf.core.NitfFileParser;
+import org.codice.imaging.nitf.core.common.NitfInputStreamReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ddf.catalog.data.Metacard;
+
+/**
+ * Times a whole transform, and each of the metadata, location and thumbnail steps on their own,
+ * against every file in {@link NitfCorpus}.
+ * <p>
+ * The step benchmarks run on headers parsed once during setup, so they measure only the step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-Djava.awt.headless=true"})
+public class NitfInputTransformerBenchmark {
+
+    @Param({NitfCorpus.BASELINE, NitfCorpus.LARGE_PAYLOAD, NitfCorpus.MANY_SEGMENTS,
+            NitfCorpus.MANY_TRES, NitfCorpus.DEEP_TRES})
+    public String corpus;
+
+    private byte[] nitf;
+
+    private Path file;
+
+    private NitfInputTransformer transformer;
+
+    private HeaderOnlyParseStrategy parsedNitf;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        nitf = NitfCorpus.generator(corpus).generate();
+        file = Files.createTempFile("nitf-benchmark-" + corpus, ".ntf");
+        Files.write(file, nitf);
+        transformer = new NitfInputTransformer();
+
+        parsedNitf = new HeaderOnlyParseStrategy(NitfDataSource.forBytes(nitf, nitf.length));
+        NitfFileParser.parse(new NitfInputStreamReader(new ByteArrayInputStream(nitf)),
+                parsedNitf);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        transformer.destroy();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Metacard transformStream() throws Exception {
+        return transformer.transform(new ByteArrayInputStream(nitf));
+    }
+
+    @Benchmark
+    public Metacard transformPath() throws Exception {
+        return transformer.transform(file, null);
+    }
+
+    @Benchmark
+    public String setMetadata() {
+        return transformer.buildMetadata(parsedNitf);
+    }
+
+    @Benchmark
+    public String setLocation() {
+        return transformer.buildLocation(parsedNitf);
+    }
+
+    @Benchmark
+    public byte[] getThumbnail() {
+        return transformer.getThumbnail(parsedNitf);
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads how many bytes the current thread has allocated, on JVMs that count them.
+ * <p>
+ * The count comes from {@code com.sun.management.ThreadMXBean}, which is looked up
+ * reflectively so the bundle doesn't import a JDK specific package.
+ */
+final class AllocationCounter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AllocationCounter.class);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final Method GET_THREAD_ALLOCATED_BYTES = findMethod();
+
+    private AllocationCounter() {
+    }
+
+    private static Method findMethod() {
+        try {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(THREADS)) {
+                return null;
+            }
+            boolean supported = (Boolean) type.getMethod("isThreadAllocatedMemorySupported")
+                    .invoke(THREADS);
+            boolean enabled = supported && (Boolean) type.getMethod(
+                    "isThreadAllocatedMemoryEnabled").invoke(THREADS);
+            return enabled ? type.getMethod("getThreadAllocatedBytes", long.class) : null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("Thread allocation counts are not available", e);
+            return null;
+        }
+    }
+
+    static boolean isSupported() {
+        return GET_THREAD_ALLOCATED_BYTES != null;
+    }
+
+    /**
+     * Returns the bytes the current thread has allocated so far, or -1 if they aren't counted.
+     */
+    static long currentThreadAllocatedBytes() {
+        if (GET_THREAD_ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        try {
+            return (Long) GET_THREAD_ALLOCATED_BYTES.invoke(THREADS,
+                    Thread.currentThread().getId());
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+}
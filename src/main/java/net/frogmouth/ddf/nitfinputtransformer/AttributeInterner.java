@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps each distinct attribute value to one shared instance, so the metacards of many files
+ * don't each hold their own copy of values such as classification systems, compression codes
+ * and image sources, which repeat from file to file.
+ * <p>
+ * The pool is bounded by entry count, and values longer than {@link #MAX_VALUE_LENGTH} are
+ * never pooled. An attribute that turns out to have many distinct values, such as a title or
+ * an identifier, stops adding values once it has pooled {@link #MAX_VALUES_PER_ATTRIBUTE}, so
+ * it can't crowd out the attributes that repeat. Values already pooled are still shared.
+ */
+class AttributeInterner {
+
+    static final int MAX_VALUE_LENGTH = 64;
+
+    static final int MAX_VALUES_PER_ATTRIBUTE = 256;
+
+    /**
+     * Rough heap cost of a short Latin-1 string besides its characters: the string, its array
+     * header and padding.
+     */
+    private static final int STRING_OVERHEAD = 48;
+
+    private final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+
+    private final ConcurrentMap<String, AtomicInteger> attributeValueCounts =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final AtomicInteger entryCount = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    private volatile int maxEntries;
+
+    AttributeInterner(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Sets the most values pooled. Lowering it, or turning the pool off with zero, empties it.
+     */
+    synchronized void setMaxEntries(int maxEntries) {
+        if (maxEntries < this.maxEntries) {
+            clear();
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the shared instance of {@code value}, pooling it if there is room.
+     *
+     * @param attribute the attribute the value is for, which is held to its own share of the
+     *                  pool
+     */
+    String intern(String attribute, String value) {
+        if (value == null || maxEntries <= 0 || value.length() > MAX_VALUE_LENGTH) {
+            return value;
+        }
+        String canonical = values.get(value);
+        if (canonical != null) {
+            if (canonical != value) {
+                hits.incrementAndGet();
+                savedBytes.addAndGet(STRING_OVERHEAD + value.length());
+            }
+            return canonical;
+        }
+        AtomicInteger attributeCount = attributeValueCounts.get(attribute);
+        if (attributeCount == null) {
+            AtomicInteger created = new AtomicInteger();
+            attributeCount = attributeValueCounts.putIfAbsent(attribute, created);
+            if (attributeCount == null) {
+                attributeCount = created;
+            }
+        }
+        if (attributeCount.get() >= MAX_VALUES_PER_ATTRIBUTE
+                || entryCount.get() >= maxEntries) {
+            return value;
+        }
+        canonical = values.putIfAbsent(value, value);
+        if (canonical == null) {
+            attributeCount.incrementAndGet();
+            entryCount.incrementAndGet();
+            return value;
+        }
+        hits.incrementAndGet();
+        savedBytes.addAndGet(STRING_OVERHEAD + value.length());
+        return canonical;
+    }
+
+    synchronized void clear() {
+        values.clear();
+        attributeValueCounts.clear();
+        entryCount.set(0);
+    }
+
+    int getEntryCount() {
+        return entryCount.get();
+    }
+
+    /**
+     * Returns how many values were replaced by a pooled instance.
+     */
+    long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns an estimate of the heap no longer held by the replaced values, assuming nothing
+     * else kept them.
+     */
+    long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    void resetCounts() {
+        hits.set(0);
+        savedBytes.set(0);
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.nio.file.Path;
+
+import ddf.catalog.data.Metacard;
+
+/**
+ * Receives the result of each file in a batch passed to
+ * {@link NitfInputTransformer#transform(java.util.Iterator, BatchTransformListener)}.
+ * <p>
+ * Results arrive in the order the files finish, on the transformer's batch threads. Calls are
+ * never made concurrently, so implementations need no locking of their own.
+ */
+public interface BatchTransformListener {
+
+    /**
+     * Called when {@code input} has been transformed into {@code metacard}.
+     */
+    void transformed(Path input, Metacard metacard);
+
+    /**
+     * Called when {@code input} could not be transformed. The rest of the batch carries on.
+     */
+    void failed(Path input, Exception cause);
+}
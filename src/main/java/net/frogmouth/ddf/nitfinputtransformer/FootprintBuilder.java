@@ -0,0 +1,366 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.codice.imaging.nitf.core.image.ImageCoordinatePair;
+import org.codice.imaging.nitf.core.image.ImageCoordinates;
+import org.codice.imaging.nitf.core.image.ImageCoordinatesRepresentation;
+import org.codice.imaging.nitf.core.image.NitfImageSegmentHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+
+/**
+ * Builds the WKT footprint of a file's image segments from their corner coordinates.
+ * <p>
+ * A single segment gives a {@code POLYGON} and several give a {@code MULTIPOLYGON} of one
+ * rectangle each, written straight from the coordinates in the same text JTS would produce.
+ * Files with many segments can instead be given a compact footprint with {@link Mode#UNION},
+ * which merges overlapping segments, or {@link Mode#HULL}, which takes their convex hull.
+ * Either is held to {@code maxVertices}: a union with more falls back to the hull, and a hull
+ * with more has edges cut off by extending their neighbours, which keeps every segment covered.
+ */
+class FootprintBuilder {
+
+    enum Mode {
+        SEGMENTS, UNION, HULL;
+
+        static Mode fromString(String mode) {
+            return valueOf(mode.trim().toUpperCase(Locale.US));
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FootprintBuilder.class);
+
+    /**
+     * Fraction digits JTS writes for a floating precision model.
+     */
+    private static final int MAX_FRACTION_DIGITS = 16;
+
+    private static final int MIN_VERTICES = 4;
+
+    private final Mode mode;
+
+    private final int maxVertices;
+
+    private final TransformMetrics metrics;
+
+    FootprintBuilder(Mode mode, int maxVertices, TransformMetrics metrics) {
+        this.mode = mode;
+        this.maxVertices = Math.max(MIN_VERTICES, maxVertices);
+        this.metrics = metrics;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    int getMaxVertices() {
+        return maxVertices;
+    }
+
+    /**
+     * Returns the footprint of {@code segments}, or null if there is none.
+     */
+    String build(List<NitfImageSegmentHeader> segments) {
+        if (segments.isEmpty()) {
+            return null;
+        }
+        if (segments.size() == 1) {
+            NitfImageSegmentHeader segment = segments.get(0);
+            if (segment == null || !isSupported(segment)) {
+                return null;
+            }
+            StringBuilder wkt = new StringBuilder(128).append("POLYGON (");
+            appendRing(wkt, segment.getImageCoordinates());
+            return wkt.append(')').toString();
+        }
+
+        List<ImageCoordinates> footprints = new ArrayList<ImageCoordinates>(segments.size());
+        for (NitfImageSegmentHeader segment : segments) {
+            if (isSupported(segment)) {
+                footprints.add(segment.getImageCoordinates());
+            }
+        }
+        if (footprints.size() > 1) {
+            if (mode == Mode.UNION) {
+                String union = buildUnion(footprints);
+                if (union != null) {
+                    return union;
+                }
+            }
+            if (mode != Mode.SEGMENTS) {
+                String hull = buildHull(footprints);
+                if (hull != null) {
+                    return hull;
+                }
+            }
+        }
+        if (footprints.isEmpty()) {
+            return "MULTIPOLYGON EMPTY";
+        }
+        StringBuilder wkt = new StringBuilder(16 + 128 * footprints.size())
+                .append("MULTIPOLYGON (");
+        for (int i = 0; i < footprints.size(); ++i) {
+            if (i > 0) {
+                wkt.append(", ");
+            }
+            appendRing(wkt.append('('), footprints.get(i));
+            wkt.append(')');
+        }
+        return wkt.append(')').toString();
+    }
+
+    private boolean isSupported(NitfImageSegmentHeader segment) {
+        // TODO: add more coordinate support
+        // TODO: handle case where its really a point.
+        ImageCoordinatesRepresentation representation =
+                segment.getImageCoordinatesRepresentation();
+        if (representation == ImageCoordinatesRepresentation.GEOGRAPHIC
+                || representation == ImageCoordinatesRepresentation.DECIMALDEGREES) {
+            return true;
+        }
+        if (representation != ImageCoordinatesRepresentation.NONE) {
+            LOGGER.debug("Unsupported representation: {}", representation);
+            metrics.recordUnsupportedRepresentation(representation);
+        }
+        return false;
+    }
+
+    private static void appendRing(StringBuilder wkt, ImageCoordinates coordinates) {
+        wkt.append('(');
+        appendCoordinate(wkt, coordinates.getCoordinate00());
+        wkt.append(", ");
+        appendCoordinate(wkt, coordinates.getCoordinate0MaxCol());
+        wkt.append(", ");
+        appendCoordinate(wkt, coordinates.getCoordinateMaxRowMaxCol());
+        wkt.append(", ");
+        appendCoordinate(wkt, coordinates.getCoordinateMaxRow0());
+        wkt.append(", ");
+        appendCoordinate(wkt, coordinates.getCoordinate00());
+        wkt.append(')');
+    }
+
+    private static void appendCoordinate(StringBuilder wkt, ImageCoordinatePair pair) {
+        appendNumber(wkt, pair.getLongitude());
+        wkt.append(' ');
+        appendNumber(wkt, pair.getLatitude());
+    }
+
+    /**
+     * Appends {@code value} as JTS writes it: plain notation, at most 16 fraction digits and no
+     * fraction at all for whole numbers.
+     */
+    static void appendNumber(StringBuilder wkt, double value) {
+        int start = wkt.length();
+        wkt.append(value);
+        int point = wkt.indexOf(".", start);
+        if (point >= 0 && wkt.indexOf("E", point) < 0
+                && wkt.length() - point - 1 <= MAX_FRACTION_DIGITS) {
+            if (wkt.length() == point + 2 && wkt.charAt(point + 1) == '0') {
+                wkt.setLength(point);
+            }
+            return;
+        }
+        // Exponents and long fractions are rare enough to go through the formatter JTS uses.
+        wkt.setLength(start);
+        char[] hashes = new char[MAX_FRACTION_DIGITS];
+        Arrays.fill(hashes, '#');
+        DecimalFormat format = new DecimalFormat("0." + new String(hashes),
+                new DecimalFormatSymbols(Locale.US));
+        wkt.append(format.format(value));
+    }
+
+    /**
+     * Returns the union of the footprints, or null if it has more than the vertex limit.
+     */
+    private String buildUnion(List<ImageCoordinates> footprints) {
+        GeometryFactory geometryFactory = new GeometryFactory(
+                new PrecisionModel(PrecisionModel.FLOATING), 4326);
+        List<Polygon> polygons = new ArrayList<Polygon>(footprints.size());
+        for (ImageCoordinates footprint : footprints) {
+            Coordinate[] ring = new Coordinate[5];
+            ring[0] = toCoordinate(footprint.getCoordinate00());
+            ring[1] = toCoordinate(footprint.getCoordinate0MaxCol());
+            ring[2] = toCoordinate(footprint.getCoordinateMaxRowMaxCol());
+            ring[3] = toCoordinate(footprint.getCoordinateMaxRow0());
+            ring[4] = new Coordinate(ring[0]);
+            polygons.add(geometryFactory.createPolygon(geometryFactory.createLinearRing(ring),
+                    null));
+        }
+        Geometry union = CascadedPolygonUnion.union(polygons);
+        if (union == null || union.getNumPoints() > maxVertices + union.getNumGeometries()) {
+            LOGGER.debug("Union of {} footprints is too large, using their hull",
+                    footprints.size());
+            return null;
+        }
+        return union.toText();
+    }
+
+    private static Coordinate toCoordinate(ImageCoordinatePair pair) {
+        return new Coordinate(pair.getLongitude(), pair.getLatitude());
+    }
+
+    /**
+     * Returns the convex hull of the footprints, with at most the vertex limit, or null if the
+     * footprints have no area.
+     */
+    private String buildHull(List<ImageCoordinates> footprints) {
+        int count = footprints.size() * 4;
+        double[] x = new double[count];
+        double[] y = new double[count];
+        int i = 0;
+        for (ImageCoordinates footprint : footprints) {
+            for (ImageCoordinatePair pair : new ImageCoordinatePair[] {
+                    footprint.getCoordinate00(), footprint.getCoordinate0MaxCol(),
+                    footprint.getCoordinateMaxRowMaxCol(), footprint.getCoordinateMaxRow0()}) {
+                x[i] = pair.getLongitude();
+                y[i] = pair.getLatitude();
+                ++i;
+            }
+        }
+        int[] hull = convexHull(x, y);
+        if (hull.length < 3) {
+            return null;
+        }
+        double[] hullX = new double[hull.length];
+        double[] hullY = new double[hull.length];
+        for (i = 0; i < hull.length; ++i) {
+            hullX[i] = x[hull[i]];
+            hullY[i] = y[hull[i]];
+        }
+        int vertices = reduce(hullX, hullY, hull.length);
+
+        StringBuilder wkt = new StringBuilder(16 + 48 * vertices).append("POLYGON ((");
+        for (i = 0; i <= vertices; ++i) {
+            if (i > 0) {
+                wkt.append(", ");
+            }
+            appendNumber(wkt, hullX[i % vertices]);
+            wkt.append(' ');
+            appendNumber(wkt, hullY[i % vertices]);
+        }
+        return wkt.append("))").toString();
+    }
+
+    /**
+     * Returns the indexes of the convex hull vertices in counter-clockwise order, using
+     * Andrew's monotone chain.
+     */
+    private static int[] convexHull(final double[] x, final double[] y) {
+        int count = x.length;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byX = Double.compare(x[a], x[b]);
+                return byX != 0 ? byX : Double.compare(y[a], y[b]);
+            }
+        });
+        int[] hull = new int[2 * count];
+        int size = 0;
+        for (int i = 0; i < count; ++i) {
+            while (size >= 2 && cross(x, y, hull[size - 2], hull[size - 1], order[i]) <= 0) {
+                --size;
+            }
+            hull[size++] = order[i];
+        }
+        int lower = size + 1;
+        for (int i = count - 2; i >= 0; --i) {
+            while (size >= lower && cross(x, y, hull[size - 2], hull[size - 1], order[i]) <= 0) {
+                --size;
+            }
+            hull[size++] = order[i];
+        }
+        // The last point repeats the first.
+        return Arrays.copyOf(hull, Math.max(0, size - 1));
+    }
+
+    private static double cross(double[] x, double[] y, int o, int a, int b) {
+        return (x[a] - x[o]) * (y[b] - y[o]) - (y[a] - y[o]) * (x[b] - x[o]);
+    }
+
+    /**
+     * Cuts a convex counter-clockwise polygon down to the vertex limit, in place, and returns
+     * its new vertex count.
+     * <p>
+     * Each step removes the edge whose removal adds the least area: its two neighbouring edges
+     * are extended until they meet, and that point replaces the edge's two vertices. The
+     * result still contains the original polygon.
+     */
+    private int reduce(double[] x, double[] y, int vertices) {
+        int size = vertices;
+        while (size > maxVertices) {
+            int best = -1;
+            double bestArea = Double.MAX_VALUE;
+            double bestX = 0;
+            double bestY = 0;
+            for (int i = 0; i < size; ++i) {
+                int previous = (i + size - 1) % size;
+                int next = (i + 1) % size;
+                int afterNext = (i + 2) % size;
+                // Intersect the line through previous and i with the line through next and
+                // afterNext.
+                double dx1 = x[i] - x[previous];
+                double dy1 = y[i] - y[previous];
+                double dx2 = x[next] - x[afterNext];
+                double dy2 = y[next] - y[afterNext];
+                double denominator = dx1 * dy2 - dy1 * dx2;
+                if (denominator == 0) {
+                    continue;
+                }
+                double t = ((x[next] - x[i]) * dy2 - (y[next] - y[i]) * dx2) / denominator;
+                double s = ((x[next] - x[i]) * dy1 - (y[next] - y[i]) * dx1) / denominator;
+                if (t < 0 || s < 0) {
+                    // The neighbouring edges diverge, so they never meet beyond this edge.
+                    continue;
+                }
+                double meetX = x[i] + t * dx1;
+                double meetY = y[i] + t * dy1;
+                double area = Math.abs((x[next] - x[i]) * (meetY - y[i])
+                        - (y[next] - y[i]) * (meetX - x[i])) / 2;
+                if (area < bestArea) {
+                    best = i;
+                    bestArea = area;
+                    bestX = meetX;
+                    bestY = meetY;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            int next = (best + 1) % size;
+            x[best] = bestX;
+            y[best] = bestY;
+            System.arraycopy(x, next + 1, x, next, size - next - 1);
+            System.arraycopy(y, next + 1, y, next, size - next - 1);
+            --size;
+        }
+        return size;
+    }
+}
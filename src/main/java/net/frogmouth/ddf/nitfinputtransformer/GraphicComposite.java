@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.codice.imaging.cgm.CgmParser;
+import org.codice.imaging.cgm.CgmRenderer;
+import org.codice.imaging.nitf.core.graphic.NitfGraphicSegmentHeader;
+import org.codice.imaging.nitf.core.image.NitfImageSegmentHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders every graphic segment of a file into one thumbnail, laid out as the file displays
+ * them.
+ * <p>
+ * Each segment is placed at its location in the common coordinate system, following its
+ * attachment level to the image or graphic segment it is placed relative to. The thumbnail
+ * covers the union of the segments, scaled down so its longer side is at most the thumbnail
+ * size. Segments are rendered in parallel, each into a tile at that reduced resolution, and the
+ * tiles are drawn onto the one thumbnail raster in display level order, lowest first. A tile
+ * that isn't ready by the deadline is left out rather than holding up the rest.
+ */
+class GraphicComposite {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GraphicComposite.class);
+
+    /**
+     * Deepest chain of attachments followed, which also stops a cycle in a malformed file.
+     */
+    private static final int MAX_ATTACHMENT_DEPTH = 32;
+
+    private final List<Layer> layers = new ArrayList<Layer>();
+
+    private final double scale;
+
+    private final int width;
+
+    private final int height;
+
+    private List<Future<BufferedImage>> tiles;
+
+    /**
+     * Lays out the segments of {@code graphics} with a positive extent in a thumbnail whose
+     * longer side is at most {@code maxSize}.
+     */
+    GraphicComposite(List<NitfGraphicSegmentHeader> graphics,
+            List<NitfImageSegmentHeader> images, int maxSize) {
+        Map<Integer, int[]> placements = new HashMap<Integer, int[]>();
+        for (NitfImageSegmentHeader image : images) {
+            placements.put(image.getImageDisplayLevel(), new int[] {image.getAttachmentLevel(),
+                    image.getImageLocationRow(), image.getImageLocationColumn()});
+        }
+        for (NitfGraphicSegmentHeader graphic : graphics) {
+            placements.put(graphic.getGraphicDisplayLevel(), new int[] {
+                    graphic.getAttachmentLevel(), graphic.getGraphicLocationRow(),
+                    graphic.getGraphicLocationColumn()});
+        }
+
+        long minRow = Long.MAX_VALUE;
+        long minColumn = Long.MAX_VALUE;
+        long maxRow = Long.MIN_VALUE;
+        long maxColumn = Long.MIN_VALUE;
+        for (int i = 0; i < graphics.size(); ++i) {
+            NitfGraphicSegmentHeader graphic = graphics.get(i);
+            if (graphic.getBoundingBox2Column() <= 0 || graphic.getBoundingBox2Row() <= 0) {
+                continue;
+            }
+            long[] location = resolveLocation(graphic.getGraphicDisplayLevel(), placements);
+            Layer layer = new Layer(i, graphic, location[0], location[1]);
+            layers.add(layer);
+            minRow = Math.min(minRow, layer.row);
+            minColumn = Math.min(minColumn, layer.column);
+            maxRow = Math.max(maxRow, layer.row + layer.height);
+            maxColumn = Math.max(maxColumn, layer.column + layer.width);
+        }
+        if (layers.isEmpty()) {
+            scale = 1;
+            width = 0;
+            height = 0;
+            return;
+        }
+
+        long extentWidth = maxColumn - minColumn;
+        long extentHeight = maxRow - minRow;
+        scale = Math.min(1.0, (double) maxSize / Math.max(extentWidth, extentHeight));
+        width = Math.max(1, (int) Math.round(extentWidth * scale));
+        height = Math.max(1, (int) Math.round(extentHeight * scale));
+        for (Layer layer : layers) {
+            layer.x = (int) Math.round((layer.column - minColumn) * scale);
+            layer.y = (int) Math.round((layer.row - minRow) * scale);
+        }
+        // Stable, so segments at the same level keep their file order.
+        Collections.sort(layers, (a, b) -> Integer.compare(a.displayLevel, b.displayLevel));
+    }
+
+    /**
+     * Returns the row and column of the segment at {@code displayLevel} in the common
+     * coordinate system, adding up the locations of the segments it is attached to.
+     */
+    private static long[] resolveLocation(int displayLevel, Map<Integer, int[]> placements) {
+        long row = 0;
+        long column = 0;
+        int level = displayLevel;
+        for (int depth = 0; depth < MAX_ATTACHMENT_DEPTH; ++depth) {
+            int[] placement = placements.get(level);
+            if (placement == null) {
+                break;
+            }
+            row += placement[1];
+            column += placement[2];
+            if (placement[0] == 0 || placement[0] == level) {
+                break;
+            }
+            level = placement[0];
+        }
+        return new long[] {row, column};
+    }
+
+    boolean isEmpty() {
+        return layers.isEmpty();
+    }
+
+    /**
+     * Returns the index of each segment drawn, in the order they are drawn.
+     */
+    List<Integer> getSegmentIndexes() {
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (Layer layer : layers) {
+            indexes.add(layer.index);
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns the size of the thumbnail and the place of each tile in it, in drawing order,
+     * which along with the graphics themselves determines the thumbnail.
+     */
+    int[] getLayout() {
+        int[] layout = new int[2 + 4 * layers.size()];
+        layout[0] = width;
+        layout[1] = height;
+        for (int i = 0; i < layers.size(); ++i) {
+            Layer layer = layers.get(i);
+            layout[2 + 4 * i] = layer.x;
+            layout[3 + 4 * i] = layer.y;
+            layout[4 + 4 * i] = layer.width;
+            layout[5 + 4 * i] = layer.height;
+        }
+        return layout;
+    }
+
+    /**
+     * Starts rendering a tile from each of {@code graphics}, the CGM data of the segments in
+     * {@link #getSegmentIndexes()} order, on {@code pool}, or on this thread if it is null.
+     */
+    void start(List<byte[]> graphics, ExecutorService pool) {
+        tiles = new ArrayList<Future<BufferedImage>>(layers.size());
+        for (int i = 0; i < layers.size(); ++i) {
+            final Layer layer = layers.get(i);
+            final byte[] graphic = graphics.get(i);
+            Callable<BufferedImage> render = new Callable<BufferedImage>() {
+                @Override
+                public BufferedImage call() throws IOException {
+                    return renderTile(layer, graphic);
+                }
+            };
+            if (pool != null) {
+                tiles.add(pool.submit(render));
+            } else {
+                FutureTask<BufferedImage> task = new FutureTask<BufferedImage>(render);
+                task.run();
+                tiles.add(task);
+            }
+        }
+    }
+
+    private BufferedImage renderTile(Layer layer, byte[] graphic) throws IOException {
+        CgmParser parser = new CgmParser(graphic);
+        parser.buildCommandList();
+        int tileWidth = Math.max(1, (int) Math.round(layer.width * scale));
+        int tileHeight = Math.max(1, (int) Math.round(layer.height * scale));
+        BufferedImage tile = new BufferedImage(tileWidth, tileHeight,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = tile.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.scale(scale, scale);
+            CgmRenderer renderer = new CgmRenderer();
+            renderer.setTargetImageGraphics(graphics, layer.width, layer.height);
+            renderer.render(parser.getCommandList());
+        } finally {
+            graphics.dispose();
+        }
+        return tile;
+    }
+
+    /**
+     * Draws the tiles in display level order as they become ready, waiting for them for up to
+     * {@code budgetNanos} after {@code start}, and returns the thumbnail along with whether
+     * every tile made it in. Returns null if none did.
+     */
+    Result finish(long start, long budgetNanos) throws InterruptedException {
+        BufferedImage thumbnail = null;
+        Graphics2D graphics = null;
+        boolean complete = true;
+        try {
+            for (int i = 0; i < tiles.size(); ++i) {
+                BufferedImage tile = awaitTile(i, start, budgetNanos);
+                // Drop the tile once it is drawn, so only the thumbnail is held to the end.
+                tiles.set(i, null);
+                if (tile == null) {
+                    complete = false;
+                    continue;
+                }
+                if (thumbnail == null) {
+                    thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                    graphics = thumbnail.createGraphics();
+                    graphics.setColor(Color.WHITE);
+                    graphics.fillRect(0, 0, width, height);
+                }
+                Layer layer = layers.get(i);
+                graphics.drawImage(tile, layer.x, layer.y, null);
+            }
+        } finally {
+            if (graphics != null) {
+                graphics.dispose();
+            }
+            cancel();
+        }
+        return thumbnail != null ? new Result(thumbnail, complete) : null;
+    }
+
+    private BufferedImage awaitTile(int i, long start, long budgetNanos)
+            throws InterruptedException {
+        Future<BufferedImage> tile = tiles.get(i);
+        int index = layers.get(i).index;
+        long remaining = budgetNanos - (System.nanoTime() - start);
+        try {
+            return budgetNanos == Long.MAX_VALUE ? tile.get()
+                    : tile.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            tile.cancel(true);
+            LOGGER.warn("Graphic segment {} ran past the thumbnail budget of {} ms; leaving it"
+                    + " out of the thumbnail", index, TimeUnit.NANOSECONDS.toMillis(budgetNanos));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            LOGGER.debug("Failed to render graphic segment {}", index, e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Stops waiting for the tiles not yet drawn. The renders themselves are only asked to
+     * stop, as the renderer doesn't look.
+     */
+    void cancel() {
+        if (tiles == null) {
+            return;
+        }
+        for (Future<BufferedImage> tile : tiles) {
+            if (tile != null) {
+                tile.cancel(true);
+            }
+        }
+    }
+
+    static final class Result {
+
+        final BufferedImage thumbnail;
+
+        final boolean complete;
+
+        Result(BufferedImage thumbnail, boolean complete) {
+            this.thumbnail = thumbnail;
+            this.complete = complete;
+        }
+    }
+
+    private static final class Layer {
+
+        final int index;
+
+        final int displayLevel;
+
+        final long row;
+
+        final long column;
+
+        final int width;
+
+        final int height;
+
+        int x;
+
+        int y;
+
+        Layer(int index, NitfGraphicSegmentHeader graphic, long row, long column) {
+            this.index = index;
+            this.displayLevel = graphic.getGraphicDisplayLevel();
+            this.row = row;
+            this.column = column;
+            this.width = graphic.getBoundingBox2Column();
+            this.height = graphic.getBoundingBox2Row();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codice.imaging.nitf.core.SlottedNitfParseStrategy;
+import org.codice.imaging.nitf.core.common.NitfReader;
+
+/**
+ * A {@link SlottedNitfParseStrategy} that reads the file header and every segment subheader but
+ * skips over the segment data.
+ * <p>
+ * The offset of each image, graphic and data extension segment's data is recorded as it is
+ * skipped so that the data can be read later from the {@link NitfDataSource}, and only if
+ * something actually needs it.
+ */
+public class HeaderOnlyParseStrategy extends SlottedNitfParseStrategy {
+
+    private NitfDataSource dataSource;
+
+    private final List<Long> imageSegmentDataOffsets = new ArrayList<Long>();
+
+    private final List<Long> graphicSegmentDataOffsets = new ArrayList<Long>();
+
+    private final List<Long> dataExtensionSegmentDataOffsets = new ArrayList<Long>();
+
+    private final Map<Integer, byte[]> loadedGraphicSegmentData = new HashMap<Integer, byte[]>();
+
+    private final Map<Integer, Map<String, List<String>>> dataExtensionSegmentValues =
+            new HashMap<Integer, Map<String, List<String>>>();
+
+    HeaderOnlyParseStrategy(NitfDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    protected void handleImageSegment(NitfReader reader, int i) throws ParseException {
+        imageSegmentHeaders.add(readImageSegmentHeader(reader, i));
+        imageSegmentDataOffsets.add(reader.getCurrentOffset());
+        skipData(reader, getNitfHeader().getImageSegmentDataLengths().get(i));
+    }
+
+    @Override
+    protected void handleGraphicSegment(NitfReader reader, int i) throws ParseException {
+        graphicSegmentHeaders.add(readGraphicSegmentHeader(reader, i));
+        graphicSegmentDataOffsets.add(reader.getCurrentOffset());
+        skipData(reader, getNitfHeader().getGraphicSegmentDataLengths().get(i));
+    }
+
+    @Override
+    protected void handleSymbolSegment(NitfReader reader, int i) throws ParseException {
+        symbolSegmentHeaders.add(readSymbolSegmentHeader(reader, i));
+        skipData(reader, getNitfHeader().getSymbolSegmentDataLengths().get(i));
+    }
+
+    @Override
+    protected void handleLabelSegment(NitfReader reader, int i) throws ParseException {
+        labelSegmentHeaders.add(readLabelSegmentHeader(reader, i));
+        skipData(reader, getNitfHeader().getLabelSegmentDataLengths().get(i));
+    }
+
+    @Override
+    protected void handleTextSegment(NitfReader reader, int i) throws ParseException {
+        textSegmentHeaders.add(readTextSegmentHeader(reader, i));
+        skipData(reader, getNitfHeader().getTextSegmentDataLengths().get(i));
+    }
+
+    @Override
+    protected void handleDataExtensionSegment(NitfReader reader, int i) throws ParseException {
+        dataExtensionSegmentHeaders.add(readDataExtensionSegmentHeader(reader, i));
+        dataExtensionSegmentDataOffsets.add(reader.getCurrentOffset());
+        skipData(reader, getNitfHeader().getDataExtensionSegmentDataLengths().get(i));
+    }
+
+    private void skipData(NitfReader reader, long length) throws ParseException {
+        if (length > 0) {
+            reader.skip(length);
+        }
+    }
+
+    synchronized NitfDataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Reads the graphic segment data, which is all that is needed later for a thumbnail, and
+     * lets go of the data source so the input it reads from can be released.
+     */
+    synchronized void releaseDataSource() throws IOException {
+        if (dataSource == null) {
+            return;
+        }
+        for (int i = 0; i < graphicSegmentDataOffsets.size(); ++i) {
+            getGraphicSegmentData(i);
+        }
+        dataSource = null;
+    }
+
+    long getImageSegmentDataOffset(int index) {
+        return imageSegmentDataOffsets.get(index);
+    }
+
+    long getImageSegmentDataLength(int index) {
+        return getNitfHeader().getImageSegmentDataLengths().get(index);
+    }
+
+    long getDataExtensionSegmentDataOffset(int index) {
+        return dataExtensionSegmentDataOffsets.get(index);
+    }
+
+    long getDataExtensionSegmentDataLength(int index) {
+        return getNitfHeader().getDataExtensionSegmentDataLengths().get(index);
+    }
+
+    /**
+     * Keeps the values read from the data of the DES at {@code index}, keyed by attribute name,
+     * for its metadata.
+     */
+    synchronized void setDataExtensionSegmentValues(int index,
+            Map<String, List<String>> values) {
+        dataExtensionSegmentValues.put(index, values);
+    }
+
+    synchronized Map<String, List<String>> getDataExtensionSegmentValues(int index) {
+        Map<String, List<String>> values = dataExtensionSegmentValues.get(index);
+        return values != null ? values : Collections.<String, List<String>>emptyMap();
+    }
+
+    /**
+     * Returns the data of the graphic segment at {@code index}, reading it from the data source
+     * the first time it is asked for.
+     */
+    synchronized byte[] getGraphicSegmentData(int index) throws IOException {
+        byte[] data = loadedGraphicSegmentData.get(index);
+        if (data == null) {
+            if (dataSource == null) {
+                throw new IOException("NITF data source has already been released.");
+            }
+            int length = getNitfHeader().getGraphicSegmentDataLengths().get(index);
+            data = dataSource.read(graphicSegmentDataOffsets.get(index), length);
+            loadedGraphicSegmentData.put(index, data);
+        }
+        return data;
+    }
+}
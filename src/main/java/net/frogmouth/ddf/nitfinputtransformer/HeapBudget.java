@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes of heap that concurrent transforms may hold for buffered input, shared between them.
+ * <p>
+ * A transform reserves what it expects to buffer before it reads, and waits for others to
+ * release theirs if that would go over the budget. A reservation is always granted when
+ * nothing else is held, so one that is larger than the budget can't wait forever. A budget of
+ * zero or less is unlimited, though reservations are still counted.
+ */
+class HeapBudget {
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    private long maxBytes;
+
+    private long usedBytes = 0;
+
+    private int waiters = 0;
+
+    HeapBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        notifyAll();
+    }
+
+    /**
+     * Reserves {@code bytes}, waiting up to {@code waitMillis} for other transforms to release
+     * enough. Returns false, having reserved nothing, if they didn't.
+     */
+    synchronized boolean acquire(long bytes, long waitMillis) throws InterruptedException {
+        if (!fits(bytes)) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            ++waiters;
+            try {
+                while (!fits(bytes)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        rejections.incrementAndGet();
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } finally {
+                --waiters;
+            }
+        }
+        usedBytes += bytes;
+        return true;
+    }
+
+    synchronized void release(long bytes) {
+        if (bytes > 0) {
+            usedBytes -= bytes;
+            notifyAll();
+        }
+    }
+
+    private boolean fits(long bytes) {
+        return maxBytes <= 0 || usedBytes == 0 || usedBytes + bytes <= maxBytes;
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    synchronized int getWaiterCount() {
+        return waiters;
+    }
+
+    long getRejectionCount() {
+        return rejections.get();
+    }
+
+    void resetCounts() {
+        rejections.set(0);
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds a copy of non file backed input, in memory up to a limit and in a temporary file
+ * beyond it, so input of any size can be transformed without holding it all on the heap.
+ * <p>
+ * In memory, the internal array is handed to the parser without the extra copy that
+ * {@link ByteArrayOutputStream#toByteArray()} makes. Once spilled, the file is read through
+ * its channel, and is deleted when the spool is closed.
+ */
+class InputSpool extends OutputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InputSpool.class);
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final long memoryLimit;
+
+    private final Path spillDirectory;
+
+    private MemoryBuffer memory;
+
+    private Path file;
+
+    private FileChannel channel;
+
+    private OutputStream fileOutput;
+
+    private long size = 0;
+
+    /**
+     * @param initialSize    bytes to allocate up front, if the input is to be held in memory
+     * @param memoryLimit    most bytes to hold in memory before spilling to a file
+     * @param spillDirectory where to spill to, or null for the default temporary directory
+     */
+    InputSpool(int initialSize, long memoryLimit, Path spillDirectory) {
+        this.memoryLimit = memoryLimit;
+        this.spillDirectory = spillDirectory;
+        this.memory = new MemoryBuffer(memoryLimit > 0
+                ? (int) Math.min(initialSize, memoryLimit) : 0);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (file == null && size + 1 > memoryLimit) {
+            spill();
+        }
+        if (file == null) {
+            memory.write(b);
+        } else {
+            fileOutput.write(b);
+        }
+        ++size;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (file == null && size + length > memoryLimit) {
+            spill();
+        }
+        if (file == null) {
+            memory.write(bytes, offset, length);
+        } else {
+            fileOutput.write(bytes, offset, length);
+        }
+        size += length;
+    }
+
+    private synchronized void spill() throws IOException {
+        file = spillDirectory != null ? Files.createTempFile(spillDirectory, "nitf", ".spool")
+                : Files.createTempFile("nitf", ".spool");
+        LOGGER.debug("Spilling input over {} bytes to {}", memoryLimit, file);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileOutput = new BufferedOutputStream(Channels.newOutputStream(channel),
+                FILE_BUFFER_SIZE);
+        memory.writeTo(fileOutput);
+        memory = null;
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    InputStream toInputStream() {
+        return memory.toInputStream();
+    }
+
+    NitfDataSource toDataSource() {
+        return memory.toDataSource();
+    }
+
+    /**
+     * Returns the channel of the spilled file, positioned at its start.
+     */
+    FileChannel toChannel() throws IOException {
+        fileOutput.flush();
+        return channel.position(0);
+    }
+
+    /**
+     * Drops the copy, so it can be collected or deleted while a cancelled transform still
+     * holds the spool.
+     */
+    synchronized void release() {
+        if (memory != null) {
+            memory.release();
+        }
+        close();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (file == null) {
+            return;
+        }
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to delete spooled input {}", file, e);
+        }
+    }
+
+    private static class MemoryBuffer extends ByteArrayOutputStream {
+
+        MemoryBuffer(int size) {
+            super(size);
+        }
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        NitfDataSource toDataSource() {
+            return NitfDataSource.forBytes(buf, count);
+        }
+
+        synchronized void release() {
+            buf = new byte[0];
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,594 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes baseline and extended sequential Huffman JPEG images at 1/8 scale.
+ * <p>
+ * Only the DC coefficient of each 8x8 block is kept, which is the block's average value, so
+ * each block becomes one pixel with no inverse DCT at all. AC coefficients still have to be
+ * Huffman decoded to find where the next block starts, but they are thrown away as they are
+ * read. Tables are kept between images, so abbreviated streams that rely on tables from an
+ * earlier image (as blocked NITF JPEG may) decode as well.
+ */
+class JpegDcDecoder {
+
+    private static final int SOF0 = 0xC0;
+
+    private static final int SOF1 = 0xC1;
+
+    private static final int DHT = 0xC4;
+
+    private static final int JPG = 0xC8;
+
+    private static final int DAC = 0xCC;
+
+    private static final int SOF15 = 0xCF;
+
+    private static final int RST0 = 0xD0;
+
+    private static final int RST7 = 0xD7;
+
+    private static final int SOI = 0xD8;
+
+    private static final int EOI = 0xD9;
+
+    private static final int SOS = 0xDA;
+
+    private static final int DQT = 0xDB;
+
+    private static final int DRI = 0xDD;
+
+    private static final int NO_MARKER = -1;
+
+    private final int[] quantizationDc = new int[4];
+
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+
+    private int restartInterval;
+
+    private int precision;
+
+    private int width;
+
+    private int height;
+
+    private int maxHorizontalSampling;
+
+    private int maxVerticalSampling;
+
+    private int mcusPerLine;
+
+    private int mcusPerColumn;
+
+    private Component[] components;
+
+    private InputStream input;
+
+    private int bitBuffer;
+
+    private int bitCount;
+
+    private int pendingMarker = NO_MARKER;
+
+    private boolean decoding;
+
+    /**
+     * Decodes the next image (SOI to EOI) from {@code in}, leaving the stream just after it.
+     */
+    void decode(InputStream in) throws IOException {
+        readImage(in, true);
+    }
+
+    /**
+     * Reads past the next image in {@code in} without decoding its scans. Tables in the image
+     * are still read, in case a later image depends on them.
+     */
+    void skip(InputStream in) throws IOException {
+        readImage(in, false);
+    }
+
+    /**
+     * Returns the width of the decoded image, which is 1/8 of the JPEG width rounded up.
+     */
+    int getWidth() {
+        return (width + 7) / 8;
+    }
+
+    /**
+     * Returns the height of the decoded image, which is 1/8 of the JPEG height rounded up.
+     */
+    int getHeight() {
+        return (height + 7) / 8;
+    }
+
+    int getComponentCount() {
+        return components.length;
+    }
+
+    /**
+     * Returns the 8 bit value of {@code component} at ({@code x}, {@code y}) in the decoded
+     * image.
+     */
+    int getSample(int component, int x, int y) {
+        Component c = components[component];
+        int planeX = x * c.horizontalSampling / maxHorizontalSampling;
+        int planeY = y * c.verticalSampling / maxVerticalSampling;
+        int dc = c.plane[planeY * c.planeWidth + planeX];
+        int value = (int) Math.round(dc / 8.0) + (1 << (precision - 1));
+        if (precision > 8) {
+            value >>= precision - 8;
+        }
+        return clamp(value);
+    }
+
+    /**
+     * Returns the packed RGB value at ({@code x}, {@code y}) in the decoded image. When
+     * {@code yCbCr} is set, three component images are converted from YCbCr.
+     */
+    int getRgb(int x, int y, boolean yCbCr) {
+        if (components.length < 3) {
+            int grey = getSample(0, x, y);
+            return (grey << 16) | (grey << 8) | grey;
+        }
+        int first = getSample(0, x, y);
+        int second = getSample(1, x, y);
+        int third = getSample(2, x, y);
+        if (!yCbCr) {
+            return (first << 16) | (second << 8) | third;
+        }
+        int red = clamp((int) Math.round(first + 1.402 * (third - 128)));
+        int green = clamp((int) Math.round(
+                first - 0.344136 * (second - 128) - 0.714136 * (third - 128)));
+        int blue = clamp((int) Math.round(first + 1.772 * (second - 128)));
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    private void readImage(InputStream in, boolean decodeScans) throws IOException {
+        input = in;
+        pendingMarker = NO_MARKER;
+        decoding = decodeScans;
+        components = null;
+        if (readMarker() != SOI) {
+            throw new IOException("JPEG data does not start with SOI");
+        }
+        while (true) {
+            int marker = readMarker();
+            switch (marker) {
+            case EOI:
+                if (decodeScans && components == null) {
+                    throw new IOException("JPEG image has no frame");
+                }
+                return;
+            case DQT:
+                readQuantizationTables();
+                break;
+            case DHT:
+                readHuffmanTables();
+                break;
+            case DRI:
+                readUnsigned16();
+                restartInterval = readUnsigned16();
+                break;
+            case SOF0:
+            case SOF1:
+                if (decodeScans) {
+                    readFrame();
+                } else {
+                    skipSegment();
+                }
+                break;
+            case SOS:
+                if (decodeScans) {
+                    readScan();
+                } else {
+                    skipSegment();
+                }
+                break;
+            default:
+                if (marker > SOF1 && marker <= SOF15 && marker != DHT && marker != JPG
+                        && marker != DAC) {
+                    throw new IOException(String.format(
+                            "Unsupported JPEG process (marker 0x%02X)", marker));
+                }
+                skipSegment();
+            }
+        }
+    }
+
+    private void readQuantizationTables() throws IOException {
+        int remaining = readUnsigned16() - 2;
+        while (remaining > 0) {
+            int info = readByte();
+            boolean sixteenBit = (info >> 4) != 0;
+            int dc = sixteenBit ? readUnsigned16() : readByte();
+            skipBytes(sixteenBit ? 126 : 63);
+            quantizationDc[info & 0x03] = dc;
+            remaining -= sixteenBit ? 129 : 65;
+        }
+    }
+
+    private void readHuffmanTables() throws IOException {
+        int remaining = readUnsigned16() - 2;
+        while (remaining > 0) {
+            int info = readByte();
+            int[] counts = new int[17];
+            int total = 0;
+            for (int i = 1; i <= 16; ++i) {
+                counts[i] = readByte();
+                total += counts[i];
+            }
+            int[] values = new int[total];
+            for (int i = 0; i < total; ++i) {
+                values[i] = readByte();
+            }
+            HuffmanTable table = new HuffmanTable(counts, values);
+            if ((info >> 4) == 0) {
+                dcTables[info & 0x03] = table;
+            } else {
+                acTables[info & 0x03] = table;
+            }
+            remaining -= 17 + total;
+        }
+    }
+
+    private void readFrame() throws IOException {
+        readUnsigned16();
+        precision = readByte();
+        height = readUnsigned16();
+        width = readUnsigned16();
+        if (precision != 8 && precision != 12) {
+            throw new IOException("Unsupported JPEG sample precision " + precision);
+        }
+        if (width == 0 || height == 0) {
+            throw new IOException("JPEG images sized by a DNL marker are not supported");
+        }
+        int count = readByte();
+        components = new Component[count];
+        maxHorizontalSampling = 1;
+        maxVerticalSampling = 1;
+        for (int i = 0; i < count; ++i) {
+            Component component = new Component();
+            component.id = readByte();
+            int sampling = readByte();
+            component.horizontalSampling = Math.max(1, sampling >> 4);
+            component.verticalSampling = Math.max(1, sampling & 0x0F);
+            component.quantizationTable = readByte() & 0x03;
+            maxHorizontalSampling = Math.max(maxHorizontalSampling,
+                    component.horizontalSampling);
+            maxVerticalSampling = Math.max(maxVerticalSampling, component.verticalSampling);
+            components[i] = component;
+        }
+        mcusPerLine = (width + 8 * maxHorizontalSampling - 1) / (8 * maxHorizontalSampling);
+        mcusPerColumn = (height + 8 * maxVerticalSampling - 1) / (8 * maxVerticalSampling);
+        for (Component component : components) {
+            component.planeWidth = mcusPerLine * component.horizontalSampling;
+            component.plane = new int[component.planeWidth * mcusPerColumn
+                    * component.verticalSampling];
+        }
+    }
+
+    private void readScan() throws IOException {
+        if (components == null) {
+            throw new IOException("JPEG scan before frame header");
+        }
+        readUnsigned16();
+        int count = readByte();
+        Component[] scanComponents = new Component[count];
+        for (int i = 0; i < count; ++i) {
+            int id = readByte();
+            int tables = readByte();
+            Component component = findComponent(id);
+            component.dcTable = dcTables[tables >> 4];
+            component.acTable = acTables[tables & 0x0F];
+            if (component.dcTable == null || component.acTable == null) {
+                throw new IOException("JPEG scan uses an undefined Huffman table");
+            }
+            component.quantizationDc = quantizationDc[component.quantizationTable];
+            component.predictor = 0;
+            scanComponents[i] = component;
+        }
+        skipBytes(3);
+
+        bitBuffer = 0;
+        bitCount = 0;
+        if (count == 1) {
+            decodeNonInterleaved(scanComponents[0]);
+        } else {
+            decodeInterleaved(scanComponents);
+        }
+        bitCount = 0;
+    }
+
+    private void decodeNonInterleaved(Component component) throws IOException {
+        int componentWidth = (width * component.horizontalSampling + maxHorizontalSampling - 1)
+                / maxHorizontalSampling;
+        int componentHeight = (height * component.verticalSampling + maxVerticalSampling - 1)
+                / maxVerticalSampling;
+        int blocksPerLine = (componentWidth + 7) / 8;
+        int blocksPerColumn = (componentHeight + 7) / 8;
+        int total = blocksPerLine * blocksPerColumn;
+        for (int i = 0; i < total; ++i) {
+            if (i > 0 && restartInterval > 0 && i % restartInterval == 0) {
+                restart(component);
+            }
+            int blockY = i / blocksPerLine;
+            int blockX = i % blocksPerLine;
+            component.plane[blockY * component.planeWidth + blockX] = decodeBlock(component);
+        }
+    }
+
+    private void decodeInterleaved(Component[] scanComponents) throws IOException {
+        int total = mcusPerLine * mcusPerColumn;
+        for (int i = 0; i < total; ++i) {
+            if (i > 0 && restartInterval > 0 && i % restartInterval == 0) {
+                restart(scanComponents);
+            }
+            int mcuY = i / mcusPerLine;
+            int mcuX = i % mcusPerLine;
+            for (Component component : scanComponents) {
+                for (int v = 0; v < component.verticalSampling; ++v) {
+                    int row = mcuY * component.verticalSampling + v;
+                    for (int h = 0; h < component.horizontalSampling; ++h) {
+                        int column = mcuX * component.horizontalSampling + h;
+                        component.plane[row * component.planeWidth + column] =
+                                decodeBlock(component);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes one block, returning its dequantized DC coefficient and discarding the rest.
+     */
+    private int decodeBlock(Component component) throws IOException {
+        int size = component.dcTable.decode(this);
+        if (size > 0) {
+            component.predictor += extend(receive(size), size);
+        }
+        HuffmanTable acTable = component.acTable;
+        int k = 1;
+        while (k < 64) {
+            int runSize = acTable.decode(this);
+            int run = runSize >> 4;
+            size = runSize & 0x0F;
+            if (size == 0) {
+                if (run != 15) {
+                    break;
+                }
+                k += 16;
+            } else {
+                k += run + 1;
+                receive(size);
+            }
+        }
+        return component.predictor * component.quantizationDc;
+    }
+
+    private void restart(Component... scanComponents) throws IOException {
+        bitBuffer = 0;
+        bitCount = 0;
+        int marker = readMarker();
+        if (marker < RST0 || marker > RST7) {
+            throw new IOException(String.format("Expected JPEG restart marker, found 0x%02X",
+                    marker));
+        }
+        for (Component component : scanComponents) {
+            component.predictor = 0;
+        }
+    }
+
+    private Component findComponent(int id) throws IOException {
+        for (Component component : components) {
+            if (component.id == id) {
+                return component;
+            }
+        }
+        throw new IOException("JPEG scan refers to unknown component " + id);
+    }
+
+    int receive(int count) throws IOException {
+        while (bitCount < count) {
+            bitBuffer = (bitBuffer << 8) | nextEntropyByte();
+            bitCount += 8;
+        }
+        bitCount -= count;
+        return (bitBuffer >>> bitCount) & ((1 << count) - 1);
+    }
+
+    int peek(int count) throws IOException {
+        while (bitCount < count) {
+            bitBuffer = (bitBuffer << 8) | nextEntropyByte();
+            bitCount += 8;
+        }
+        return (bitBuffer >>> (bitCount - count)) & ((1 << count) - 1);
+    }
+
+    void consume(int count) {
+        bitCount -= count;
+    }
+
+    private static int extend(int value, int size) {
+        if (value < (1 << (size - 1))) {
+            return value - (1 << size) + 1;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the next byte of entropy coded data, removing stuffed zero bytes. A marker ends
+     * the data, after which zero bits are returned until the marker is read.
+     */
+    private int nextEntropyByte() throws IOException {
+        if (pendingMarker != NO_MARKER) {
+            return 0;
+        }
+        int value = readByte();
+        if (value != 0xFF) {
+            return value;
+        }
+        int next = readByte();
+        while (next == 0xFF) {
+            next = readByte();
+        }
+        if (next == 0) {
+            return 0xFF;
+        }
+        pendingMarker = next;
+        return 0;
+    }
+
+    /**
+     * Returns the next marker, skipping any bytes before it. When scans are being skipped
+     * rather than decoded, this also skips their entropy coded data and restart markers.
+     */
+    private int readMarker() throws IOException {
+        if (pendingMarker != NO_MARKER) {
+            int marker = pendingMarker;
+            pendingMarker = NO_MARKER;
+            return marker;
+        }
+        while (true) {
+            int value = readByte();
+            while (value != 0xFF) {
+                value = readByte();
+            }
+            while (value == 0xFF) {
+                value = readByte();
+            }
+            if (value != 0 && (decoding || value < RST0 || value > RST7)) {
+                return value;
+            }
+        }
+    }
+
+    private void skipSegment() throws IOException {
+        skipBytes(readUnsigned16() - 2);
+    }
+
+    private void skipBytes(long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                readByte();
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private int readUnsigned16() throws IOException {
+        return (readByte() << 8) | readByte();
+    }
+
+    private int readByte() throws IOException {
+        int value = input.read();
+        if (value < 0) {
+            throw new EOFException("JPEG data ended early");
+        }
+        return value;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(0xFF, value));
+    }
+
+    private static class Component {
+
+        int id;
+
+        int horizontalSampling;
+
+        int verticalSampling;
+
+        int quantizationTable;
+
+        int quantizationDc;
+
+        HuffmanTable dcTable;
+
+        HuffmanTable acTable;
+
+        int predictor;
+
+        int planeWidth;
+
+        int[] plane;
+    }
+
+    /**
+     * A Huffman table with a lookup table for codes of up to {@link #LOOKUP_BITS} bits and the
+     * canonical decoding procedure from ITU T.81 Annex F for longer ones.
+     */
+    private static class HuffmanTable {
+
+        private static final int LOOKUP_BITS = 9;
+
+        private final int[] lookup = new int[1 << LOOKUP_BITS];
+
+        private final int[] maxCode = new int[18];
+
+        private final int[] valuePointer = new int[17];
+
+        private final int[] minCode = new int[17];
+
+        private final int[] values;
+
+        HuffmanTable(int[] counts, int[] values) {
+            this.values = values;
+            int code = 0;
+            int index = 0;
+            for (int length = 1; length <= 16; ++length) {
+                valuePointer[length] = index;
+                minCode[length] = code;
+                for (int i = 0; i < counts[length]; ++i) {
+                    if (length <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - length;
+                        for (int fill = 0; fill < (1 << shift); ++fill) {
+                            lookup[(code << shift) | fill] = (length << 8) | values[index];
+                        }
+                    }
+                    ++code;
+                    ++index;
+                }
+                maxCode[length] = counts[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        int decode(JpegDcDecoder decoder) throws IOException {
+            int entry = lookup[decoder.peek(LOOKUP_BITS)];
+            if (entry != 0) {
+                decoder.consume(entry >> 8);
+                return entry & 0xFF;
+            }
+            int code = decoder.receive(LOOKUP_BITS);
+            int length = LOOKUP_BITS;
+            while (code > maxCode[length]) {
+                code = (code << 1) | decoder.receive(1);
+                ++length;
+                if (length > 16) {
+                    throw new IOException("Bad JPEG Huffman code");
+                }
+            }
+            return values[valuePointer[length] + code - minCode[length]];
+        }
+    }
+}
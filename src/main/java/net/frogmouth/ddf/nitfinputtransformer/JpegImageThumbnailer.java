@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.codice.imaging.nitf.core.image.ImageCompression;
+import org.codice.imaging.nitf.core.image.ImageMode;
+import org.codice.imaging.nitf.core.image.ImageRepresentation;
+import org.codice.imaging.nitf.core.image.NitfImageSegmentHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a reduced resolution thumbnail from a JPEG compressed (IC=C3 or M3) image segment.
+ * <p>
+ * Each image block is decoded at 1/8 scale with {@link JpegDcDecoder}, and the result is point
+ * sampled at a fixed stride. Blocks that hold no sampled pixel are not decoded. For M3 images
+ * the block mask gives the offset of every block, so those blocks are never read at all; for
+ * C3 images the blocks have to be walked in order, but unneeded ones are only scanned for their
+ * end marker.
+ */
+class JpegImageThumbnailer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JpegImageThumbnailer.class);
+
+    private static final int DCT_SIZE = 8;
+
+    private final NitfDataSource dataSource;
+
+    private final long dataOffset;
+
+    private final long dataLength;
+
+    private final boolean masked;
+
+    private final boolean yCbCr;
+
+    private final int bands;
+
+    private final int rows;
+
+    private final int columns;
+
+    private final int blocksPerRow;
+
+    private final int blocksPerColumn;
+
+    private final int scaledBlockWidth;
+
+    private final int scaledBlockHeight;
+
+    JpegImageThumbnailer(NitfImageSegmentHeader image, NitfDataSource dataSource,
+            long dataOffset, long dataLength) {
+        this.dataSource = dataSource;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+        this.masked = image.getImageCompression() == ImageCompression.JPEGMASK;
+        this.yCbCr = image.getImageRepresentation() == ImageRepresentation.YCBCR601;
+        this.bands = image.getNumBands();
+        this.rows = (int) image.getNumberOfRows();
+        this.columns = (int) image.getNumberOfColumns();
+        this.blocksPerRow = image.getNumberOfBlocksPerRow();
+        this.blocksPerColumn = image.getNumberOfBlocksPerColumn();
+        // A block size of zero means the block is the full width or height of the image.
+        int pixelsPerBlockHorizontal = image.getNumberOfPixelsPerBlockHorizontal() > 0
+                ? image.getNumberOfPixelsPerBlockHorizontal() : columns;
+        int pixelsPerBlockVertical = image.getNumberOfPixelsPerBlockVertical() > 0
+                ? image.getNumberOfPixelsPerBlockVertical() : rows;
+        this.scaledBlockWidth = (pixelsPerBlockHorizontal + DCT_SIZE - 1) / DCT_SIZE;
+        this.scaledBlockHeight = (pixelsPerBlockVertical + DCT_SIZE - 1) / DCT_SIZE;
+    }
+
+    /**
+     * Returns true if {@code image} is JPEG compressed in a layout this class can decode.
+     */
+    static boolean canRender(NitfImageSegmentHeader image) {
+        if (image.getImageCompression() != ImageCompression.JPEG
+                && image.getImageCompression() != ImageCompression.JPEGMASK) {
+            return false;
+        }
+        if (image.getNumberOfBitsPerPixelPerBand() != 8
+                && image.getNumberOfBitsPerPixelPerBand() != 12) {
+            return false;
+        }
+        if (image.getNumberOfRows() <= 0 || image.getNumberOfColumns() <= 0) {
+            return false;
+        }
+        // Blocks must line up with the 8x8 DCT grid for the scaled blocks to tile the image.
+        if ((image.getNumberOfBlocksPerRow() > 1
+                && image.getNumberOfPixelsPerBlockHorizontal() % DCT_SIZE != 0)
+                || (image.getNumberOfBlocksPerColumn() > 1
+                && image.getNumberOfPixelsPerBlockVertical() % DCT_SIZE != 0)) {
+            return false;
+        }
+        // Band sequential JPEG (IMODE=S) holds one stream per band, which is not handled.
+        return image.getNumBands() == 1
+                || (image.getNumBands() == 3 && image.getImageMode() != ImageMode.BANDSEQUENTIAL);
+    }
+
+    /**
+     * Renders a thumbnail no larger than {@code maxDimension} pixels on its longest side.
+     */
+    BufferedImage render(int maxDimension) throws IOException {
+        int scaledRows = (rows + DCT_SIZE - 1) / DCT_SIZE;
+        int scaledColumns = (columns + DCT_SIZE - 1) / DCT_SIZE;
+        int stride = Math.max(1,
+                (Math.max(scaledRows, scaledColumns) + maxDimension - 1) / maxDimension);
+        int thumbnailRows = (scaledRows + stride - 1) / stride;
+        int thumbnailColumns = (scaledColumns + stride - 1) / stride;
+        LOGGER.debug("Sampling {}x{} JPEG image at 1/8 scale every {} pixels", columns, rows,
+                stride);
+
+        BufferedImage thumbnail = new BufferedImage(thumbnailColumns, thumbnailRows,
+                bands == 3 ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_BYTE_GRAY);
+        JpegDcDecoder decoder = new JpegDcDecoder();
+        NitfBlockMask blockMask = null;
+        if (masked) {
+            blockMask = NitfBlockMask.read(dataSource, dataOffset,
+                    blocksPerRow * blocksPerColumn);
+        }
+        if (blockMask != null && blockMask.hasBlockOffsets()) {
+            renderMasked(decoder, blockMask, stride, thumbnail);
+        } else {
+            long start = blockMask != null ? blockMask.getPixelDataOffset() : dataOffset;
+            renderSequential(decoder, start, stride, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Decodes the needed blocks of an M3 image, going straight to each through the block mask.
+     */
+    private void renderMasked(JpegDcDecoder decoder, NitfBlockMask blockMask, int stride,
+            BufferedImage thumbnail) throws IOException {
+        long dataEnd = dataOffset + dataLength;
+        for (int blockRow = 0; blockRow < blocksPerColumn; ++blockRow) {
+            for (int blockColumn = 0; blockColumn < blocksPerRow; ++blockColumn) {
+                if (!isSampled(blockRow, blockColumn, stride)) {
+                    continue;
+                }
+                long blockOffset = blockMask.getBlockOffset(blockRow * blocksPerRow + blockColumn);
+                if (blockOffset < 0) {
+                    // Blocks that are not recorded are left black.
+                    continue;
+                }
+                long offset = blockMask.getPixelDataOffset() + blockOffset;
+                InputStream in = new BufferedInputStream(dataSource.open(offset, dataEnd - offset));
+                try {
+                    decoder.decode(in);
+                } finally {
+                    in.close();
+                }
+                copyBlock(decoder, blockRow, blockColumn, stride, thumbnail);
+            }
+        }
+    }
+
+    /**
+     * Decodes the needed blocks of an image whose blocks follow each other from {@code start}
+     * with no index, as in C3 images.
+     */
+    private void renderSequential(JpegDcDecoder decoder, long start, int stride,
+            BufferedImage thumbnail) throws IOException {
+        int lastBlock = getLastSampledBlock(stride);
+        InputStream in = new BufferedInputStream(
+                dataSource.open(start, dataOffset + dataLength - start));
+        try {
+            for (int block = 0; block <= lastBlock; ++block) {
+                int blockRow = block / blocksPerRow;
+                int blockColumn = block % blocksPerRow;
+                if (isSampled(blockRow, blockColumn, stride)) {
+                    decoder.decode(in);
+                    copyBlock(decoder, blockRow, blockColumn, stride, thumbnail);
+                } else {
+                    decoder.skip(in);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private int getLastSampledBlock(int stride) {
+        for (int block = blocksPerRow * blocksPerColumn - 1; block > 0; --block) {
+            if (isSampled(block / blocksPerRow, block % blocksPerRow, stride)) {
+                return block;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns true if the block holds at least one pixel that lands in the thumbnail.
+     */
+    private boolean isSampled(int blockRow, int blockColumn, int stride) {
+        return containsMultiple(blockRow * scaledBlockHeight, scaledBlockHeight, stride)
+                && containsMultiple(blockColumn * scaledBlockWidth, scaledBlockWidth, stride);
+    }
+
+    private static boolean containsMultiple(int start, int length, int stride) {
+        int first = (start + stride - 1) / stride * stride;
+        return first < start + length;
+    }
+
+    private void copyBlock(JpegDcDecoder decoder, int blockRow, int blockColumn, int stride,
+            BufferedImage thumbnail) {
+        int startRow = blockRow * scaledBlockHeight;
+        int startColumn = blockColumn * scaledBlockWidth;
+        int firstY = (startRow + stride - 1) / stride;
+        int firstX = (startColumn + stride - 1) / stride;
+        int endY = Math.min(thumbnail.getHeight(),
+                (startRow + Math.min(scaledBlockHeight, decoder.getHeight()) + stride - 1)
+                        / stride);
+        int endX = Math.min(thumbnail.getWidth(),
+                (startColumn + Math.min(scaledBlockWidth, decoder.getWidth()) + stride - 1)
+                        / stride);
+        boolean colour = bands == 3 && decoder.getComponentCount() >= 3;
+        for (int y = firstY; y < endY; ++y) {
+            for (int x = firstX; x < endX; ++x) {
+                int blockX = x * stride - startColumn;
+                int blockY = y * stride - startRow;
+                if (bands == 3) {
+                    thumbnail.setRGB(x, y, decoder.getRgb(blockX, blockY, colour && yCbCr));
+                } else {
+                    thumbnail.getRaster().setSample(x, y, 0,
+                            decoder.getSample(0, blockX, blockY));
+                }
+            }
+        }
+    }
+}
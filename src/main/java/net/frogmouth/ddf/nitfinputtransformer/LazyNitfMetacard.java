@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+import ddf.catalog.data.Attribute;
+import ddf.catalog.data.Metacard;
+import ddf.catalog.data.MetacardType;
+import ddf.catalog.data.impl.AttributeImpl;
+import ddf.catalog.data.impl.MetacardImpl;
+
+/**
+ * A NITF {@link Metacard} that builds its metadata XML, location and thumbnail from the parsed
+ * headers the first time each is asked for, rather than during the transform.
+ * <p>
+ * Each value is built at most once, even when the metacard is read from several threads. All
+ * other attributes are set eagerly by the transformer as usual. The metacard serializes as a
+ * plain {@link MetacardImpl} with every value built.
+ */
+class LazyNitfMetacard extends MetacardImpl {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient LazyAttribute metadata;
+
+    private final transient LazyAttribute location;
+
+    private final transient LazyAttribute thumbnail;
+
+    LazyNitfMetacard(final NitfInputTransformer transformer,
+            final HeaderOnlyParseStrategy parsedNitf, MetacardType metacardType) {
+        super(metacardType);
+        metadata = new LazyAttribute(Metacard.METADATA) {
+            @Override
+            Serializable compute() {
+                return transformer.buildMetadata(parsedNitf);
+            }
+        };
+        location = new LazyAttribute(Metacard.GEOGRAPHY) {
+            @Override
+            Serializable compute() {
+                return transformer.buildLocation(parsedNitf);
+            }
+        };
+        thumbnail = new LazyAttribute(Metacard.THUMBNAIL) {
+            @Override
+            Serializable compute() {
+                byte[] bytes = transformer.getThumbnail(parsedNitf);
+                if (bytes == null || bytes.length == 0) {
+                    return null;
+                }
+                return bytes;
+            }
+        };
+    }
+
+    @Override
+    public Attribute getAttribute(String name) {
+        LazyAttribute lazy = getLazyAttribute(name);
+        if (lazy != null) {
+            return lazy.getAttribute();
+        }
+        return super.getAttribute(name);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        LazyAttribute lazy = getLazyAttribute(attribute.getName());
+        if (lazy != null) {
+            lazy.set(attribute.getValue());
+        } else {
+            super.setAttribute(attribute);
+        }
+    }
+
+    @Override
+    public void setAttribute(String name, Serializable value) {
+        setAttribute(new AttributeImpl(name, value));
+    }
+
+    @Override
+    public String getMetadata() {
+        return (String) metadata.get();
+    }
+
+    @Override
+    public String getLocation() {
+        return (String) location.get();
+    }
+
+    @Override
+    public byte[] getThumbnail() {
+        return (byte[]) thumbnail.get();
+    }
+
+    @Override
+    public void setMetadata(String value) {
+        metadata.set(value);
+    }
+
+    @Override
+    public void setLocation(String value) {
+        location.set(value);
+    }
+
+    @Override
+    public void setThumbnail(byte[] value) {
+        thumbnail.set(value);
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new MetacardImpl(this);
+    }
+
+    private LazyAttribute getLazyAttribute(String name) {
+        if (Metacard.METADATA.equals(name)) {
+            return metadata;
+        } else if (Metacard.GEOGRAPHY.equals(name)) {
+            return location;
+        } else if (Metacard.THUMBNAIL.equals(name)) {
+            return thumbnail;
+        }
+        return null;
+    }
+
+    private abstract static class LazyAttribute {
+
+        private final String name;
+
+        private volatile boolean built = false;
+
+        private volatile Serializable value;
+
+        LazyAttribute(String name) {
+            this.name = name;
+        }
+
+        abstract Serializable compute();
+
+        Serializable get() {
+            if (!built) {
+                synchronized (this) {
+                    if (!built) {
+                        value = compute();
+                        built = true;
+                    }
+                }
+            }
+            return value;
+        }
+
+        synchronized void set(Serializable newValue) {
+            value = newValue;
+            built = true;
+        }
+
+        Attribute getAttribute() {
+            Serializable current = get();
+            if (current == null) {
+                return null;
+            }
+            return new AttributeImpl(name, current);
+        }
+    }
+}
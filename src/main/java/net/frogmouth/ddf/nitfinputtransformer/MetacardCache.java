@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ddf.catalog.data.Attribute;
+import ddf.catalog.data.AttributeDescriptor;
+import ddf.catalog.data.Metacard;
+import ddf.catalog.data.impl.MetacardImpl;
+
+/**
+ * Maps the digest of a NITF file to the metacard built from it, so a file that is delivered
+ * again can be answered without parsing it.
+ * <p>
+ * The cache holds templates with no id, and hands out copies. It is bounded by the estimated
+ * heap the templates retain rather than by their number, since a metacard with a large
+ * thumbnail or metadata document can outweigh hundreds without; the least recently used are
+ * evicted first.
+ */
+class MetacardCache {
+
+    /**
+     * Rough heap cost of a map entry, a metacard and its attribute objects, on top of the values.
+     */
+    private static final long ENTRY_OVERHEAD = 256;
+
+    private static final long ATTRIBUTE_OVERHEAD = 64;
+
+    private final LinkedHashMap<ByteBuffer, Entry> entries =
+            new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile long maxBytes;
+
+    private long retainedBytes = 0;
+
+    MetacardCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Returns a copy of the metacard cached for {@code digest} with {@code id} applied, or null
+     * if there is none.
+     */
+    Metacard get(byte[] digest, String id) {
+        Metacard template;
+        synchronized (this) {
+            Entry entry = entries.get(ByteBuffer.wrap(digest));
+            template = entry != null ? entry.template : null;
+        }
+        if (template == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        MetacardImpl copy = new MetacardImpl(template);
+        copy.setId(id);
+        return copy;
+    }
+
+    /**
+     * Caches a copy of {@code metacard} under {@code digest}, unless it alone would fill more
+     * than a quarter of the cache.
+     */
+    void put(byte[] digest, Metacard metacard) {
+        MetacardImpl template = new MetacardImpl(metacard);
+        template.setId(null);
+        long size = estimateSize(template);
+        synchronized (this) {
+            if (size > maxBytes / 4) {
+                return;
+            }
+            Entry previous = entries.put(ByteBuffer.wrap(digest.clone()), new Entry(template, size));
+            if (previous != null) {
+                retainedBytes -= previous.size;
+            }
+            retainedBytes += size;
+            evict();
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        retainedBytes = 0;
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    void resetCounts() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (retainedBytes > maxBytes && eldest.hasNext()) {
+            retainedBytes -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Estimates the heap retained by {@code metacard}, counting strings at two bytes a
+     * character and byte arrays at their length.
+     */
+    static long estimateSize(Metacard metacard) {
+        long size = ENTRY_OVERHEAD;
+        for (AttributeDescriptor descriptor : metacard.getMetacardType().getAttributeDescriptors()) {
+            Attribute attribute = metacard.getAttribute(descriptor.getName());
+            if (attribute == null) {
+                continue;
+            }
+            size += ATTRIBUTE_OVERHEAD;
+            for (Serializable value : attribute.getValues()) {
+                if (value instanceof String) {
+                    size += 40 + 2L * ((String) value).length();
+                } else if (value instanceof byte[]) {
+                    size += 16 + ((byte[]) value).length;
+                } else {
+                    size += 24;
+                }
+            }
+        }
+        return size;
+    }
+
+    private static final class Entry {
+
+        private final Metacard template;
+
+        private final long size;
+
+        Entry(Metacard template, long size) {
+            this.template = template;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.codice.imaging.nitf.core.common.NitfDateTime;
+import org.codice.imaging.nitf.core.tre.Tre;
+import org.codice.imaging.nitf.core.tre.TreEntry;
+import org.codice.imaging.nitf.core.tre.TreGroup;
+
+/**
+ * Writes the NITF metadata XML straight into a single buffer.
+ * <p>
+ * Entry values are escaped a character at a time as they are appended, the same way
+ * {@code StringEscapeUtils.escapeXml} does, so no intermediate strings are built per field or
+ * per TRE. TRE names and values are written as they are, as they always have been.
+ * <p>
+ * TREs are expanded as far as the {@link TrePolicy} allows. One that is not allowed, or would
+ * pass a length limit, is written as {@code <tre name="..." length="..." />}, where the length
+ * is that of its field data; a TRE that passes a limit part way through is stopped there and
+ * its partial expansion dropped.
+ * <p>
+ * A writer made with {@link #fragment} writes part of a document, such as one segment, on its
+ * own thread. It applies every limit but the file's, and notes where each TRE it expanded
+ * starts and ends; {@link #append} then applies the file limit to those TREs as it copies the
+ * fragment in, so the document comes out the same as if it had been written in one piece.
+ */
+class MetadataXmlWriter {
+
+    private static final String INDENT = "  ";
+
+    private final StringBuilder xml;
+
+    private final TrePolicy trePolicy;
+
+    private final boolean fragment;
+
+    private int treBudget;
+
+    /**
+     * Start and end of each TRE expanded in a fragment, in pairs.
+     */
+    private int[] treSpans;
+
+    private Tre[] spanTres;
+
+    private int spanCount = 0;
+
+    MetadataXmlWriter(int capacity) {
+        this(capacity, TrePolicy.DEFAULT);
+    }
+
+    MetadataXmlWriter(int capacity, TrePolicy trePolicy) {
+        this(capacity, trePolicy, false);
+    }
+
+    private MetadataXmlWriter(int capacity, TrePolicy trePolicy, boolean fragment) {
+        this.xml = new StringBuilder(capacity);
+        this.trePolicy = trePolicy;
+        this.fragment = fragment;
+        this.treBudget = fragment ? Integer.MAX_VALUE : trePolicy.getMaxFileLength();
+        if (fragment) {
+            treSpans = new int[16];
+            spanTres = new Tre[8];
+        }
+    }
+
+    /**
+     * Returns a writer for part of a document, to be added to it with {@link #append}.
+     */
+    static MetadataXmlWriter fragment(int capacity, TrePolicy trePolicy) {
+        return new MetadataXmlWriter(capacity, trePolicy, true);
+    }
+
+    /**
+     * Copies {@code fragment} into this document, summarizing the TREs it expanded that would
+     * take the file past its TRE limit.
+     */
+    MetadataXmlWriter append(MetadataXmlWriter fragment) {
+        int copied = 0;
+        for (int i = 0; i < fragment.spanCount; ++i) {
+            int start = fragment.treSpans[2 * i];
+            int end = fragment.treSpans[2 * i + 1];
+            xml.append(fragment.xml, copied, start);
+            if (end - start <= treBudget) {
+                xml.append(fragment.xml, start, end);
+                treBudget -= end - start;
+            } else {
+                Tre tre = fragment.spanTres[i];
+                treSummary(tre.getName().trim(), tre);
+            }
+            copied = end;
+        }
+        xml.append(fragment.xml, copied, fragment.xml.length());
+        return this;
+    }
+
+    /**
+     * Opens the root element or a segment element, which are indented by {@code depth} levels.
+     */
+    MetadataXmlWriter startElement(String name, int depth) {
+        indent(depth);
+        xml.append('<').append(name).append(">\n");
+        return this;
+    }
+
+    MetadataXmlWriter endElement(String name, int depth) {
+        indent(depth);
+        xml.append("</").append(name).append(">\n");
+        return this;
+    }
+
+    /**
+     * Writes {@code <label>value</label>} with the value escaped. A null value is written as
+     * {@code null}.
+     */
+    MetadataXmlWriter entry(String label, String value) {
+        xml.append("    <").append(label).append('>');
+        escape(value);
+        xml.append("</").append(label).append(">\n");
+        return this;
+    }
+
+    MetadataXmlWriter entry(String label, int value) {
+        xml.append("    <").append(label).append('>').append(value);
+        xml.append("</").append(label).append(">\n");
+        return this;
+    }
+
+    MetadataXmlWriter entry(String label, long value) {
+        xml.append("    <").append(label).append('>').append(value);
+        xml.append("</").append(label).append(">\n");
+        return this;
+    }
+
+    MetadataXmlWriter entry(String label, NitfDateTime value) {
+        return entry(label, value.getSourceString());
+    }
+
+    MetadataXmlWriter entryIfNotNull(String label, String value) {
+        if (value != null) {
+            entry(label, value);
+        }
+        return this;
+    }
+
+    MetadataXmlWriter tre(Tre tre) {
+        String name = tre.getName().trim();
+        if (!trePolicy.isAllowed(name)) {
+            return treSummary(name, tre);
+        }
+        int start = xml.length();
+        // In long, as both limits are Integer.MAX_VALUE when there is none.
+        int end = (int) Math.min((long) start + Math.min(trePolicy.getMaxTreLength(), treBudget),
+                Integer.MAX_VALUE);
+        xml.append("    <tre name=\"").append(name).append("\">\n");
+        for (TreEntry entry : tre.getEntries()) {
+            if (!treEntry(entry, 2, 1, end)) {
+                xml.setLength(start);
+                return treSummary(name, tre);
+            }
+        }
+        xml.append("    </tre>\n");
+        if (xml.length() > end) {
+            xml.setLength(start);
+            return treSummary(name, tre);
+        }
+        if (fragment) {
+            addSpan(tre, start);
+        } else {
+            treBudget -= xml.length() - start;
+        }
+        return this;
+    }
+
+    private void addSpan(Tre tre, int start) {
+        if (spanCount == spanTres.length) {
+            spanTres = Arrays.copyOf(spanTres, 2 * spanCount);
+            treSpans = Arrays.copyOf(treSpans, 4 * spanCount);
+        }
+        treSpans[2 * spanCount] = start;
+        treSpans[2 * spanCount + 1] = xml.length();
+        spanTres[spanCount] = tre;
+        spanCount++;
+    }
+
+    private MetadataXmlWriter treSummary(String name, Tre tre) {
+        xml.append("    <tre name=\"").append(name).append("\" length=\"")
+                .append(getDataLength(tre.getEntries())).append("\" />\n");
+        return this;
+    }
+
+    private static long getDataLength(List<TreEntry> entries) {
+        long length = 0;
+        for (TreEntry entry : entries) {
+            if (entry.getFieldValue() != null) {
+                length += entry.getFieldValue().length();
+            }
+            if (entry.getGroups() != null) {
+                for (TreGroup group : entry.getGroups()) {
+                    length += getDataLength(group.getEntries());
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes {@code entry} and any groups under it, returning false as soon as the XML passes
+     * {@code end} characters.
+     */
+    private boolean treEntry(TreEntry entry, int depth, int groupDepth, int end) {
+        if (entry.getFieldValue() != null) {
+            indent(depth);
+            xml.append("<field name=\"").append(entry.getName()).append("\" value=\"")
+                    .append(entry.getFieldValue()).append("\" />\n");
+        }
+        if ((entry.getGroups() != null) && (!entry.getGroups().isEmpty())) {
+            indent(depth);
+            xml.append("<repeated name=\"").append(entry.getName()).append("\" number=\"")
+                    .append(entry.getGroups().size());
+            if (groupDepth > trePolicy.getMaxGroupDepth()) {
+                xml.append("\" />\n");
+                return xml.length() <= end;
+            }
+            xml.append("\">\n");
+            int i = 0;
+            for (TreGroup group : entry.getGroups()) {
+                indent(depth + 1);
+                xml.append("<group index=\"").append(i).append("\">\n");
+                for (TreEntry groupEntry : group.getEntries()) {
+                    if (!treEntry(groupEntry, depth + 2, groupDepth + 1, end)) {
+                        return false;
+                    }
+                }
+                indent(depth + 1);
+                xml.append("</group>\n");
+                i = i + 1;
+            }
+            indent(depth);
+            xml.append("</repeated>\n");
+        }
+        return xml.length() <= end;
+    }
+
+    private void indent(int depth) {
+        for (int i = 0; i < depth; ++i) {
+            xml.append(INDENT);
+        }
+    }
+
+    private void escape(String value) {
+        if (value == null) {
+            xml.append("null");
+            return;
+        }
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; ++i) {
+            String entity;
+            switch (value.charAt(i)) {
+            case '"':
+                entity = "&quot;";
+                break;
+            case '&':
+                entity = "&amp;";
+                break;
+            case '<':
+                entity = "&lt;";
+                break;
+            case '>':
+                entity = "&gt;";
+                break;
+            case '\'':
+                entity = "&apos;";
+                break;
+            default:
+                continue;
+            }
+            xml.append(value, start, i).append(entity);
+            start = i + 1;
+        }
+        xml.append(value, start, length);
+    }
+
+    int length() {
+        return xml.length();
+    }
+
+    @Override
+    public String toString() {
+        return xml.toString();
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.IOException;
+
+/**
+ * The block mask table at the start of masked (IC=NM, M3 and so on) image data.
+ */
+class NitfBlockMask {
+
+    private static final int HEADER_LENGTH = 10;
+
+    private static final long NOT_RECORDED = 0xFFFFFFFFL;
+
+    private final long pixelDataOffset;
+
+    private final long[] blockOffsets;
+
+    private NitfBlockMask(long pixelDataOffset, long[] blockOffsets) {
+        this.pixelDataOffset = pixelDataOffset;
+        this.blockOffsets = blockOffsets;
+    }
+
+    /**
+     * Reads the mask table from the start of the image data at {@code dataOffset}.
+     * {@code maskCount} is the number of blocks, times the number of bands for band sequential
+     * images.
+     */
+    static NitfBlockMask read(NitfDataSource dataSource, long dataOffset, int maskCount)
+            throws IOException {
+        byte[] header = dataSource.read(dataOffset, HEADER_LENGTH);
+        long imageDataOffset = readUnsigned(header, 0, 4);
+        int blockMaskRecordLength = (int) readUnsigned(header, 4, 2);
+        int padPixelCodeLength = (int) readUnsigned(header, 8, 2);
+        if (blockMaskRecordLength == 0) {
+            return new NitfBlockMask(dataOffset + imageDataOffset, null);
+        }
+
+        byte[] records = dataSource.read(dataOffset + HEADER_LENGTH + (padPixelCodeLength + 7) / 8,
+                maskCount * 4);
+        long[] blockOffsets = new long[maskCount];
+        for (int i = 0; i < maskCount; ++i) {
+            long offset = readUnsigned(records, i * 4, 4);
+            blockOffsets[i] = offset == NOT_RECORDED ? -1 : offset;
+        }
+        return new NitfBlockMask(dataOffset + imageDataOffset, blockOffsets);
+    }
+
+    /**
+     * Returns the offset of the first block, past the mask table.
+     */
+    long getPixelDataOffset() {
+        return pixelDataOffset;
+    }
+
+    /**
+     * Returns true if the table records where each block starts.
+     */
+    boolean hasBlockOffsets() {
+        return blockOffsets != null;
+    }
+
+    /**
+     * Returns the offset of a block from {@link #getPixelDataOffset()}, or -1 if the block is
+     * not recorded.
+     */
+    long getBlockOffset(int index) {
+        return blockOffsets[index];
+    }
+
+    static long readUnsigned(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; ++i) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
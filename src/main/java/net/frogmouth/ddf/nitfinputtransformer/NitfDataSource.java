@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to the bytes of a NITF file, used to go back for segment data that the parse
+ * strategy skipped over. Offsets are relative to the first byte of the NITF file header.
+ */
+abstract class NitfDataSource {
+
+    /**
+     * Opens a stream over {@code length} bytes starting at {@code offset}.
+     */
+    abstract InputStream open(long offset, long length) throws IOException;
+
+    /**
+     * Reads exactly {@code length} bytes starting at {@code offset} into {@code buffer}.
+     */
+    void readFully(long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+        InputStream input = open(offset, length);
+        try {
+            int total = 0;
+            while (total < length) {
+                int count = input.read(buffer, bufferOffset + total, length - total);
+                if (count < 0) {
+                    throw new EOFException("NITF data ended " + (length - total)
+                            + " bytes early at offset " + (offset + total));
+                }
+                total += count;
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes starting at {@code offset} into a new array.
+     */
+    byte[] read(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        readFully(offset, data, 0, length);
+        return data;
+    }
+
+    static NitfDataSource forChannel(final FileChannel channel, final long start) {
+        return new NitfDataSource() {
+            @Override
+            InputStream open(long offset, long length) {
+                return new ChannelInputStream(channel, start + offset, start + offset + length);
+            }
+        };
+    }
+
+    static NitfDataSource forBytes(final byte[] bytes, final int length) {
+        return new NitfDataSource() {
+            @Override
+            InputStream open(long offset, long count) {
+                int from = (int) Math.min(offset, length);
+                int to = (int) Math.min(offset + count, length);
+                return new ByteArrayInputStream(bytes, from, to - from);
+            }
+        };
+    }
+}
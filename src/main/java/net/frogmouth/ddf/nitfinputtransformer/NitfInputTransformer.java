@@ -10,34 +10,65 @@
  */
 package net.frogmouth.ddf.nitfinputtransformer;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.frogmouth.ddf.nitfinputtransformer.TransformMetrics.Phase;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang3.StringEscapeUtils;
-import org.codice.imaging.cgm.CgmParser;
-import org.codice.imaging.cgm.CgmRenderer;
-import org.codice.imaging.nitf.core.AllDataExtractionParseStrategy;
 import org.codice.imaging.nitf.core.NitfFileHeader;
 import org.codice.imaging.nitf.core.NitfFileParser;
 import org.codice.imaging.nitf.core.SlottedNitfParseStrategy;
-import org.codice.imaging.nitf.core.common.NitfDateTime;
 import org.codice.imaging.nitf.core.common.NitfInputStreamReader;
+import org.codice.imaging.nitf.core.common.NitfReader;
+import org.codice.imaging.nitf.core.dataextension.DataExtensionSegmentHeader;
 import org.codice.imaging.nitf.core.graphic.NitfGraphicSegmentHeader;
-import org.codice.imaging.nitf.core.image.ImageCoordinates;
-import org.codice.imaging.nitf.core.image.ImageCoordinatesRepresentation;
 import org.codice.imaging.nitf.core.image.NitfImageSegmentHeader;
 import org.codice.imaging.nitf.core.label.LabelSegmentHeader;
 import org.codice.imaging.nitf.core.security.FileSecurityMetadata;
@@ -46,23 +77,15 @@ import org.codice.imaging.nitf.core.symbol.SymbolSegmentHeader;
 import org.codice.imaging.nitf.core.text.TextSegmentHeader;
 import org.codice.imaging.nitf.core.tre.Tre;
 import org.codice.imaging.nitf.core.tre.TreCollection;
-import org.codice.imaging.nitf.core.tre.TreEntry;
-import org.codice.imaging.nitf.core.tre.TreGroup;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LinearRing;
-import com.vividsolutions.jts.geom.MultiPolygon;
-import com.vividsolutions.jts.geom.Polygon;
-import com.vividsolutions.jts.geom.PrecisionModel;
-
 import ddf.catalog.CatalogFramework;
 import ddf.catalog.data.Metacard;
+import ddf.catalog.data.MetacardType;
 import ddf.catalog.data.impl.AttributeImpl;
 import ddf.catalog.data.impl.MetacardImpl;
 import ddf.catalog.transform.CatalogTransformerException;
@@ -75,16 +98,109 @@ public class NitfInputTransformer implements InputTransformer {
 
     private static final String ID = "nitf";
 
-    private static final String MIME_TYPE = "image/nitf";
+    static final String MIME_TYPE = "image/nitf";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(NitfInputTransformer.class);
 
     private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormat.
             forPattern("yyyyMMddHHmmss").withZone(DateTimeZone.UTC);
 
+    private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Largest buffer allocated up front for the file length a header declares; longer input
+     * grows the buffer as it is read, so a header can't claim more heap than this.
+     */
+    private static final int MAX_PRESIZED_BUFFER = 16 * 1024 * 1024;
+
+    private static final int DEFAULT_THUMBNAIL_MAX_SIZE = 256;
+
+    private static final int DEFAULT_MAX_TRE_ATTRIBUTES = 2000;
+
+    private static final int DEFAULT_FOOTPRINT_MAX_VERTICES = 64;
+
+    private static final long DEFAULT_CACHE_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static final long DEFAULT_THUMBNAIL_CACHE_MAX_BYTES = 4L * 1024 * 1024;
+
+    private static final int DEFAULT_INTERN_MAX_ENTRIES = 4096;
+
+    private static final long DEFAULT_HEAP_BUDGET_BYTES = 256L * 1024 * 1024;
+
+    private static final long DEFAULT_SPILL_THRESHOLD_BYTES = 64L * 1024 * 1024;
+
+    private static final long DEFAULT_HEAP_BUDGET_WAIT_MILLIS = 30000;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final String DEFAULT_TRE_MAPPING = "/nitf-tre-mapping.properties";
+
+    private static final long TRE_MAPPING_CHECK_INTERVAL_MILLIS = 10 * 1000;
+
+    private static final String METRICS_OBJECT_NAME =
+            "net.frogmouth.ddf.nitfinputtransformer:type=NitfTransformerMetrics";
 
     private CatalogFramework mCatalog;
 
+    private boolean lazyMetacards = false;
+
+    private int batchParallelism = 0;
+
+    private ExecutorService batchExecutor;
+
+    private volatile boolean parallelSegments = false;
+
+    private volatile int thumbnailMaxSize = DEFAULT_THUMBNAIL_MAX_SIZE;
+
+    private volatile ThumbnailEncoder thumbnailEncoder = new ThumbnailEncoder(
+            ThumbnailEncoder.DEFAULT_QUALITY);
+
+    private Executor asyncExecutor;
+
+    private ExecutorService ownedAsyncExecutor;
+
+    private volatile Map<Phase, Long> phaseBudgets = Collections.emptyMap();
+
+    private ForkJoinPool segmentPool;
+
+    private boolean destroyed = false;
+
+    private final MetacardCache metacardCache = new MetacardCache(DEFAULT_CACHE_MAX_BYTES);
+
+    private final ThumbnailCache thumbnailCache = new ThumbnailCache(
+            DEFAULT_THUMBNAIL_CACHE_MAX_BYTES);
+
+    private final AttributeInterner interner = new AttributeInterner(DEFAULT_INTERN_MAX_ENTRIES);
+
+    private final HeapBudget heapBudget = new HeapBudget(DEFAULT_HEAP_BUDGET_BYTES);
+
+    private volatile long spillThresholdBytes = DEFAULT_SPILL_THRESHOLD_BYTES;
+
+    private volatile long heapBudgetWaitMillis = DEFAULT_HEAP_BUDGET_WAIT_MILLIS;
+
+    private volatile Path spillDirectory;
+
+    private final TransformMetrics metrics = new TransformMetrics(metacardCache,
+            thumbnailCache, interner, heapBudget);
+
+    private ObjectName metricsObjectName;
+
+    private volatile TrePolicy trePolicy = TrePolicy.DEFAULT;
+
+    private volatile FootprintBuilder footprintBuilder = new FootprintBuilder(
+            FootprintBuilder.Mode.SEGMENTS, DEFAULT_FOOTPRINT_MAX_VERTICES, metrics);
+
+    private final TreAttributeRegistry treAttributes = new TreAttributeRegistry(
+            NitfMetacardType.getInstance(), DEFAULT_MAX_TRE_ATTRIBUTES);
+
+    private volatile TreMapping treMapping;
+
+    private String treMappingFile = "";
+
+    private long treMappingModified;
+
+    private volatile long nextTreMappingCheck;
+
     /**
      * Transforms NITF images into a {@link Metacard}
      */
@@ -94,537 +210,1839 @@ public class NitfInputTransformer implements InputTransformer {
 
     public Metacard transform(InputStream input, String id)
             throws IOException, CatalogTransformerException {
+        return transform(input, id, newControl(), null);
+    }
+
+    /**
+     * Transforms {@code input} into a metacard for the file followed by a child metacard for
+     * each of its image segments, built in parallel. Each child has the footprint, size,
+     * bands, compression and security of its own segment, and metadata describing only that
+     * segment; the file's metacard describes the other segments. Children take the id of the
+     * file's metacard, if one is given, with the segment index appended, and record it as their
+     * {@link NitfMetacardType#PARENT_ID}.
+     */
+    public List<Metacard> transformSegments(InputStream input, String id)
+            throws IOException, CatalogTransformerException {
+        List<Metacard> metacards = new ArrayList<Metacard>();
+        Metacard parent = transform(input, id, newControl(), metacards);
+        metacards.add(0, parent);
+        return metacards;
+    }
+
+    /**
+     * Transforms {@code input}, adding a child metacard for each image segment to
+     * {@code children} if it isn't null.
+     */
+    private Metacard transform(InputStream input, String id, TransformControl control,
+            List<Metacard> children) throws IOException, CatalogTransformerException {
         if (input == null) {
             throw new CatalogTransformerException("Cannot transform null input.");
         }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        IOUtils.copy(input, baos);
+        if (input instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) input).getChannel();
+            LOGGER.debug("Reading file backed input through its channel");
+            return transform(channel, id, metrics.startTimer(id,
+                    channel.size() - channel.position()), control, children);
+        }
 
-        MetacardImpl metacard = new MetacardImpl(new NitfMetacardType());
+        TransformMetrics.Timer timer = metrics.startTimer(id, 0);
+        // Lazy metacards can't be copied without building everything they defer, so they
+        // aren't cached.
+        MessageDigest digest = metacardCache.isEnabled() && !lazyMetacards && children == null
+                ? newDigest() : null;
+        InputSpool spool = null;
+        long reserved = 0;
         try {
-            SlottedNitfParseStrategy parsingStrategy = new AllDataExtractionParseStrategy();
-
-            NitfFileParser.parse(
-                    new NitfInputStreamReader(new ByteArrayInputStream(baos.toByteArray())),
-                    parsingStrategy);
+            try {
+                control.startPhase(Phase.READ);
+                InputStream source = control.wrap(digest != null
+                        ? new DigestInputStream(input, digest) : input);
+                // Check the header before committing to buffering the whole input.
+                byte[] leading = new byte[SniffedNitfHeader.SNIFF_LENGTH];
+                int leadingLength = SniffedNitfHeader.readFully(source, leading);
+                SniffedNitfHeader header = SniffedNitfHeader.read(leading, leadingLength);
 
-            metacard.setCreatedDate(getDateTime(parsingStrategy.getNitfHeader()));
-            // TODO: modified date from HISTOA?
-            metacard.setTitle(parsingStrategy.getNitfHeader().getFileTitle());
-
-            setAttributes(parsingStrategy, metacard);
-
-            setLocation(parsingStrategy, metacard);
+                // Input expected to fit under the spill threshold is held on the heap, within
+                // the heap budget; anything larger, including input that runs past the length
+                // its header declares, goes to a file.
+                long memoryLimit = getMemoryLimit();
+                long expected = header.isFileLengthKnown()
+                        ? Math.max(header.getFileLength(), leadingLength) : memoryLimit;
+                if (expected <= memoryLimit) {
+                    reserveHeap(expected);
+                    reserved = expected;
+                }
+                spool = new InputSpool((int) Math.min(reserved, MAX_PRESIZED_BUFFER), reserved,
+                        spillDirectory);
+                control.releaseOnCancel(spool::release);
+                spool.write(leading, 0, leadingLength);
+                IOUtils.copy(source, spool);
+                control.endPhase();
+            } catch (IOException | CatalogTransformerException e) {
+                timer.failed();
+                throw e;
+            }
+            timer.setBytes(spool.size());
+            timer.lap(Phase.READ);
+            if (spool.isSpilled()) {
+                metrics.recordSpill();
+                heapBudget.release(reserved);
+                reserved = 0;
+            }
 
-            setMetadata(parsingStrategy, metacard);
+            byte[] contentDigest = null;
+            if (digest != null) {
+                contentDigest = digest.digest();
+                // A changed mapping file clears the cache as it is reloaded, so check it first.
+                getTreMapping();
+                Metacard cached = metacardCache.get(contentDigest, id);
+                if (cached != null) {
+                    LOGGER.debug("Transformed a copy of a NITF file already seen");
+                    return cached;
+                }
+            }
 
-            if (id != null) {
-                metacard.setId(id);
+            Metacard metacard;
+            if (spool.isSpilled()) {
+                metacard = transform(spool.toChannel(), id, timer, control, children);
             } else {
-                metacard.setId(null);
+                metacard = transform(
+                        new NitfInputStreamReader(control.wrap(spool.toInputStream())),
+                        spool.toDataSource(), id, timer, control, children);
             }
-
-            metacard.setContentTypeName(MIME_TYPE);
-
-            byte[] thumbnail = getThumbnail(parsingStrategy);
-
-            if (thumbnail != null && thumbnail.length > 0) {
-                metacard.setThumbnail(thumbnail);
+            // A metacard missing its thumbnail for time would stand in for a complete one.
+            if (contentDigest != null && !control.isDegraded()) {
+                metacardCache.put(contentDigest, metacard);
+            }
+            return metacard;
+        } finally {
+            heapBudget.release(reserved);
+            if (spool != null) {
+                spool.close();
             }
-        } catch (ParseException e) {
-            LOGGER.warn("ParseException processing NITF file", e);
-            throw new CatalogTransformerException(e);
         }
-
-        return metacard;
     }
 
-    protected Date getDateTime(NitfFileHeader fileHeader) {
-
-        return DATE_TIME_FORMATTER.parseDateTime(fileHeader.getFileDateTime()
-                .getSourceString()).toDate();
+    /**
+     * Returns the most input to hold on the heap rather than spill to a file.
+     */
+    private long getMemoryLimit() {
+        long budget = heapBudget.getMaxBytes();
+        return budget > 0 ? Math.min(spillThresholdBytes, budget) : spillThresholdBytes;
     }
 
-    protected byte[] getThumbnail(SlottedNitfParseStrategy slottedNitf) {
-
-        if (slottedNitf.getGraphicSegmentHeaders().isEmpty()) {
-            LOGGER.debug("Loaded file, but found no graphic segments.");
-            return null;
-        }
+    /**
+     * Reserves {@code bytes} of the heap budget, waiting for other transforms to finish with
+     * theirs if need be.
+     *
+     * @throws TransformRejectedException if they don't within the budget wait
+     */
+    private void reserveHeap(long bytes) throws IOException, CatalogTransformerException {
         try {
-            NitfGraphicSegmentHeader segment = slottedNitf.getGraphicSegmentHeaders().get(0);
-            CgmParser parser = new CgmParser(slottedNitf.getGraphicSegmentData().get(0));
-            parser.buildCommandList();
-
-            if (segment.getBoundingBox2Column() > 0 && segment.getBoundingBox2Row() > 0) {
-                BufferedImage targetImage = new BufferedImage(segment.getBoundingBox2Column(),
-                        segment.getBoundingBox2Row(), BufferedImage.TYPE_INT_ARGB);
-                CgmRenderer renderer = new CgmRenderer();
-                renderer.setTargetImageGraphics((Graphics2D) targetImage.getGraphics(),
-                        segment.getBoundingBox2Column(), segment.getBoundingBox2Row());
-                renderer.render(parser.getCommandList());
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ImageIO.write(targetImage, "jpg", baos);
-                return baos.toByteArray();
-            } else {
-                LOGGER.debug("No image to generate");
+            if (!heapBudget.acquire(bytes, heapBudgetWaitMillis)) {
+                throw new TransformRejectedException("NITF transformer is holding "
+                        + heapBudget.getUsedBytes() + " of its " + heapBudget.getMaxBytes()
+                        + " byte heap budget for other input, and " + bytes
+                        + " bytes didn't come free within " + heapBudgetWaitMillis
+                        + " ms; retry later");
             }
-        } catch (IOException e) {
-            LOGGER.debug("Failed to parse image from nitf", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the NITF heap budget");
         }
-        return null;
     }
 
-    private void setAttributes(SlottedNitfParseStrategy slottedNitf, MetacardImpl metacard) {
+    /**
+     * Transforms {@code input} on the async executor, reading it there too; the caller closes
+     * {@code input} once the returned future completes.
+     * <p>
+     * Cancelling the future stops the transform the next time it reads its input or starts a
+     * phase, and releases the buffered copy of the input at once. A transform that runs past a
+     * phase time budget fails, except that one whose thumbnail runs over completes without a
+     * thumbnail.
+     */
+    public CompletableFuture<Metacard> transformAsync(final InputStream input, final String id) {
+        return submitAsync(control -> transform(input, id, control, null));
+    }
 
-        NitfFileHeader fileHeader = slottedNitf.getNitfHeader();
+    /**
+     * Transforms the NITF file at {@code path} on the async executor, as
+     * {@link #transformAsync(InputStream, String)} does.
+     */
+    public CompletableFuture<Metacard> transformAsync(final Path path, final String id) {
+        return submitAsync(control -> transform(path, id, control, null));
+    }
 
-        // TODO: The Attributes should be obtained from the Nitf library more elegantly.  There's
-        // no null checking and it requires explicit object knowledge to obtain an attribute.
-        metacard.setAttribute(
-                new AttributeImpl(NitfMetacardType.NITF_VERSION, fileHeader.getFileType()));
-        if (fileHeader.getFileDateTime() != null) {
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.FILE_DATE_TIME,
-                    getDateTime(fileHeader)));
-            metacard.setModifiedDate(getDateTime(fileHeader));
-        } else {
-            Date now = new Date();
-            metacard.setModifiedDate(now);
-            metacard.setCreatedDate(now);
-            metacard.setEffectiveDate(now);
+    private CompletableFuture<Metacard> submitAsync(final AsyncTransform transform) {
+        final TransformControl control = new TransformControl(phaseBudgets);
+        final CompletableFuture<Metacard> result = new CompletableFuture<>();
+        result.whenComplete((metacard, failure) -> {
+            if (result.isCancelled()) {
+                control.cancel();
+            }
+        });
+        try {
+            getAsyncExecutor().execute(() -> {
+                if (result.isDone()) {
+                    // Cancelled before it started.
+                    return;
+                }
+                control.enter();
+                try {
+                    result.complete(transform.run(control));
+                } catch (Exception | Error e) {
+                    if (!control.isCancelled()) {
+                        result.completeExceptionally(e);
+                    }
+                } finally {
+                    control.exit();
+                }
+            });
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            result.completeExceptionally(e);
         }
+        return result;
+    }
 
-        metacard.setAttribute(
-                new AttributeImpl(NitfMetacardType.FILE_TITLE, fileHeader.getFileTitle()));
-        metacard.setTitle(fileHeader.getFileTitle());
-        //        metacard.setAttribute(new AttributeImpl(NitfMetacardType.FILE_SIZE,
-        //                nitfFile.));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.COMPLEXITY_LEVEL,
-                fileHeader.getComplexityLevel()));
-        metacard.setAttribute(
-                new AttributeImpl(NitfMetacardType.ORIGINATOR_NAME, fileHeader.getOriginatorsName()));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.ORIGINATING_STATION_ID,
-                fileHeader.getOriginatingStationId()));
-        if (!slottedNitf.getImageSegmentHeaders().isEmpty()) {
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.IMAGE_ID,
-                    slottedNitf.getImageSegmentHeaders().get(0).getImageIdentifier2()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.ISOURCE,
-                    slottedNitf.getImageSegmentHeaders().get(0).getImageSource()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.NUMBER_OF_ROWS,
-                    slottedNitf.getImageSegmentHeaders().get(0).getNumberOfRows()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.NUMBER_OF_COLUMNS,
-                    slottedNitf.getImageSegmentHeaders().get(0).getNumberOfColumns()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.NUMBER_OF_BANDS,
-                    slottedNitf.getImageSegmentHeaders().get(0).getNumBands()));
-            //        metacard.setAttribute(new AttributeImpl(NitfMetacardType.NUMBER_OF_MULTISPECTRAL_BANDS,
-            //                nitfFile.getImageSegments().get(0).getNum()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.REPRESENTATION,
-                    slottedNitf.getImageSegmentHeaders().get(0).getImageRepresentation()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.SUBCATEGORY,
-                    slottedNitf.getImageSegmentHeaders().get(0).getImageCategory()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.BITS_PER_PIXEL_PER_BAND,
-                    slottedNitf.getImageSegmentHeaders().get(0).getNumberOfBitsPerPixelPerBand()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.IMAGE_MODE,
-                    slottedNitf.getImageSegmentHeaders().get(0).getImageMode()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.COMPRESSION,
-                    slottedNitf.getImageSegmentHeaders().get(0).getImageCompression()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.RATE_CODE,
-                    slottedNitf.getImageSegmentHeaders().get(0).getCompressionRate()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.TARGET_ID,
-                    slottedNitf.getImageSegmentHeaders().get(0).getImageTargetId().toString()));
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.COMMENT, Arrays.toString(
-                    slottedNitf.getImageSegmentHeaders().get(0).getImageComments().toArray())));
-        }
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.CODE_WORDS,
-                fileHeader.getFileSecurityMetadata().getCodewords()));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.CONTROL_CODE,
-                fileHeader.getFileSecurityMetadata().getControlAndHandling()));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.RELEASE_INSTRUCTION,
-                fileHeader.getFileSecurityMetadata().getReleaseInstructions()));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.CONTROL_NUMBER,
-                fileHeader.getFileSecurityMetadata().getSecurityControlNumber()));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.CLASSIFICATION_SYSTEM,
-                fileHeader.getFileSecurityMetadata().getSecurityClassificationSystem()));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.CLASSIFICATION_AUTHORITY,
-                fileHeader.getFileSecurityMetadata().getClassificationAuthority()));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.CLASSIFICATION_AUTHORITY_TYPE,
-                fileHeader.getFileSecurityMetadata().getClassificationAuthorityType()));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.CLASSIFICATION_TEXT,
-                fileHeader.getFileSecurityMetadata().getSecurityClassificationSystem()));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.CLASSIFICATION_REASON,
-                fileHeader.getFileSecurityMetadata().getClassificationReason()));
-        if (StringUtils.isNotEmpty(fileHeader.getFileSecurityMetadata().getSecuritySourceDate())) {
-            // TODO convert to Date
-            metacard.setAttribute(new AttributeImpl(NitfMetacardType.CLASSIFICATION_DATE,
-                    fileHeader.getFileSecurityMetadata().getSecuritySourceDate()));
-        }
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.DECLASSIFICATION_TYPE,
-                fileHeader.getFileSecurityMetadata().getDeclassificationType()));
-        metacard.setAttribute(new AttributeImpl(NitfMetacardType.DECLASSIFICATION_DATE,
-                fileHeader.getFileSecurityMetadata().getDeclassificationDate()));
-        // TODO: add the TRE's as attributes to the MetacardType Dynamically?
+    private interface AsyncTransform {
+        Metacard run(TransformControl control) throws IOException, CatalogTransformerException;
     }
 
-    private void setLocation(SlottedNitfParseStrategy slottedNitf, MetacardImpl metacard) {
+    /**
+     * Returns a control holding a transform to the phase time budgets, or one that does
+     * nothing if there are none.
+     */
+    private TransformControl newControl() {
+        Map<Phase, Long> budgets = phaseBudgets;
+        return budgets.isEmpty() ? TransformControl.NONE : new TransformControl(budgets);
+    }
 
-        GeometryFactory geomFactory = new GeometryFactory(
-                new PrecisionModel(com.vividsolutions.jts.geom.PrecisionModel.FLOATING), 4326);
-        if (slottedNitf.getImageSegmentHeaders().isEmpty()) {
-            return;
+    private synchronized Executor getAsyncExecutor() {
+        if (destroyed) {
+            throw new IllegalStateException("NITF transformer has been destroyed.");
         }
-        if (slottedNitf.getImageSegmentHeaders().size() == 1) {
-            NitfImageSegmentHeader segment = slottedNitf.getImageSegmentHeaders().get(0);
-            if (segment == null) {
-                return;
-            }
-            // TODO: add more coordinate support
-            // TODO: handle case where its really a point.
-            if ((segment.getImageCoordinatesRepresentation()
-                    == ImageCoordinatesRepresentation.GEOGRAPHIC) || (
-                    segment.getImageCoordinatesRepresentation()
-                            == ImageCoordinatesRepresentation.DECIMALDEGREES)) {
-                Polygon polygon = getPolygonForSegment(segment, geomFactory);
-                metacard.setLocation(polygon.toText());
-            } else if (segment.getImageCoordinatesRepresentation()
-                    != ImageCoordinatesRepresentation.NONE) {
-                System.out.println("Unsupported representation:" + segment
-                        .getImageCoordinatesRepresentation());
-            }
-        } else {
-            List<Polygon> polygons = new ArrayList<Polygon>();
-            for (NitfImageSegmentHeader segment : slottedNitf.getImageSegmentHeaders()) {
-                if ((segment.getImageCoordinatesRepresentation()
-                        == ImageCoordinatesRepresentation.GEOGRAPHIC) || (
-                        segment.getImageCoordinatesRepresentation()
-                                == ImageCoordinatesRepresentation.DECIMALDEGREES)) {
-                    polygons.add(getPolygonForSegment(segment, geomFactory));
-                } else if (segment.getImageCoordinatesRepresentation()
-                        != ImageCoordinatesRepresentation.NONE) {
-                    System.out.println("Unsupported representation:" + segment
-                            .getImageCoordinatesRepresentation());
-                }
-            }
-            Polygon[] polyAry = polygons.toArray(new Polygon[0]);
-            MultiPolygon multiPolygon = geomFactory.createMultiPolygon(polyAry);
-            metacard.setLocation(multiPolygon.toText());
+        if (asyncExecutor == null) {
+            ownedAsyncExecutor = newAsyncExecutor();
+            asyncExecutor = ownedAsyncExecutor;
         }
+        return asyncExecutor;
     }
 
-    private Polygon getPolygonForSegment(NitfImageSegmentHeader segment, GeometryFactory geomFactory) {
-        Coordinate[] coords = new Coordinate[5];
-        ImageCoordinates imageCoordinates = segment.getImageCoordinates();
-        coords[0] = new Coordinate(imageCoordinates.getCoordinate00().getLongitude(),
-                imageCoordinates.getCoordinate00().getLatitude());
-        coords[4] = new Coordinate(coords[0]);
-        coords[1] = new Coordinate(imageCoordinates.getCoordinate0MaxCol().getLongitude(),
-                imageCoordinates.getCoordinate0MaxCol().getLatitude());
-        coords[2] = new Coordinate(imageCoordinates.getCoordinateMaxRowMaxCol().getLongitude(),
-                imageCoordinates.getCoordinateMaxRowMaxCol().getLatitude());
-        coords[3] = new Coordinate(imageCoordinates.getCoordinateMaxRow0().getLongitude(),
-                imageCoordinates.getCoordinateMaxRow0().getLatitude());
-        LinearRing externalRing = geomFactory.createLinearRing(coords);
-        return geomFactory.createPolygon(externalRing, null);
+    /**
+     * Returns an executor starting a virtual thread per task where the JVM has them, or else a
+     * pool of two daemon threads per processor.
+     */
+    private static ExecutorService newAsyncExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            LOGGER.debug("Running async transforms on virtual threads");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.debug("Virtual threads unavailable, running async transforms on a pool");
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors(),
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "nitf-async-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
     }
 
-    private void setMetadata(SlottedNitfParseStrategy slottedNitf, MetacardImpl metacard) {
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
 
-        NitfFileHeader fileHeader = slottedNitf.getNitfHeader();
+    /**
+     * Transforms the NITF file at {@code path} into a {@link Metacard}, reading it through a
+     * {@link FileChannel} rather than buffering it in memory.
+     */
+    public Metacard transform(Path path, String id) throws IOException, CatalogTransformerException {
+        return transform(path, id, newControl(), null);
+    }
 
-        // TODO: update to XStream or some xml streaming library to create this metadata
-        StringBuilder metadataXml = new StringBuilder();
-        metadataXml.append("<metadata>\n");
-        metadataXml.append("  <file>\n");
-        metadataXml.append(buildMetadataEntry("fileType", fileHeader.getFileType().toString()));
-        metadataXml.append(buildMetadataEntry("complexityLevel", fileHeader.getComplexityLevel()));
-        metadataXml.append(buildMetadataEntry("originatingStationId",
-                fileHeader.getOriginatingStationId()));
-        metadataXml.append(buildMetadataEntry("fileDateTime", fileHeader.getFileDateTime()));
-        metadataXml.append(buildMetadataEntry("fileTitle", fileHeader.getFileTitle()));
-        addFileSecurityMetadata(metadataXml, fileHeader);
-        if (fileHeader.getFileBackgroundColour() != null) {
-            metadataXml.append(buildMetadataEntry("fileBackgroundColour",
-                    fileHeader.getFileBackgroundColour().toString()));
-        }
-        metadataXml.append(buildMetadataEntry("originatorsName", fileHeader.getOriginatorsName()));
-        metadataXml.append(buildMetadataEntry("originatorsPhoneNumber",
-                fileHeader.getOriginatorsPhoneNumber()));
-        metadataXml.append(buildTREsMetadata(fileHeader.getTREsRawStructure()));
-        metadataXml.append("  </file>\n");
-        for (NitfImageSegmentHeader image : slottedNitf.getImageSegmentHeaders()) {
-            metadataXml.append("  <image>\n");
-            metadataXml.append(buildMetadataEntry("imageIdentifer1", image.getIdentifier()));
-            metadataXml.append(buildMetadataEntry("imageDateTime", image.getImageDateTime()));
-            metadataXml.append(buildMetadataEntry("imageBasicEncyclopediaNumber",
-                    image.getImageTargetId().getBasicEncyclopediaNumber().trim()));
-            metadataXml.append(buildMetadataEntry("imageOSuffix",
-                    image.getImageTargetId().getOSuffix().trim()));
-            metadataXml.append(buildMetadataEntry("imageCountryCode",
-                    image.getImageTargetId().getCountryCode().trim()));
-            metadataXml.append(buildMetadataEntry("imageIdentifer2", image.getImageIdentifier2()));
-            addSecurityMetadata(metadataXml, image.getSecurityMetadata());
-            metadataXml.append(buildMetadataEntry("imageSource", image.getImageSource()));
-            metadataXml.append(buildMetadataEntry("numberOfRows", image.getNumberOfRows()));
-            metadataXml.append(buildMetadataEntry("numberOfColumns", image.getNumberOfColumns()));
-            metadataXml.append(buildMetadataEntry("pixelValueType",
-                    image.getPixelValueType().toString()));
-            metadataXml.append(buildMetadataEntry("imageRepresentation",
-                    image.getImageRepresentation().toString()));
-            metadataXml.append(buildMetadataEntry("imageCategory",
-                    image.getImageCategory().toString()));
-            metadataXml.append(buildMetadataEntry("actualBitsPerPixelPerBand",
-                    image.getActualBitsPerPixelPerBand()));
-            metadataXml.append(buildMetadataEntry("pixelJustification",
-                    image.getPixelJustification().toString()));
-            metadataXml.append(buildMetadataEntry("imageCoordinatesRepresentation",
-                    image.getImageCoordinatesRepresentation().toString()));
-            for (String comment : image.getImageComments()) {
-                metadataXml.append(buildMetadataEntry("imageComment", comment));
-            }
-            metadataXml.append(buildMetadataEntry("imageCompression",
-                    image.getImageCompression().toString()));
-            metadataXml.append(buildMetadataEntry("compressionRate", image.getCompressionRate()));
-            metadataXml.append(buildMetadataEntry("imageMode", image.getImageMode().toString()));
-            metadataXml.append(buildMetadataEntry("numberOfBlocksPerRow",
-                    image.getNumberOfBlocksPerRow()));
-            metadataXml.append(buildMetadataEntry("numberOfBlocksPerColumn",
-                    image.getNumberOfBlocksPerColumn()));
-            metadataXml.append(buildMetadataEntry("numberOfPixelsPerBlockHorizontal",
-                    image.getNumberOfPixelsPerBlockHorizontal()));
-            metadataXml.append(buildMetadataEntry("numberOfPixelsPerBlockVertical",
-                    image.getNumberOfPixelsPerBlockVertical()));
-            metadataXml.append(buildMetadataEntry("numberOfBitsPerPixelPerBand",
-                    image.getNumberOfBitsPerPixelPerBand()));
-            metadataXml
-                    .append(buildMetadataEntry("imageDisplayLevel", image.getImageDisplayLevel()));
-            metadataXml
-                    .append(buildMetadataEntry("imageAttachmentLevel", image.getAttachmentLevel()));
-            metadataXml.append(buildMetadataEntry("imageLocationRow", image.getImageLocationRow()));
-            metadataXml.append(buildMetadataEntry("imageLocationColumn",
-                    image.getImageLocationColumn()));
-            if (image.getImageMagnification() != null) {
-                metadataXml.append(buildMetadataEntry("imageMagnification",
-                        image.getImageMagnification()));
-            }
-            if (image.getImageCoordinates() != null) {
-                metadataXml.append(buildMetadataEntry("imageCoordinates",
-                        image.getImageCoordinates().toString()));
-            }
-            metadataXml.append(buildTREsMetadata(image.getTREsRawStructure()));
-            metadataXml.append("  </image>\n");
-        }
-        for (NitfGraphicSegmentHeader graphic : slottedNitf.getGraphicSegmentHeaders()) {
-            metadataXml.append("  <graphic>\n");
-            metadataXml.append(buildMetadataEntry("graphicIdentifier", graphic.getIdentifier()));
-            metadataXml.append(buildMetadataEntry("graphicName", graphic.getGraphicName()));
-            addSecurityMetadata(metadataXml, graphic.getSecurityMetadata());
-            metadataXml.append(buildMetadataEntry("graphicDisplayLevel",
-                    graphic.getGraphicDisplayLevel()));
-            metadataXml.append(buildMetadataEntry("graphicAttachmentLevel",
-                    graphic.getAttachmentLevel()));
-            metadataXml.append(buildMetadataEntry("graphicLocationRow",
-                    graphic.getGraphicLocationRow()));
-            metadataXml.append(buildMetadataEntry("graphicLocationColumn",
-                    graphic.getGraphicLocationColumn()));
-            metadataXml.append(buildMetadataEntry("graphicBoundingBox1Row",
-                    graphic.getBoundingBox1Row()));
-            metadataXml.append(buildMetadataEntry("graphicBoundingBox1Column",
-                    graphic.getBoundingBox1Column()));
-            metadataXml.append(buildMetadataEntry("graphicBoundingBox2Row",
-                    graphic.getBoundingBox2Row()));
-            metadataXml.append(buildMetadataEntry("graphicBoundingBox2Column",
-                    graphic.getBoundingBox2Column()));
-            metadataXml.append(buildMetadataEntry("graphicColour",
-                    graphic.getGraphicColour().toString()));
-            metadataXml.append(buildTREsMetadata(graphic.getTREsRawStructure()));
-            metadataXml.append("  </graphic>\n");
-        }
-        for (SymbolSegmentHeader symbol : slottedNitf.getSymbolSegmentHeaders()) {
-            metadataXml.append("  <symbol>\n");
-            metadataXml.append(buildMetadataEntry("symbolIdentifier", symbol.getIdentifier()));
-            metadataXml.append(buildMetadataEntry("symbolName", symbol.getSymbolName()));
-            addSecurityMetadata(metadataXml, symbol.getSecurityMetadata());
-            metadataXml.append(buildMetadataEntry("symbolType", symbol.getSymbolType().toString()));
-            metadataXml.append(buildMetadataEntry("symbolColour",
-                    symbol.getSymbolColour().toString()));
-            metadataXml.append(buildMetadataEntry("numberOfLinesPerSymbol",
-                    symbol.getNumberOfLinesPerSymbol()));
-            metadataXml.append(buildMetadataEntry("numberOfPixelsPerLine",
-                    symbol.getNumberOfPixelsPerLine()));
-            metadataXml.append(buildMetadataEntry("lineWidth", symbol.getLineWidth()));
-            metadataXml.append(buildMetadataEntry("numberOfBitsPerPixel",
-                    symbol.getNumberOfBitsPerPixel()));
-            metadataXml.append(buildMetadataEntry("symbolDisplayLevel",
-                    symbol.getSymbolDisplayLevel()));
-            metadataXml.append(buildMetadataEntry("symbolAttachmentLevel",
-                    symbol.getAttachmentLevel()));
-            metadataXml
-                    .append(buildMetadataEntry("symbolLocationRow", symbol.getSymbolLocationRow()));
-            metadataXml.append(buildMetadataEntry("symbolLocationColumn",
-                    symbol.getSymbolLocationColumn()));
-            metadataXml.append(buildMetadataEntry("symbolLocation2Row",
-                    symbol.getSymbolLocation2Row()));
-            metadataXml.append(buildMetadataEntry("symbolLocation2Column",
-                    symbol.getSymbolLocation2Column()));
-            metadataXml.append(buildMetadataEntry("symbolNumber", symbol.getSymbolNumber()));
-            metadataXml.append(buildMetadataEntry("symbolRotation", symbol.getSymbolRotation()));
-            metadataXml.append(buildTREsMetadata(symbol.getTREsRawStructure()));
-            metadataXml.append("  </symbol>\n");
-        }
-        for (LabelSegmentHeader label : slottedNitf.getLabelSegmentHeaders()) {
-            metadataXml.append("  <label>\n");
-            metadataXml.append(buildMetadataEntry("labelIdentifier", label.getIdentifier()));
-            addSecurityMetadata(metadataXml, label.getSecurityMetadata());
-            metadataXml.append(buildMetadataEntry("labelLocationRow", label.getLabelLocationRow()));
-            metadataXml.append(buildMetadataEntry("labelLocationColumn",
-                    label.getLabelLocationColumn()));
-            metadataXml.append(buildMetadataEntry("labelCellWidth", label.getLabelCellWidth()));
-            metadataXml.append(buildMetadataEntry("labelCellHeight", label.getLabelCellHeight()));
-            metadataXml
-                    .append(buildMetadataEntry("labelDisplayLevel", label.getLabelDisplayLevel()));
-            metadataXml
-                    .append(buildMetadataEntry("labelAttachmentLevel", label.getAttachmentLevel()));
-            metadataXml.append(buildMetadataEntry("labelTextColour",
-                    label.getLabelTextColour().toString()));
-            metadataXml.append(buildMetadataEntry("labelBackgroundColour",
-                    label.getLabelBackgroundColour().toString()));
-            metadataXml.append(buildTREsMetadata(label.getTREsRawStructure()));
-            metadataXml.append("  </label>\n");
+    /**
+     * Transforms the NITF file at {@code path} into a metacard for the file followed by one for
+     * each image segment, as {@link #transformSegments(InputStream, String)} does.
+     */
+    public List<Metacard> transformSegments(Path path, String id)
+            throws IOException, CatalogTransformerException {
+        List<Metacard> metacards = new ArrayList<Metacard>();
+        Metacard parent = transform(path, id, newControl(), metacards);
+        metacards.add(0, parent);
+        return metacards;
+    }
+
+    private Metacard transform(Path path, String id, TransformControl control,
+            List<Metacard> children) throws IOException, CatalogTransformerException {
+        if (path == null) {
+            throw new CatalogTransformerException("Cannot transform null path.");
         }
-        for (TextSegmentHeader text : slottedNitf.getTextSegmentHeaders()) {
-            metadataXml.append("  <text>\n");
-            metadataXml.append(buildMetadataEntry("textIdentifier", text.getIdentifier()));
-            addSecurityMetadata(metadataXml, text.getSecurityMetadata());
-            metadataXml
-                    .append(buildMetadataEntry("textDateTime", text.getTextDateTime().toString()));
-            metadataXml.append(buildMetadataEntry("textTitle", text.getTextTitle()));
-            metadataXml.append(buildMetadataEntry("textFormat", text.getTextFormat().toString()));
-            metadataXml.append(buildTREsMetadata(text.getTREsRawStructure()));
-            metadataXml.append("  </text>\n");
-        }
-        metadataXml.append("</metadata>\n");
-        metacard.setMetadata(metadataXml.toString());
-    }
-
-    private String buildTREsMetadata(TreCollection treCollection) {
-        StringBuilder treXml = new StringBuilder();
-        for (Tre tre : treCollection.getTREs()) {
-            outputThisTre(treXml, tre);
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return transform(channel, id, metrics.startTimer(path, channel.size()), control,
+                    children);
+        } finally {
+            channel.close();
         }
-        return treXml.toString();
     }
 
-    private static void outputThisTre(StringBuilder treXml, Tre tre) {
-        treXml.append("    <tre name=\"" + tre.getName().trim() + "\">\n");
-        for (TreEntry entry : tre.getEntries()) {
-            outputThisEntry(treXml, entry, 2);
+    /**
+     * Transforms the NITF content of {@code channel}, starting at its current position, into a
+     * {@link Metacard}. The channel is read with positional reads, so its position is left
+     * unchanged and the caller remains responsible for closing it.
+     */
+    public Metacard transform(FileChannel channel, String id)
+            throws IOException, CatalogTransformerException {
+        if (channel == null) {
+            throw new CatalogTransformerException("Cannot transform null channel.");
         }
-        treXml.append("    </tre>\n");
+
+        return transform(channel, id,
+                metrics.startTimer(id, channel.size() - channel.position()), newControl(), null);
     }
 
-    private static void doIndent(StringBuilder treXml, int indentLevel) {
-        for (int i = 0; i < indentLevel; ++i) {
-            treXml.append("  ");
+    private Metacard transform(FileChannel channel, String id, TransformMetrics.Timer timer,
+            TransformControl control, List<Metacard> children)
+            throws IOException, CatalogTransformerException {
+        try {
+            long available = channel.size() - channel.position();
+            SniffedNitfHeader header = SniffedNitfHeader.read(channel, channel.position());
+            if (header.isFileLengthKnown() && header.getFileLength() > available) {
+                throw new CatalogTransformerException(header.getVersion() + " file length "
+                        + header.getFileLength() + " is longer than the " + available
+                        + " bytes of input");
+            }
+        } catch (IOException | CatalogTransformerException e) {
+            timer.failed();
+            throw e;
         }
+        InputStream channelInput = new BufferedInputStream(
+                new ChannelInputStream(channel, channel.position()), CHANNEL_BUFFER_SIZE);
+        return transform(new NitfInputStreamReader(control.wrap(channelInput)),
+                NitfDataSource.forChannel(channel, channel.position()), id, timer, control,
+                children);
     }
 
-    private static void outputThisEntry(StringBuilder treXml, TreEntry entry, int indentLevel) {
-        if (entry.getFieldValue() != null) {
-            doIndent(treXml, indentLevel);
-            treXml.append("<field name=\"" + entry.getName() + "\" value=\"" + entry.getFieldValue()
-                    + "\" />\n");
+    /**
+     * Transforms every file from {@code inputs} on the batch threads, passing each result or
+     * failure to {@code listener} as it completes. A file that fails does not stop the batch.
+     * <p>
+     * At most twice the batch parallelism files are in flight at once; {@code inputs} is not
+     * advanced while that many are waiting or being transformed, so a lazy source is only read
+     * as fast as the files are processed. Returns once every file has been reported.
+     */
+    public void transform(Iterator<Path> inputs, final BatchTransformListener listener)
+            throws InterruptedException {
+        if (inputs == null || listener == null) {
+            throw new IllegalArgumentException("Batch inputs and listener must not be null.");
         }
-        if ((entry.getGroups() != null) && (!entry.getGroups().isEmpty())) {
-            doIndent(treXml, indentLevel);
-            treXml.append("<repeated name=\"" + entry.getName() + "\" number=\"" + entry.getGroups()
-                    .size() + "\">\n");
-            int i = 0;
-            for (TreGroup group : entry.getGroups()) {
-                doIndent(treXml, indentLevel + 1);
-                treXml.append(String.format("<group index=\"%d\">\n", i));
-                for (TreEntry groupEntry : group.getEntries()) {
-                    outputThisEntry(treXml, groupEntry, indentLevel + 2);
+
+        int maxInFlight = 2 * getBatchParallelism();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        try {
+            while (inputs.hasNext()) {
+                inFlight.acquire();
+                final Path input = inputs.next();
+                boolean submitted = false;
+                try {
+                    executeBatchTask(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                transformBatchItem(input, listener);
+                            } finally {
+                                inFlight.release();
+                            }
+                        }
+                    });
+                    submitted = true;
+                } finally {
+                    if (!submitted) {
+                        inFlight.release();
+                    }
                 }
-                doIndent(treXml, indentLevel + 1);
-                treXml.append(String.format("</group>\n"));
-                i = i + 1;
             }
-            doIndent(treXml, indentLevel);
-            treXml.append("</repeated>\n");
+        } finally {
+            // Wait for everything already submitted to be reported.
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
         }
     }
 
-    private String buildMetadataEntry(String label, int value) {
-        return buildMetadataEntry(label, Integer.toString(value));
+    private void transformBatchItem(Path input, BatchTransformListener listener) {
+        Metacard metacard = null;
+        Exception failure = null;
+        try {
+            metacard = transform(input, null);
+        } catch (IOException | CatalogTransformerException | RuntimeException e) {
+            LOGGER.debug("Failed to transform {}", input, e);
+            failure = e;
+        }
+        try {
+            synchronized (listener) {
+                if (failure == null) {
+                    listener.transformed(input, metacard);
+                } else {
+                    listener.failed(input, failure);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Batch listener failed handling {}", input, e);
+        }
     }
 
-    private String buildMetadataEntry(String label, long value) {
-        return buildMetadataEntry(label, Long.toString(value));
+    private void executeBatchTask(Runnable task) {
+        while (true) {
+            try {
+                getBatchExecutor().execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                // The pool was replaced by a parallelism change; use the new one.
+                LOGGER.debug("Resubmitting batch task to the current executor", e);
+            }
+        }
     }
 
-    private String buildMetadataEntry(String label, NitfDateTime value) {
-        return buildMetadataEntry(label, value.getSourceString());
+    private synchronized ExecutorService getBatchExecutor() {
+        if (destroyed) {
+            throw new IllegalStateException("NITF transformer has been destroyed.");
+        }
+        if (batchExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            batchExecutor = Executors.newFixedThreadPool(getBatchParallelism(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "nitf-batch-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return batchExecutor;
     }
 
-    private String buildMetadataEntry(String label, String value) {
-        StringBuilder entryBuilder = new StringBuilder();
-        entryBuilder.append("    <");
-        entryBuilder.append(label);
-        entryBuilder.append(">");
-        entryBuilder.append(StringEscapeUtils.escapeXml(value));
-        entryBuilder.append("</");
-        entryBuilder.append(label);
-        entryBuilder.append(">\n");
-        return entryBuilder.toString();
+    private synchronized int getBatchParallelism() {
+        if (batchParallelism > 0) {
+            return batchParallelism;
+        }
+        return Runtime.getRuntime().availableProcessors();
     }
 
-    private void addFileSecurityMetadata(StringBuilder metadataXml, NitfFileHeader nitfFile) {
-        FileSecurityMetadata security = nitfFile.getFileSecurityMetadata();
-        addSecurityMetadata(metadataXml, security);
-        metadataXml.append(buildMetadataEntry("securityFileCopyNumber",
-                nitfFile.getFileSecurityMetadata().getFileCopyNumber()));
-        metadataXml.append(buildMetadataEntry("securityFileNumberOfCopies",
-                nitfFile.getFileSecurityMetadata().getFileNumberOfCopies()));
+    private Metacard transform(NitfReader reader, NitfDataSource dataSource, String id,
+            TransformMetrics.Timer timer, TransformControl control, List<Metacard> children)
+            throws CatalogTransformerException {
+        MetacardImpl metacard;
+        List<Future<Metacard>> imageMetacards = null;
+        boolean finished = false;
+        try {
+            HeaderOnlyParseStrategy parsingStrategy = new HeaderOnlyParseStrategy(dataSource);
+            control.releaseOnCancel(parsingStrategy::releaseDataSource);
+
+            control.startPhase(Phase.PARSE);
+            NitfFileParser.parse(reader, parsingStrategy);
+            timer.lap(Phase.PARSE);
+            control.startPhase(Phase.ATTRIBUTES);
+
+            TreMapping mapping = getTreMapping();
+            Map<String, List<Serializable>> treValues =
+                    new LinkedHashMap<String, List<Serializable>>();
+            Map<String, List<Serializable>> mappedValues =
+                    new LinkedHashMap<String, List<Serializable>>();
+            collectTreValues(parsingStrategy, mapping, treValues, mappedValues);
+            collectDesValues(parsingStrategy, mapping, mappedValues, control);
+            MetacardType metacardType = treAttributes.register(treValues,
+                    mapping.getDescriptors());
+
+            // A lazy metacard would describe every segment, so children are built eagerly.
+            boolean lazy = lazyMetacards && children == null;
+            if (lazy) {
+                metacard = new LazyNitfMetacard(this, parsingStrategy, metacardType);
+            } else {
+                metacard = new MetacardImpl(metacardType);
+            }
+
+            metacard.setCreatedDate(getDateTime(parsingStrategy.getNitfHeader()));
+            // TODO: modified date from HISTOA?
+            metacard.setTitle(parsingStrategy.getNitfHeader().getFileTitle());
+
+            setAttributes(parsingStrategy, metacard);
+            setAttributes(treValues, metacard);
+            setAttributes(mappedValues, metacard);
+
+            if (id != null) {
+                metacard.setId(id);
+            } else {
+                metacard.setId(null);
+            }
+
+            metacard.setContentTypeName(MIME_TYPE);
+            if (children != null) {
+                imageMetacards = submitImageMetacards(parsingStrategy, id,
+                        metacard.getCreatedDate(), metacard.getTitle());
+            }
+            timer.lap(Phase.ATTRIBUTES);
+
+            if (lazy) {
+                control.endPhase();
+                if (parsingStrategy.getGraphicSegmentHeaders().isEmpty()) {
+                    // Image thumbnails need pixel data, which isn't kept once the input is
+                    // released.
+                    control.startPhase(Phase.THUMBNAIL);
+                    byte[] thumbnail = getThumbnail(parsingStrategy, control);
+                    if (thumbnail != null && thumbnail.length > 0) {
+                        metacard.setThumbnail(thumbnail);
+                    }
+                    timer.lap(Phase.THUMBNAIL);
+                }
+                // Location, metadata and thumbnail are built by the metacard when first asked
+                // for, so don't hold on to the input.
+                parsingStrategy.releaseDataSource();
+            } else if (parallelSegments && getSegmentCount(parsingStrategy) > 1) {
+                buildSegmentsInParallel(parsingStrategy, metacard, children == null, timer,
+                        control);
+            } else {
+                control.startPhase(Phase.LOCATION);
+                setLocation(parsingStrategy, metacard);
+                timer.lap(Phase.LOCATION);
+
+                control.startPhase(Phase.METADATA);
+                metacard.setMetadata(buildMetadata(parsingStrategy, children == null));
+                timer.lap(Phase.METADATA);
+
+                control.startPhase(Phase.THUMBNAIL);
+                byte[] thumbnail = getThumbnail(parsingStrategy, control);
+
+                if (thumbnail != null && thumbnail.length > 0) {
+                    metacard.setThumbnail(thumbnail);
+                }
+                timer.lap(Phase.THUMBNAIL);
+            }
+            if (imageMetacards != null) {
+                control.endPhase();
+                for (Future<Metacard> imageMetacard : imageMetacards) {
+                    children.add(join(imageMetacard));
+                }
+            }
+            timer.finished(parsingStrategy);
+            finished = true;
+        } catch (IOException e) {
+            LOGGER.warn("IOException processing NITF file", e);
+            throw new CatalogTransformerException(e);
+        } catch (ParseException e) {
+            LOGGER.warn("ParseException processing NITF file", e);
+            throw new CatalogTransformerException(e);
+        } finally {
+            if (!finished) {
+                timer.failed();
+                if (imageMetacards != null) {
+                    for (Future<Metacard> imageMetacard : imageMetacards) {
+                        imageMetacard.cancel(false);
+                    }
+                }
+            }
+        }
+
+        return metacard;
     }
 
-    private void addSecurityMetadata(StringBuilder metadataXml, SecurityMetadata security) {
-        metadataXml.append(buildMetadataEntry("securityClassification",
-                security.getSecurityClassification().toString()));
-        addMetadataIfNotNull(metadataXml, "securityClassificationSystem",
-                security.getSecurityClassificationSystem());
-        metadataXml.append(buildMetadataEntry("securityCodewords", security.getCodewords()));
-        addMetadataIfNotNull(metadataXml, "securityControlAndHandling",
-                security.getControlAndHandling());
-        addMetadataIfNotNull(metadataXml, "securityReleaseInstructions",
-                security.getReleaseInstructions());
-        addMetadataIfNotNull(metadataXml, "securityDeclassificationType",
-                security.getDeclassificationType());
-        addMetadataIfNotNull(metadataXml, "securityDeclassificationDate",
-                security.getDeclassificationDate());
-        addMetadataIfNotNull(metadataXml, "securityDeclassificationExemption",
-                security.getDeclassificationExemption());
-        addMetadataIfNotNull(metadataXml, "securityDowngrade", security.getDowngrade());
-        addMetadataIfNotNull(metadataXml, "securityDowngradeDate", security.getDowngradeDate());
-        addMetadataIfNotNull(metadataXml, "securityDowngradeDateOrSpecialCase",
-                security.getDowngradeDateOrSpecialCase());
-        addMetadataIfNotNull(metadataXml, "securityDowngradeEvent", security.getDowngradeEvent());
+    /**
+     * Starts building a child metacard for each image segment on the segment pool, returning
+     * them in segment order.
+     */
+    private List<Future<Metacard>> submitImageMetacards(
+            final HeaderOnlyParseStrategy parsingStrategy, final String parentId,
+            final Date fileDate, final String fileTitle) throws CatalogTransformerException {
+        ExecutorService pool = getSegmentPool();
+        if (pool == null) {
+            throw new CatalogTransformerException("NITF transformer has been destroyed.");
+        }
+        final TrePolicy policy = trePolicy;
+        List<Future<Metacard>> metacards = new ArrayList<Future<Metacard>>();
+        for (int i = 0; i < parsingStrategy.getImageSegmentHeaders().size(); ++i) {
+            final int index = i;
+            metacards.add(pool.submit(new Callable<Metacard>() {
+                @Override
+                public Metacard call() {
+                    return buildImageMetacard(parsingStrategy, index, parentId, fileDate,
+                            fileTitle, policy);
+                }
+            }));
+        }
+        return metacards;
     }
 
-    private void addMetadataIfNotNull(StringBuilder metadataXml, String label, String value) {
-        if (value != null) {
-            metadataXml.append(buildMetadataEntry(label, value));
+    /**
+     * Builds the child metacard of image segment {@code index}.
+     */
+    private Metacard buildImageMetacard(HeaderOnlyParseStrategy parsingStrategy, int index,
+            String parentId, Date fileDate, String fileTitle, TrePolicy policy) {
+        NitfImageSegmentHeader image = parsingStrategy.getImageSegmentHeaders().get(index);
+        MetacardImpl metacard = new MetacardImpl(NitfMetacardType.getInstance());
+        if (parentId != null) {
+            metacard.setId(parentId + "-image-" + index);
+            metacard.setAttribute(new AttributeImpl(NitfMetacardType.PARENT_ID, parentId));
+        }
+        metacard.setAttribute(new AttributeImpl(NitfMetacardType.IMAGE_SEGMENT_INDEX, index));
+
+        String title = StringUtils.trimToNull(image.getImageIdentifier2());
+        metacard.setTitle(title != null ? title : fileTitle + " image " + (index + 1));
+        Date date = getImageDateTime(image, fileDate);
+        metacard.setCreatedDate(date);
+        metacard.setModifiedDate(date);
+        metacard.setContentTypeName(MIME_TYPE);
+        metacard.setResourceSize(Long.toString(parsingStrategy.getImageSegmentDataLength(index)));
+
+        setImageAttributes(image, metacard);
+        setSecurityAttributes(image.getSecurityMetadata(), metacard);
+
+        String location = footprintBuilder.build(Collections.singletonList(image));
+        if (location != null) {
+            metacard.setLocation(location);
         }
+        MetadataXmlWriter xml = new MetadataXmlWriter(
+                2048 + 1024 * image.getTREsRawStructure().getTREs().size(), policy);
+        xml.startElement("metadata", 0);
+        writeImage(xml, image);
+        xml.endElement("metadata", 0);
+        metacard.setMetadata(xml.toString());
+        return metacard;
     }
 
-    @Override
-    public String toString() {
-        return "InputTransformer {Impl=" + this.getClass().getName() + ", id=" + ID + ", mime-type="
-                + MIME_TYPE + "}";
+    /**
+     * Returns the date and time the image was acquired, or {@code fileDate} if the image
+     * doesn't give a complete one.
+     */
+    private static Date getImageDateTime(NitfImageSegmentHeader image, Date fileDate) {
+        if (image.getImageDateTime() == null) {
+            return fileDate;
+        }
+        try {
+            return DATE_TIME_FORMATTER.parseDateTime(image.getImageDateTime().getSourceString())
+                    .toDate();
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("Image date and time is incomplete, using the file's", e);
+            return fileDate;
+        }
     }
 
-    public void setCatalog(CatalogFramework catalog) {
-        LOGGER.info("NitfInputTransformer setCatalog()");
+    /**
+     * Sets the location, metadata and thumbnail of {@code metacard}, rendering the thumbnail
+     * and writing the metadata of each header on the segment pool while the location is built.
+     * The image subheaders are left out of the metadata unless {@code includeImages}.
+     */
+    private void buildSegmentsInParallel(final HeaderOnlyParseStrategy parsingStrategy,
+            MetacardImpl metacard, boolean includeImages, TransformMetrics.Timer timer,
+            TransformControl control) throws IOException, CatalogTransformerException {
+        ExecutorService pool = getSegmentPool();
+        if (pool == null) {
+            throw new CatalogTransformerException("NITF transformer has been destroyed.");
+        }
+        TrePolicy policy = trePolicy;
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        GraphicThumbnail graphicThumbnail = null;
+        boolean finished = false;
+        try {
+            long thumbnailStart = System.nanoTime();
+            Future<byte[]> thumbnail = null;
+            if (!parsingStrategy.getGraphicSegmentHeaders().isEmpty()) {
+                graphicThumbnail = startGraphicThumbnail(parsingStrategy, pool);
+            } else {
+                thumbnail = pool.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return getThumbnail(parsingStrategy);
+                    }
+                });
+                tasks.add(thumbnail);
+            }
+            List<Future<MetadataXmlWriter>> fragments = submitMetadataFragments(parsingStrategy,
+                    policy, includeImages, pool);
+            tasks.addAll(fragments);
+
+            control.startPhase(Phase.LOCATION);
+            setLocation(parsingStrategy, metacard);
+            timer.lap(Phase.LOCATION);
+
+            control.startPhase(Phase.METADATA);
+            MetadataXmlWriter xml = new MetadataXmlWriter(
+                    estimateMetadataLength(parsingStrategy), policy);
+            xml.startElement("metadata", 0);
+            for (Future<MetadataXmlWriter> fragment : fragments) {
+                xml.append(join(fragment));
+            }
+            xml.endElement("metadata", 0);
+            metacard.setMetadata(xml.toString());
+            timer.lap(Phase.METADATA);
+            control.endPhase();
+
+            byte[] thumbnailBytes = thumbnail != null
+                    ? awaitThumbnail(thumbnail, thumbnailStart, control)
+                    : finishGraphicThumbnail(graphicThumbnail, thumbnailStart, control);
+            if (thumbnailBytes != null && thumbnailBytes.length > 0) {
+                metacard.setThumbnail(thumbnailBytes);
+            }
+            timer.lap(Phase.THUMBNAIL);
+            finished = true;
+        } finally {
+            if (!finished) {
+                for (Future<?> task : tasks) {
+                    task.cancel(false);
+                }
+                if (graphicThumbnail != null && graphicThumbnail.composite != null) {
+                    graphicThumbnail.composite.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts writing the metadata of the file header and of each segment subheader as
+     * fragments on {@code pool}, returning them in document order.
+     */
+    private List<Future<MetadataXmlWriter>> submitMetadataFragments(
+            HeaderOnlyParseStrategy slottedNitf, TrePolicy policy, boolean includeImages,
+            ExecutorService pool) {
+        List<Future<MetadataXmlWriter>> fragments = new ArrayList<Future<MetadataXmlWriter>>();
+        final NitfFileHeader fileHeader = slottedNitf.getNitfHeader();
+        fragments.add(pool.submit(new MetadataFragment(policy, fileHeader.getTREsRawStructure()) {
+            @Override
+            void write(MetadataXmlWriter xml) {
+                writeFileHeader(xml, fileHeader);
+            }
+        }));
+        for (final NitfImageSegmentHeader image : includeImages
+                ? slottedNitf.getImageSegmentHeaders()
+                : Collections.<NitfImageSegmentHeader>emptyList()) {
+            fragments.add(pool.submit(new MetadataFragment(policy, image.getTREsRawStructure()) {
+                @Override
+                void write(MetadataXmlWriter xml) {
+                    writeImage(xml, image);
+                }
+            }));
+        }
+        for (final NitfGraphicSegmentHeader graphic : slottedNitf.getGraphicSegmentHeaders()) {
+            fragments.add(pool.submit(new MetadataFragment(policy,
+                    graphic.getTREsRawStructure()) {
+                @Override
+                void write(MetadataXmlWriter xml) {
+                    writeGraphic(xml, graphic);
+                }
+            }));
+        }
+        for (final SymbolSegmentHeader symbol : slottedNitf.getSymbolSegmentHeaders()) {
+            fragments.add(pool.submit(new MetadataFragment(policy, symbol.getTREsRawStructure()) {
+                @Override
+                void write(MetadataXmlWriter xml) {
+                    writeSymbol(xml, symbol);
+                }
+            }));
+        }
+        for (final LabelSegmentHeader label : slottedNitf.getLabelSegmentHeaders()) {
+            fragments.add(pool.submit(new MetadataFragment(policy, label.getTREsRawStructure()) {
+                @Override
+                void write(MetadataXmlWriter xml) {
+                    writeLabel(xml, label);
+                }
+            }));
+        }
+        for (final TextSegmentHeader text : slottedNitf.getTextSegmentHeaders()) {
+            fragments.add(pool.submit(new MetadataFragment(policy, text.getTREsRawStructure()) {
+                @Override
+                void write(MetadataXmlWriter xml) {
+                    writeText(xml, text);
+                }
+            }));
+        }
+        for (int i = 0; i < slottedNitf.getDataExtensionSegmentHeaders().size(); ++i) {
+            final DataExtensionSegmentHeader des = slottedNitf.getDataExtensionSegmentHeaders()
+                    .get(i);
+            final Map<String, List<String>> values = slottedNitf.getDataExtensionSegmentValues(i);
+            fragments.add(pool.submit(new MetadataFragment(policy, des.getTREsRawStructure()) {
+                @Override
+                void write(MetadataXmlWriter xml) {
+                    writeDes(xml, des, values);
+                }
+            }));
+        }
+        return fragments;
+    }
+
+    /**
+     * Renders the thumbnail, giving up on it and returning null if it runs past the thumbnail
+     * budget. Graphic segments still rendering at the budget are left out of it instead.
+     */
+    private byte[] getThumbnail(final HeaderOnlyParseStrategy parsingStrategy,
+            TransformControl control) throws CatalogTransformerException {
+        if (!parsingStrategy.getGraphicSegmentHeaders().isEmpty()) {
+            long start = System.nanoTime();
+            return finishGraphicThumbnail(startGraphicThumbnail(parsingStrategy,
+                    getSegmentPool()), start, control);
+        }
+        if (!control.hasBudget(Phase.THUMBNAIL)) {
+            return getThumbnail(parsingStrategy);
+        }
+        return awaitThumbnail(CompletableFuture.supplyAsync(() -> getThumbnail(parsingStrategy),
+                getAsyncExecutor()), System.nanoTime(), control);
+    }
+
+    /**
+     * Waits for a thumbnail started at {@code start}, giving up on it and returning null once
+     * it runs past the thumbnail budget. The render itself is only asked to stop, as the
+     * renderers don't look.
+     */
+    private static byte[] awaitThumbnail(Future<byte[]> thumbnail, long start,
+            TransformControl control) throws CatalogTransformerException {
+        if (!control.hasBudget(Phase.THUMBNAIL)) {
+            return join(thumbnail);
+        }
+        long remaining = control.getBudgetNanos(Phase.THUMBNAIL) - (System.nanoTime() - start);
+        try {
+            return thumbnail.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            thumbnail.cancel(true);
+            control.markDegraded();
+            LOGGER.warn("Thumbnail ran past its budget of {} ms; leaving it out of the metacard",
+                    TimeUnit.NANOSECONDS.toMillis(control.getBudgetNanos(Phase.THUMBNAIL)));
+            return null;
+        } catch (InterruptedException | ExecutionException e) {
+            throw joinFailure(e);
+        }
+    }
+
+    private static <T> T join(Future<T> task) throws CatalogTransformerException {
+        try {
+            return task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw joinFailure(e);
+        }
+    }
+
+    /**
+     * Returns the exception to throw for a task that failed or was interrupted while waited
+     * for, throwing the task's own unchecked exception instead where it has one.
+     */
+    private static CatalogTransformerException joinFailure(Exception e) {
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+            return new CatalogTransformerException("Interrupted transforming NITF segments", e);
+        }
+        if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+        }
+        if (e.getCause() instanceof Error) {
+            throw (Error) e.getCause();
+        }
+        return new CatalogTransformerException(e.getCause());
+    }
+
+    private synchronized ForkJoinPool getSegmentPool() {
+        if (destroyed) {
+            return null;
+        }
+        if (segmentPool == null) {
+            segmentPool = new ForkJoinPool();
+        }
+        return segmentPool;
+    }
+
+    protected Date getDateTime(NitfFileHeader fileHeader) {
+
+        return DATE_TIME_FORMATTER.parseDateTime(fileHeader.getFileDateTime()
+                .getSourceString()).toDate();
+    }
+
+    protected byte[] getThumbnail(HeaderOnlyParseStrategy slottedNitf) {
+
+        if (!slottedNitf.getGraphicSegmentHeaders().isEmpty()) {
+            return finishGraphicThumbnail(startGraphicThumbnail(slottedNitf, getSegmentPool()),
+                    System.nanoTime(), TransformControl.NONE);
+        }
+        if (!slottedNitf.getImageSegmentHeaders().isEmpty()) {
+            return getImageThumbnail(slottedNitf);
+        }
+        LOGGER.debug("Loaded file, but found no graphic or image segments.");
+        return null;
+    }
+
+    /**
+     * Lays out the graphic segments for a thumbnail and starts rendering them on
+     * {@code pool}, unless the cache already has it. Returns null if there is nothing to render.
+     */
+    private GraphicThumbnail startGraphicThumbnail(HeaderOnlyParseStrategy slottedNitf,
+            ExecutorService pool) {
+        GraphicComposite composite = new GraphicComposite(
+                slottedNitf.getGraphicSegmentHeaders(), slottedNitf.getImageSegmentHeaders(),
+                thumbnailMaxSize);
+        if (composite.isEmpty()) {
+            LOGGER.debug("No image to generate");
+            return null;
+        }
+        List<byte[]> graphics = new ArrayList<byte[]>();
+        try {
+            for (int index : composite.getSegmentIndexes()) {
+                graphics.add(slottedNitf.getGraphicSegmentData(index));
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Failed to read graphic from nitf", e);
+            return null;
+        }
+
+        byte[] key = null;
+        if (thumbnailCache.isEnabled()) {
+            key = ThumbnailCache.key(graphics, composite.getLayout());
+            byte[] cached = thumbnailCache.get(key);
+            if (cached != null) {
+                return new GraphicThumbnail(cached);
+            }
+        }
+        composite.start(graphics, pool);
+        return new GraphicThumbnail(composite, key);
+    }
+
+    /**
+     * Composites the graphic thumbnail, leaving out any segment not rendered within the
+     * thumbnail budget of {@code control} after {@code start}. A thumbnail missing segments
+     * isn't cached, nor, when it may be missing them for time alone, is its metacard.
+     */
+    private byte[] finishGraphicThumbnail(GraphicThumbnail pending, long start,
+            TransformControl control) {
+        if (pending == null) {
+            return null;
+        }
+        if (pending.cached != null) {
+            return pending.cached;
+        }
+        try {
+            GraphicComposite.Result result = pending.composite.finish(start,
+                    control.getBudgetNanos(Phase.THUMBNAIL));
+            if ((result == null || !result.complete) && control.hasBudget(Phase.THUMBNAIL)) {
+                control.markDegraded();
+            }
+            if (result == null) {
+                return null;
+            }
+            byte[] thumbnail = encodeThumbnail(result.thumbnail);
+            if (pending.key != null && result.complete) {
+                thumbnailCache.put(pending.key, thumbnail);
+            }
+            return thumbnail;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.debug("Interrupted rendering graphic thumbnail");
+        } catch (IOException e) {
+            LOGGER.debug("Failed to encode graphic thumbnail", e);
+        }
+        return null;
+    }
+
+    private byte[] getImageThumbnail(HeaderOnlyParseStrategy slottedNitf) {
+        NitfImageSegmentHeader image = slottedNitf.getImageSegmentHeaders().get(0);
+        // Read once, as a cancelled transform releases the data source from another thread.
+        NitfDataSource dataSource = slottedNitf.getDataSource();
+        if (dataSource == null) {
+            LOGGER.debug("Image data is no longer available for a thumbnail");
+            return null;
+        }
+        try {
+            if (UncompressedImageThumbnailer.canRender(image)) {
+                UncompressedImageThumbnailer thumbnailer = new UncompressedImageThumbnailer(image,
+                        dataSource, slottedNitf.getImageSegmentDataOffset(0));
+                return encodeThumbnail(thumbnailer.render(thumbnailMaxSize));
+            }
+            if (JpegImageThumbnailer.canRender(image)) {
+                JpegImageThumbnailer thumbnailer = new JpegImageThumbnailer(image, dataSource,
+                        slottedNitf.getImageSegmentDataOffset(0),
+                        slottedNitf.getImageSegmentDataLength(0));
+                return encodeThumbnail(thumbnailer.render(thumbnailMaxSize));
+            }
+            LOGGER.debug("No thumbnail support for {} image compression",
+                    image.getImageCompression());
+        } catch (IOException e) {
+            LOGGER.debug("Failed to read image data from nitf", e);
+        }
+        return null;
+    }
+
+    private byte[] encodeThumbnail(BufferedImage image) throws IOException {
+        return thumbnailEncoder.encode(image);
+    }
+
+    private void setAttributes(SlottedNitfParseStrategy slottedNitf, MetacardImpl metacard) {
+
+        NitfFileHeader fileHeader = slottedNitf.getNitfHeader();
+
+        // TODO: The Attributes should be obtained from the Nitf library more elegantly.  There's
+        // no null checking and it requires explicit object knowledge to obtain an attribute.
+        setInterned(metacard, NitfMetacardType.NITF_VERSION, fileHeader.getFileType());
+        if (fileHeader.getFileDateTime() != null) {
+            setInterned(metacard, NitfMetacardType.FILE_DATE_TIME, getDateTime(fileHeader));
+            metacard.setModifiedDate(getDateTime(fileHeader));
+        } else {
+            Date now = new Date();
+            metacard.setModifiedDate(now);
+            metacard.setCreatedDate(now);
+            metacard.setEffectiveDate(now);
+        }
+
+        setInterned(metacard, NitfMetacardType.FILE_TITLE, fileHeader.getFileTitle());
+        metacard.setTitle(fileHeader.getFileTitle());
+        //        metacard.setAttribute(new AttributeImpl(NitfMetacardType.FILE_SIZE,
+        //                nitfFile.));
+        setInterned(metacard, NitfMetacardType.COMPLEXITY_LEVEL, fileHeader.getComplexityLevel());
+        setInterned(metacard, NitfMetacardType.ORIGINATOR_NAME, fileHeader.getOriginatorsName());
+        setInterned(metacard, NitfMetacardType.ORIGINATING_STATION_ID,
+                fileHeader.getOriginatingStationId());
+        if (!slottedNitf.getImageSegmentHeaders().isEmpty()) {
+            setImageAttributes(slottedNitf.getImageSegmentHeaders().get(0), metacard);
+        }
+        setSecurityAttributes(fileHeader.getFileSecurityMetadata(), metacard);
+    }
+
+    private void setImageAttributes(NitfImageSegmentHeader image, MetacardImpl metacard) {
+        setInterned(metacard, NitfMetacardType.IMAGE_ID, image.getImageIdentifier2());
+        setInterned(metacard, NitfMetacardType.ISOURCE, image.getImageSource());
+        setInterned(metacard, NitfMetacardType.NUMBER_OF_ROWS, image.getNumberOfRows());
+        setInterned(metacard, NitfMetacardType.NUMBER_OF_COLUMNS, image.getNumberOfColumns());
+        setInterned(metacard, NitfMetacardType.NUMBER_OF_BANDS, image.getNumBands());
+        //        metacard.setAttribute(new AttributeImpl(NitfMetacardType.NUMBER_OF_MULTISPECTRAL_BANDS,
+        //                nitfFile.getImageSegments().get(0).getNum()));
+        setInterned(metacard, NitfMetacardType.REPRESENTATION, image.getImageRepresentation());
+        setInterned(metacard, NitfMetacardType.SUBCATEGORY, image.getImageCategory());
+        setInterned(metacard, NitfMetacardType.BITS_PER_PIXEL_PER_BAND,
+                image.getNumberOfBitsPerPixelPerBand());
+        setInterned(metacard, NitfMetacardType.IMAGE_MODE, image.getImageMode());
+        setInterned(metacard, NitfMetacardType.COMPRESSION, image.getImageCompression());
+        setInterned(metacard, NitfMetacardType.RATE_CODE, image.getCompressionRate());
+        setInterned(metacard, NitfMetacardType.TARGET_ID, image.getImageTargetId().toString());
+        setInterned(metacard, NitfMetacardType.COMMENT,
+                Arrays.toString(image.getImageComments().toArray()));
+    }
+
+    private void setSecurityAttributes(SecurityMetadata security, MetacardImpl metacard) {
+        setInterned(metacard, NitfMetacardType.CODE_WORDS, security.getCodewords());
+        setInterned(metacard, NitfMetacardType.CONTROL_CODE, security.getControlAndHandling());
+        setInterned(metacard, NitfMetacardType.RELEASE_INSTRUCTION,
+                security.getReleaseInstructions());
+        setInterned(metacard, NitfMetacardType.CONTROL_NUMBER, security.getSecurityControlNumber());
+        setInterned(metacard, NitfMetacardType.CLASSIFICATION_SYSTEM,
+                security.getSecurityClassificationSystem());
+        setInterned(metacard, NitfMetacardType.CLASSIFICATION_AUTHORITY,
+                security.getClassificationAuthority());
+        setInterned(metacard, NitfMetacardType.CLASSIFICATION_AUTHORITY_TYPE,
+                security.getClassificationAuthorityType());
+        setInterned(metacard, NitfMetacardType.CLASSIFICATION_TEXT,
+                security.getSecurityClassificationSystem());
+        setInterned(metacard, NitfMetacardType.CLASSIFICATION_REASON,
+                security.getClassificationReason());
+        if (StringUtils.isNotEmpty(security.getSecuritySourceDate())) {
+            // TODO convert to Date
+            setInterned(metacard, NitfMetacardType.CLASSIFICATION_DATE,
+                    security.getSecuritySourceDate());
+        }
+        setInterned(metacard, NitfMetacardType.DECLASSIFICATION_TYPE,
+                security.getDeclassificationType());
+        setInterned(metacard, NitfMetacardType.DECLASSIFICATION_DATE,
+                security.getDeclassificationDate());
+    }
+
+    private void setAttributes(Map<String, List<Serializable>> values, MetacardImpl metacard) {
+        for (Map.Entry<String, List<Serializable>> value : values.entrySet()) {
+            List<Serializable> attributeValues = value.getValue();
+            for (int i = 0; i < attributeValues.size(); ++i) {
+                if (attributeValues.get(i) instanceof String) {
+                    attributeValues.set(i, interner.intern(value.getKey(),
+                            (String) attributeValues.get(i)));
+                }
+            }
+            metacard.setAttribute(new AttributeImpl(value.getKey(), attributeValues));
+        }
+    }
+
+    /**
+     * Sets an attribute of {@code metacard}, sharing one instance of each string value that
+     * repeats from file to file.
+     */
+    private void setInterned(MetacardImpl metacard, String name, Serializable value) {
+        metacard.setAttribute(new AttributeImpl(name, value instanceof String
+                ? interner.intern(name, (String) value) : value));
+    }
+
+    /**
+     * Collects the values of the TRE fields in every header of the file, in one pass: the
+     * fields {@code mapping} maps into {@code mappedValues}, and every field into
+     * {@code treValues} when TRE attributes are on. Both are keyed by attribute name.
+     */
+    private void collectTreValues(SlottedNitfParseStrategy slottedNitf, TreMapping mapping,
+            Map<String, List<Serializable>> treValues,
+            Map<String, List<Serializable>> mappedValues) {
+        boolean fieldAttributes = treAttributes.getMaxAttributes() > 0;
+        if (!fieldAttributes && mapping.isEmpty()) {
+            return;
+        }
+        List<TreCollection> treCollections = new ArrayList<TreCollection>();
+        treCollections.add(slottedNitf.getNitfHeader().getTREsRawStructure());
+        for (NitfImageSegmentHeader image : slottedNitf.getImageSegmentHeaders()) {
+            treCollections.add(image.getTREsRawStructure());
+        }
+        for (NitfGraphicSegmentHeader graphic : slottedNitf.getGraphicSegmentHeaders()) {
+            treCollections.add(graphic.getTREsRawStructure());
+        }
+        for (SymbolSegmentHeader symbol : slottedNitf.getSymbolSegmentHeaders()) {
+            treCollections.add(symbol.getTREsRawStructure());
+        }
+        for (LabelSegmentHeader label : slottedNitf.getLabelSegmentHeaders()) {
+            treCollections.add(label.getTREsRawStructure());
+        }
+        for (TextSegmentHeader text : slottedNitf.getTextSegmentHeaders()) {
+            treCollections.add(text.getTREsRawStructure());
+        }
+        for (DataExtensionSegmentHeader des : slottedNitf.getDataExtensionSegmentHeaders()) {
+            treCollections.add(des.getTREsRawStructure());
+        }
+        mapping.collectValues(treCollections, trePolicy, fieldAttributes ? treValues : null,
+                mappedValues);
+    }
+
+    /**
+     * Streams the data of each XML DES that {@code mapping} reads fields from, adding the
+     * values to {@code mappedValues} and keeping them on {@code parsingStrategy} for the
+     * metadata. Other DES are skipped without being read.
+     */
+    private void collectDesValues(HeaderOnlyParseStrategy parsingStrategy, TreMapping mapping,
+            Map<String, List<Serializable>> mappedValues, TransformControl control)
+            throws IOException {
+        List<DataExtensionSegmentHeader> segments =
+                parsingStrategy.getDataExtensionSegmentHeaders();
+        for (int i = 0; i < segments.size(); ++i) {
+            String desType = StringUtils.trimToEmpty(segments.get(i).getIdentifier());
+            XmlDesExtractor.Field[] fields = mapping.getDesFields(desType);
+            if (fields == null || !XmlDesExtractor.isXmlDes(desType)) {
+                LOGGER.debug("Skipping {} DES", desType);
+                continue;
+            }
+            NitfDataSource dataSource = parsingStrategy.getDataSource();
+            if (dataSource == null) {
+                return;
+            }
+            Map<XmlDesExtractor.Field, List<String>> values;
+            InputStream payload = control.wrap(dataSource.open(
+                    parsingStrategy.getDataExtensionSegmentDataOffset(i),
+                    parsingStrategy.getDataExtensionSegmentDataLength(i)));
+            try {
+                values = XmlDesExtractor.extract(payload, fields);
+            } finally {
+                payload.close();
+            }
+
+            Map<String, List<String>> metadataValues = new LinkedHashMap<String, List<String>>();
+            for (Map.Entry<XmlDesExtractor.Field, List<String>> field : values.entrySet()) {
+                String attribute = field.getKey().attributeName;
+                List<String> attributeValues = metadataValues.get(attribute);
+                if (attributeValues == null) {
+                    attributeValues = new ArrayList<String>();
+                    metadataValues.put(attribute, attributeValues);
+                }
+                List<Serializable> mapped = mappedValues.get(attribute);
+                for (String value : field.getValue()) {
+                    attributeValues.add(value);
+                    Serializable converted = field.getKey().convert(value);
+                    if (converted != null) {
+                        if (mapped == null) {
+                            mapped = new ArrayList<Serializable>(1);
+                            mappedValues.put(attribute, mapped);
+                        }
+                        mapped.add(converted);
+                    }
+                }
+            }
+            parsingStrategy.setDataExtensionSegmentValues(i, metadataValues);
+        }
+    }
+
+    private void setLocation(SlottedNitfParseStrategy slottedNitf, MetacardImpl metacard) {
+        String location = buildLocation(slottedNitf);
+        if (location != null) {
+            metacard.setLocation(location);
+        }
+    }
+
+    /**
+     * Builds the WKT footprint of the image segments, or returns null if there is none.
+     */
+    String buildLocation(SlottedNitfParseStrategy slottedNitf) {
+        return footprintBuilder.build(slottedNitf.getImageSegmentHeaders());
+    }
+
+    /**
+     * Builds the metadata XML describing the file header and every segment subheader.
+     */
+    String buildMetadata(HeaderOnlyParseStrategy slottedNitf) {
+        return buildMetadata(slottedNitf, true);
+    }
+
+    /**
+     * Builds the metadata XML describing the file header and the segment subheaders, leaving
+     * out those of the image segments unless {@code includeImages}.
+     */
+    private String buildMetadata(HeaderOnlyParseStrategy slottedNitf, boolean includeImages) {
+        MetadataXmlWriter xml = new MetadataXmlWriter(estimateMetadataLength(slottedNitf),
+                trePolicy);
+        xml.startElement("metadata", 0);
+        writeFileHeader(xml, slottedNitf.getNitfHeader());
+        if (includeImages) {
+            for (NitfImageSegmentHeader image : slottedNitf.getImageSegmentHeaders()) {
+                writeImage(xml, image);
+            }
+        }
+        for (NitfGraphicSegmentHeader graphic : slottedNitf.getGraphicSegmentHeaders()) {
+            writeGraphic(xml, graphic);
+        }
+        for (SymbolSegmentHeader symbol : slottedNitf.getSymbolSegmentHeaders()) {
+            writeSymbol(xml, symbol);
+        }
+        for (LabelSegmentHeader label : slottedNitf.getLabelSegmentHeaders()) {
+            writeLabel(xml, label);
+        }
+        for (TextSegmentHeader text : slottedNitf.getTextSegmentHeaders()) {
+            writeText(xml, text);
+        }
+        for (int i = 0; i < slottedNitf.getDataExtensionSegmentHeaders().size(); ++i) {
+            writeDes(xml, slottedNitf.getDataExtensionSegmentHeaders().get(i),
+                    slottedNitf.getDataExtensionSegmentValues(i));
+        }
+        xml.endElement("metadata", 0);
+        return xml.toString();
+    }
+
+    private void writeFileHeader(MetadataXmlWriter xml, NitfFileHeader fileHeader) {
+        xml.startElement("file", 1);
+        xml.entry("fileType", fileHeader.getFileType().toString());
+        xml.entry("complexityLevel", fileHeader.getComplexityLevel());
+        xml.entry("originatingStationId", fileHeader.getOriginatingStationId());
+        xml.entry("fileDateTime", fileHeader.getFileDateTime());
+        xml.entry("fileTitle", fileHeader.getFileTitle());
+        addFileSecurityMetadata(xml, fileHeader);
+        if (fileHeader.getFileBackgroundColour() != null) {
+            xml.entry("fileBackgroundColour", fileHeader.getFileBackgroundColour().toString());
+        }
+        xml.entry("originatorsName", fileHeader.getOriginatorsName());
+        xml.entry("originatorsPhoneNumber", fileHeader.getOriginatorsPhoneNumber());
+        writeTREs(xml, fileHeader.getTREsRawStructure());
+        xml.endElement("file", 1);
+    }
+
+    private void writeImage(MetadataXmlWriter xml, NitfImageSegmentHeader image) {
+        xml.startElement("image", 1);
+        xml.entry("imageIdentifer1", image.getIdentifier());
+        xml.entry("imageDateTime", image.getImageDateTime());
+        xml.entry("imageBasicEncyclopediaNumber",
+                image.getImageTargetId().getBasicEncyclopediaNumber().trim());
+        xml.entry("imageOSuffix", image.getImageTargetId().getOSuffix().trim());
+        xml.entry("imageCountryCode", image.getImageTargetId().getCountryCode().trim());
+        xml.entry("imageIdentifer2", image.getImageIdentifier2());
+        addSecurityMetadata(xml, image.getSecurityMetadata());
+        xml.entry("imageSource", image.getImageSource());
+        xml.entry("numberOfRows", image.getNumberOfRows());
+        xml.entry("numberOfColumns", image.getNumberOfColumns());
+        xml.entry("pixelValueType", image.getPixelValueType().toString());
+        xml.entry("imageRepresentation", image.getImageRepresentation().toString());
+        xml.entry("imageCategory", image.getImageCategory().toString());
+        xml.entry("actualBitsPerPixelPerBand", image.getActualBitsPerPixelPerBand());
+        xml.entry("pixelJustification", image.getPixelJustification().toString());
+        xml.entry("imageCoordinatesRepresentation",
+                image.getImageCoordinatesRepresentation().toString());
+        for (String comment : image.getImageComments()) {
+            xml.entry("imageComment", comment);
+        }
+        xml.entry("imageCompression", image.getImageCompression().toString());
+        xml.entry("compressionRate", image.getCompressionRate());
+        xml.entry("imageMode", image.getImageMode().toString());
+        xml.entry("numberOfBlocksPerRow", image.getNumberOfBlocksPerRow());
+        xml.entry("numberOfBlocksPerColumn", image.getNumberOfBlocksPerColumn());
+        xml.entry("numberOfPixelsPerBlockHorizontal",
+                image.getNumberOfPixelsPerBlockHorizontal());
+        xml.entry("numberOfPixelsPerBlockVertical", image.getNumberOfPixelsPerBlockVertical());
+        xml.entry("numberOfBitsPerPixelPerBand", image.getNumberOfBitsPerPixelPerBand());
+        xml.entry("imageDisplayLevel", image.getImageDisplayLevel());
+        xml.entry("imageAttachmentLevel", image.getAttachmentLevel());
+        xml.entry("imageLocationRow", image.getImageLocationRow());
+        xml.entry("imageLocationColumn", image.getImageLocationColumn());
+        if (image.getImageMagnification() != null) {
+            xml.entry("imageMagnification", image.getImageMagnification());
+        }
+        if (image.getImageCoordinates() != null) {
+            xml.entry("imageCoordinates", image.getImageCoordinates().toString());
+        }
+        writeTREs(xml, image.getTREsRawStructure());
+        xml.endElement("image", 1);
+    }
+
+    private void writeGraphic(MetadataXmlWriter xml, NitfGraphicSegmentHeader graphic) {
+        xml.startElement("graphic", 1);
+        xml.entry("graphicIdentifier", graphic.getIdentifier());
+        xml.entry("graphicName", graphic.getGraphicName());
+        addSecurityMetadata(xml, graphic.getSecurityMetadata());
+        xml.entry("graphicDisplayLevel", graphic.getGraphicDisplayLevel());
+        xml.entry("graphicAttachmentLevel", graphic.getAttachmentLevel());
+        xml.entry("graphicLocationRow", graphic.getGraphicLocationRow());
+        xml.entry("graphicLocationColumn", graphic.getGraphicLocationColumn());
+        xml.entry("graphicBoundingBox1Row", graphic.getBoundingBox1Row());
+        xml.entry("graphicBoundingBox1Column", graphic.getBoundingBox1Column());
+        xml.entry("graphicBoundingBox2Row", graphic.getBoundingBox2Row());
+        xml.entry("graphicBoundingBox2Column", graphic.getBoundingBox2Column());
+        xml.entry("graphicColour", graphic.getGraphicColour().toString());
+        writeTREs(xml, graphic.getTREsRawStructure());
+        xml.endElement("graphic", 1);
+    }
+
+    private void writeSymbol(MetadataXmlWriter xml, SymbolSegmentHeader symbol) {
+        xml.startElement("symbol", 1);
+        xml.entry("symbolIdentifier", symbol.getIdentifier());
+        xml.entry("symbolName", symbol.getSymbolName());
+        addSecurityMetadata(xml, symbol.getSecurityMetadata());
+        xml.entry("symbolType", symbol.getSymbolType().toString());
+        xml.entry("symbolColour", symbol.getSymbolColour().toString());
+        xml.entry("numberOfLinesPerSymbol", symbol.getNumberOfLinesPerSymbol());
+        xml.entry("numberOfPixelsPerLine", symbol.getNumberOfPixelsPerLine());
+        xml.entry("lineWidth", symbol.getLineWidth());
+        xml.entry("numberOfBitsPerPixel", symbol.getNumberOfBitsPerPixel());
+        xml.entry("symbolDisplayLevel", symbol.getSymbolDisplayLevel());
+        xml.entry("symbolAttachmentLevel", symbol.getAttachmentLevel());
+        xml.entry("symbolLocationRow", symbol.getSymbolLocationRow());
+        xml.entry("symbolLocationColumn", symbol.getSymbolLocationColumn());
+        xml.entry("symbolLocation2Row", symbol.getSymbolLocation2Row());
+        xml.entry("symbolLocation2Column", symbol.getSymbolLocation2Column());
+        xml.entry("symbolNumber", symbol.getSymbolNumber());
+        xml.entry("symbolRotation", symbol.getSymbolRotation());
+        writeTREs(xml, symbol.getTREsRawStructure());
+        xml.endElement("symbol", 1);
+    }
+
+    private void writeLabel(MetadataXmlWriter xml, LabelSegmentHeader label) {
+        xml.startElement("label", 1);
+        xml.entry("labelIdentifier", label.getIdentifier());
+        addSecurityMetadata(xml, label.getSecurityMetadata());
+        xml.entry("labelLocationRow", label.getLabelLocationRow());
+        xml.entry("labelLocationColumn", label.getLabelLocationColumn());
+        xml.entry("labelCellWidth", label.getLabelCellWidth());
+        xml.entry("labelCellHeight", label.getLabelCellHeight());
+        xml.entry("labelDisplayLevel", label.getLabelDisplayLevel());
+        xml.entry("labelAttachmentLevel", label.getAttachmentLevel());
+        xml.entry("labelTextColour", label.getLabelTextColour().toString());
+        xml.entry("labelBackgroundColour", label.getLabelBackgroundColour().toString());
+        writeTREs(xml, label.getTREsRawStructure());
+        xml.endElement("label", 1);
+    }
+
+    private void writeText(MetadataXmlWriter xml, TextSegmentHeader text) {
+        xml.startElement("text", 1);
+        xml.entry("textIdentifier", text.getIdentifier());
+        addSecurityMetadata(xml, text.getSecurityMetadata());
+        xml.entry("textDateTime", text.getTextDateTime().toString());
+        xml.entry("textTitle", text.getTextTitle());
+        xml.entry("textFormat", text.getTextFormat().toString());
+        writeTREs(xml, text.getTREsRawStructure());
+        xml.endElement("text", 1);
+    }
+
+    private void writeDes(MetadataXmlWriter xml, DataExtensionSegmentHeader des,
+            Map<String, List<String>> values) {
+        xml.startElement("des", 1);
+        xml.entry("desIdentifier", des.getIdentifier());
+        xml.entry("desVersion", des.getDESVersion());
+        if (des.getSecurityMetadata() != null) {
+            addSecurityMetadata(xml, des.getSecurityMetadata());
+        }
+        for (Map.Entry<String, List<String>> field : values.entrySet()) {
+            for (String value : field.getValue()) {
+                xml.entry(field.getKey(), value);
+            }
+        }
+        writeTREs(xml, des.getTREsRawStructure());
+        xml.endElement("des", 1);
+    }
+
+    private static void writeTREs(MetadataXmlWriter xml, TreCollection treCollection) {
+        for (Tre tre : treCollection.getTREs()) {
+            xml.tre(tre);
+        }
+    }
+
+    /**
+     * Sizes the metadata buffer from the number of segments and TREs, so that it rarely has to
+     * grow.
+     */
+    private static int estimateMetadataLength(SlottedNitfParseStrategy slottedNitf) {
+        int segments = getSegmentCount(slottedNitf);
+        int tres = slottedNitf.getNitfHeader().getTREsRawStructure().getTREs().size();
+        for (NitfImageSegmentHeader image : slottedNitf.getImageSegmentHeaders()) {
+            tres += image.getTREsRawStructure().getTREs().size();
+        }
+        return 2048 + 1536 * segments + 1024 * tres;
+    }
+
+    private static int getSegmentCount(SlottedNitfParseStrategy slottedNitf) {
+        return slottedNitf.getImageSegmentHeaders().size()
+                + slottedNitf.getGraphicSegmentHeaders().size()
+                + slottedNitf.getSymbolSegmentHeaders().size()
+                + slottedNitf.getLabelSegmentHeaders().size()
+                + slottedNitf.getTextSegmentHeaders().size()
+                + slottedNitf.getDataExtensionSegmentHeaders().size();
+    }
+
+    private void addFileSecurityMetadata(MetadataXmlWriter xml, NitfFileHeader nitfFile) {
+        FileSecurityMetadata security = nitfFile.getFileSecurityMetadata();
+        addSecurityMetadata(xml, security);
+        xml.entry("securityFileCopyNumber", nitfFile.getFileSecurityMetadata().getFileCopyNumber());
+        xml.entry("securityFileNumberOfCopies",
+                nitfFile.getFileSecurityMetadata().getFileNumberOfCopies());
+    }
+
+    private void addSecurityMetadata(MetadataXmlWriter xml, SecurityMetadata security) {
+        xml.entry("securityClassification", security.getSecurityClassification().toString());
+        xml.entryIfNotNull("securityClassificationSystem",
+                security.getSecurityClassificationSystem());
+        xml.entry("securityCodewords", security.getCodewords());
+        xml.entryIfNotNull("securityControlAndHandling", security.getControlAndHandling());
+        xml.entryIfNotNull("securityReleaseInstructions", security.getReleaseInstructions());
+        xml.entryIfNotNull("securityDeclassificationType", security.getDeclassificationType());
+        xml.entryIfNotNull("securityDeclassificationDate", security.getDeclassificationDate());
+        xml.entryIfNotNull("securityDeclassificationExemption",
+                security.getDeclassificationExemption());
+        xml.entryIfNotNull("securityDowngrade", security.getDowngrade());
+        xml.entryIfNotNull("securityDowngradeDate", security.getDowngradeDate());
+        xml.entryIfNotNull("securityDowngradeDateOrSpecialCase",
+                security.getDowngradeDateOrSpecialCase());
+        xml.entryIfNotNull("securityDowngradeEvent", security.getDowngradeEvent());
+    }
+
+    /**
+     * Writes the metadata of one header into a fragment of its own.
+     */
+    private abstract static class MetadataFragment implements Callable<MetadataXmlWriter> {
+
+        private final TrePolicy policy;
+
+        private final TreCollection treCollection;
+
+        MetadataFragment(TrePolicy policy, TreCollection treCollection) {
+            this.policy = policy;
+            this.treCollection = treCollection;
+        }
+
+        @Override
+        public MetadataXmlWriter call() {
+            MetadataXmlWriter xml = MetadataXmlWriter.fragment(
+                    1536 + 1024 * treCollection.getTREs().size(), policy);
+            write(xml);
+            return xml;
+        }
+
+        abstract void write(MetadataXmlWriter xml);
+    }
+
+    /**
+     * A graphic thumbnail found in the cache, or being rendered to be cached under its key.
+     */
+    private static final class GraphicThumbnail {
+
+        final byte[] cached;
+
+        final GraphicComposite composite;
+
+        final byte[] key;
+
+        GraphicThumbnail(byte[] cached) {
+            this.cached = cached;
+            this.composite = null;
+            this.key = null;
+        }
+
+        GraphicThumbnail(GraphicComposite composite, byte[] key) {
+            this.cached = null;
+            this.composite = composite;
+            this.key = key;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InputTransformer {Impl=" + this.getClass().getName() + ", id=" + ID + ", mime-type="
+                + MIME_TYPE + "}";
+    }
+
+    public void setCatalog(CatalogFramework catalog) {
+        LOGGER.info("NitfInputTransformer setCatalog()");
         this.mCatalog = catalog;
     }
 
+    /**
+     * When set, metadata, location and thumbnail are not built during the transform but by the
+     * returned metacard the first time they are asked for.
+     */
+    public void setLazyMetacards(boolean lazyMetacards) {
+        this.lazyMetacards = lazyMetacards;
+    }
+
+    /**
+     * Sets how many TRE field attributes may be added to the metacard type, across all files.
+     * Zero or less turns TRE attributes off. TRE values are always written to the metadata.
+     */
+    public void setMaxTreAttributes(int maxTreAttributes) {
+        treAttributes.setMaxAttributes(maxTreAttributes);
+        metacardCache.clear();
+    }
+
+    /**
+     * Sets the estimated heap, in bytes, that may be held by metacards of recently transformed
+     * streams, so a file delivered again is not parsed again. Zero or less turns the cache off.
+     * Only stream inputs are cached, as file and channel inputs are not read in full.
+     */
+    public void setCacheMaxBytes(long cacheMaxBytes) {
+        metacardCache.setMaxBytes(cacheMaxBytes);
+    }
+
+    /**
+     * Sets how many files a batch transforms at once. Zero or less means one per available
+     * processor. Files already started finish on the old threads.
+     */
+    public synchronized void setBatchParallelism(int batchParallelism) {
+        if (batchParallelism != this.batchParallelism && batchExecutor != null) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+        this.batchParallelism = batchParallelism;
+    }
+
+    /**
+     * Sets the most pixels a thumbnail may be wide or high. Graphics are rendered straight to
+     * this size, so a thumbnail's memory is bounded whatever size the file declares.
+     */
+    public void setThumbnailMaxSize(int thumbnailMaxSize) {
+        if (thumbnailMaxSize <= 0) {
+            throw new IllegalArgumentException("Thumbnail size must be positive: "
+                    + thumbnailMaxSize);
+        }
+        this.thumbnailMaxSize = thumbnailMaxSize;
+        metacardCache.clear();
+    }
+
+    /**
+     * Sets the JPEG quality of thumbnails, from 0 to 1.
+     */
+    public void setThumbnailQuality(float thumbnailQuality) {
+        thumbnailEncoder = new ThumbnailEncoder(thumbnailQuality);
+        thumbnailCache.clear();
+        metacardCache.clear();
+    }
+
+    /**
+     * Sets the bytes that may be held by thumbnails of recently rendered graphics, so a
+     * graphic that many files carry is rendered once. Zero or less turns the cache off.
+     */
+    public void setThumbnailCacheMaxBytes(long thumbnailCacheMaxBytes) {
+        thumbnailCache.setMaxBytes(thumbnailCacheMaxBytes);
+    }
+
+    /**
+     * Sets how many distinct attribute values are shared between metacards, rather than each
+     * metacard holding its own copy. Zero turns sharing off.
+     */
+    public void setInternMaxEntries(int internMaxEntries) {
+        interner.setMaxEntries(internMaxEntries);
+    }
+
+    /**
+     * Sets the bytes of buffered input that concurrent stream transforms may hold on the heap
+     * between them. Zero or less leaves it unlimited.
+     */
+    public void setHeapBudgetBytes(long heapBudgetBytes) {
+        heapBudget.setMaxBytes(heapBudgetBytes);
+    }
+
+    /**
+     * Sets the size above which stream input is spooled to a temporary file and read through
+     * its channel, rather than held on the heap.
+     */
+    public void setSpillThresholdBytes(long spillThresholdBytes) {
+        this.spillThresholdBytes = Math.max(spillThresholdBytes, 0);
+    }
+
+    /**
+     * Sets how long a transform waits for room in the heap budget before it is rejected with
+     * a {@link TransformRejectedException}. Zero rejects at once.
+     */
+    public void setHeapBudgetWaitMillis(long heapBudgetWaitMillis) {
+        this.heapBudgetWaitMillis = Math.max(heapBudgetWaitMillis, 0);
+    }
+
+    /**
+     * Sets the directory input is spooled to, or the default temporary directory if empty.
+     */
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory == null || spillDirectory.trim().isEmpty() ? null
+                : Paths.get(spillDirectory.trim());
+    }
+
+    /**
+     * Sets the executor async transforms run on. When not set they run on virtual threads
+     * where the JVM has them, or else on a pool of two threads per processor.
+     */
+    public synchronized void setAsyncExecutor(Executor executor) {
+        if (ownedAsyncExecutor != null) {
+            ownedAsyncExecutor.shutdown();
+            ownedAsyncExecutor = null;
+        }
+        asyncExecutor = executor;
+    }
+
+    /**
+     * Sets how long each phase of a transform may take, as {@code phase=milliseconds} entries
+     * such as {@code parse=60000} or {@code thumbnail=5000}. The phases are read, parse,
+     * attributes, location, metadata and thumbnail; a phase with no entry has no limit. A
+     * transform with a phase that runs over fails, except that one whose thumbnail runs over
+     * is returned without a thumbnail, and isn't cached.
+     */
+    public void setPhaseTimeBudgets(List<String> budgets) {
+        phaseBudgets = TransformControl.parseBudgets(budgets);
+    }
+
+    /**
+     * When set, the metadata of each segment of a file with more than one, and its thumbnail,
+     * are built at once on a fork-join pool shared by every transform, with a thread per
+     * processor. The metadata is the same either way.
+     */
+    public void setParallelSegments(boolean parallelSegments) {
+        this.parallelSegments = parallelSegments;
+    }
+
+    /**
+     * Sets the TREs that are expanded into the metadata and turned into attributes. When empty,
+     * every TRE not on the denylist is.
+     */
+    public synchronized void setTreAllowlist(List<String> treNames) {
+        trePolicy = trePolicy.withAllowlist(treNames);
+        metacardCache.clear();
+    }
+
+    /**
+     * Sets TREs that are only summarized by name and length in the metadata, and not turned
+     * into attributes.
+     */
+    public synchronized void setTreDenylist(List<String> treNames) {
+        trePolicy = trePolicy.withDenylist(treNames);
+        metacardCache.clear();
+    }
+
+    /**
+     * Sets the most characters of metadata XML one TRE may expand to before it is summarized
+     * instead. Zero or less means no limit.
+     */
+    public synchronized void setMaxTreLength(int maxTreLength) {
+        trePolicy = trePolicy.withMaxTreLength(maxTreLength);
+        metacardCache.clear();
+    }
+
+    /**
+     * Sets the most characters of metadata XML all of a file's TREs may expand to. Zero or less
+     * means no limit.
+     */
+    public synchronized void setMaxFileTreLength(int maxFileTreLength) {
+        trePolicy = trePolicy.withMaxFileLength(maxFileTreLength);
+        metacardCache.clear();
+    }
+
+    /**
+     * Sets how deeply nested TRE repeated groups are expanded; deeper ones are written with
+     * their count only. Zero or less means no limit.
+     */
+    public synchronized void setMaxTreGroupDepth(int maxTreGroupDepth) {
+        trePolicy = trePolicy.withMaxGroupDepth(maxTreGroupDepth);
+        metacardCache.clear();
+    }
+
+    /**
+     * Sets how the footprints of a file with several image segments are combined:
+     * {@code segments} gives a multipolygon of every footprint, {@code union} merges
+     * overlapping footprints and {@code hull} takes the convex hull of them all.
+     */
+    public synchronized void setFootprintMode(String footprintMode) {
+        footprintBuilder = new FootprintBuilder(FootprintBuilder.Mode.fromString(footprintMode),
+                footprintBuilder.getMaxVertices(), metrics);
+        metacardCache.clear();
+    }
+
+    /**
+     * Sets the most vertices a {@code union} or {@code hull} footprint may have.
+     */
+    public synchronized void setFootprintMaxVertices(int footprintMaxVertices) {
+        footprintBuilder = new FootprintBuilder(footprintBuilder.getMode(), footprintMaxVertices,
+                metrics);
+        metacardCache.clear();
+    }
+
+    /**
+     * Turns the per phase timing and counters off or on. When off, a transform does no more
+     * than check this flag.
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        metrics.setEnabled(metricsEnabled);
+    }
+
+    /**
+     * Sets how long a transform may take before it is logged with a per phase breakdown. Zero
+     * or less turns the slow transform log off.
+     */
+    public void setSlowTransformThresholdMillis(long thresholdMillis) {
+        metrics.setSlowTransformThresholdMillis(thresholdMillis);
+    }
+
+    /**
+     * Turns counting of the bytes each phase allocates on or off. Off by default.
+     */
+    public void setAllocationTrackingEnabled(boolean allocationTracking) {
+        metrics.setAllocationTrackingEnabled(allocationTracking);
+    }
+
+    /**
+     * Sets the file of rules copying TRE fields into typed attributes, and loads it. An empty
+     * path uses the rules in the bundle. The file is checked for changes every few seconds and
+     * reloaded when it changes; if it can't be loaded the previous rules stay in use.
+     */
+    public synchronized void setTreMappingFile(String treMappingFile) {
+        this.treMappingFile = treMappingFile != null ? treMappingFile.trim() : "";
+        reloadTreMapping();
+    }
+
+    /**
+     * Loads the TRE mapping rules again, keeping the previous rules if they can't be loaded.
+     */
+    public synchronized void reloadTreMapping() {
+        nextTreMappingCheck = treMappingFile.isEmpty() ? Long.MAX_VALUE
+                : System.currentTimeMillis() + TRE_MAPPING_CHECK_INTERVAL_MILLIS;
+        TreMapping mapping;
+        try {
+            if (treMappingFile.isEmpty()) {
+                mapping = loadTreMapping(getClass().getResourceAsStream(DEFAULT_TRE_MAPPING));
+                treMappingModified = 0;
+            } else {
+                File file = new File(treMappingFile);
+                long modified = file.lastModified();
+                mapping = loadTreMapping(new FileInputStream(file));
+                treMappingModified = modified;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warn("Unable to load TRE mapping {}, keeping the previous one",
+                    treMappingFile.isEmpty() ? DEFAULT_TRE_MAPPING : treMappingFile, e);
+            if (treMapping == null) {
+                treMapping = TreMapping.EMPTY;
+            }
+            return;
+        }
+        LOGGER.debug("Loaded {} TRE mapping attributes", mapping.getDescriptors().size());
+        treMapping = mapping;
+        metacardCache.clear();
+    }
+
+    private static TreMapping loadTreMapping(InputStream input) throws IOException {
+        if (input == null) {
+            throw new FileNotFoundException(DEFAULT_TRE_MAPPING);
+        }
+        try {
+            return TreMapping.load(input, NitfMetacardType.getInstance());
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns the current TRE mapping, loading it on first use and reloading the mapping file
+     * if it has changed since it was last checked.
+     */
+    private TreMapping getTreMapping() {
+        TreMapping mapping = treMapping;
+        if (mapping != null && System.currentTimeMillis() < nextTreMappingCheck) {
+            return mapping;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (treMapping == null) {
+                reloadTreMapping();
+            } else if (now >= nextTreMappingCheck) {
+                if (new File(treMappingFile).lastModified() != treMappingModified) {
+                    reloadTreMapping();
+                } else {
+                    nextTreMappingCheck = now + TRE_MAPPING_CHECK_INTERVAL_MILLIS;
+                }
+            }
+            return treMapping;
+        }
+    }
+
+    NitfTransformerMetricsMXBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Loads the TRE mapping, if it hasn't been, and registers the transformer metrics with the
+     * platform MBean server.
+     */
+    public synchronized void init() {
+        if (treMapping == null) {
+            reloadTreMapping();
+        }
+        try {
+            ObjectName objectName = new ObjectName(METRICS_OBJECT_NAME);
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(objectName)) {
+                // Left behind by an earlier instance of the bundle.
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(metrics, objectName);
+            metricsObjectName = objectName;
+        } catch (JMException e) {
+            LOGGER.warn("Unable to register NITF transformer metrics MBean", e);
+        }
+    }
+
+    /**
+     * Stops the batch, segment and async threads once their current work is done, and
+     * unregisters the metrics.
+     */
+    public synchronized void destroy() {
+        destroyed = true;
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+        if (segmentPool != null) {
+            segmentPool.shutdown();
+            segmentPool = null;
+        }
+        if (ownedAsyncExecutor != null) {
+            ownedAsyncExecutor.shutdown();
+            ownedAsyncExecutor = null;
+            asyncExecutor = null;
+        }
+        if (metricsObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+            } catch (JMException e) {
+                LOGGER.debug("Unable to unregister NITF transformer metrics MBean", e);
+            }
+            metricsObjectName = null;
+        }
+    }
+
 }
@@ -78,12 +78,31 @@ public class NitfMetacardType extends MetacardTypeImpl {
 
     public static final String SECURITY = "";
 
+    /* Id of the file's metacard, on the metacard of one of its image segments */
+    public static final String PARENT_ID = "parentId";
+
+    /* Index of the image segment a child metacard describes, from 0 */
+    public static final String IMAGE_SEGMENT_INDEX = "imageSegmentIndex";
+
+    private static final NitfMetacardType INSTANCE = new NitfMetacardType();
+
+    /**
+     * Use {@link #getInstance()} rather than building a new type for each metacard.
+     */
     public NitfMetacardType() {
         super(NAME, null);
         descriptors.addAll(BasicTypes.BASIC_METACARD.getAttributeDescriptors());
         addNitfDescriptors();
     }
 
+    /**
+     * Returns the shared NITF metacard type. Its descriptors are never changed after it is
+     * built, so it is safe to use from any thread.
+     */
+    public static NitfMetacardType getInstance() {
+        return INSTANCE;
+    }
+
     private void addNitfDescriptors() {
         descriptors.add(new AttributeDescriptorImpl(NITF_VERSION, true /* indexed */, true /* stored */,
                 false /* tokenized */, true /* multivalued */, BasicTypes.STRING_TYPE));
@@ -162,6 +181,11 @@ public class NitfMetacardType extends MetacardTypeImpl {
                 false /* tokenized */, true /* multivalued */, BasicTypes.STRING_TYPE));
         descriptors.add(new AttributeDescriptorImpl(SECURITY, true /* indexed */, true /* stored */,
                 false /* tokenized */, true /* multivalued */, BasicTypes.STRING_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(PARENT_ID, true /* indexed */, true /* stored */,
+                false /* tokenized */, false /* multivalued */, BasicTypes.STRING_TYPE));
+        descriptors.add(new AttributeDescriptorImpl(IMAGE_SEGMENT_INDEX, true /* indexed */,
+                true /* stored */, false /* tokenized */, false /* multivalued */,
+                BasicTypes.INTEGER_TYPE));
     }
 
 }
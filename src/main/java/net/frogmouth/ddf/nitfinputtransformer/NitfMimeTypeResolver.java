@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ddf.catalog.transform.CatalogTransformerException;
+import ddf.mime.MimeTypeResolutionException;
+import ddf.mime.MimeTypeResolver;
+
+/**
+ * Resolves the NITF file extensions to {@code image/nitf}, and recognises NITF content by the
+ * same header check the transformer makes before it reads a file, so that routing by content
+ * never sends this transformer anything else.
+ */
+public class NitfMimeTypeResolver implements MimeTypeResolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NitfMimeTypeResolver.class);
+
+    private static final String NAME = "NitfMimeTypeResolver";
+
+    private static final String DEFAULT_EXTENSION = "ntf";
+
+    private static final String[] EXTENSIONS = {"ntf", "nitf", "nsf", "nsif"};
+
+    private int priority = 10;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority of this resolver over the others, higher being consulted first.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    @Override
+    public boolean hasSchema() {
+        return false;
+    }
+
+    @Override
+    public String getSchema() {
+        return null;
+    }
+
+    @Override
+    public String getFileExtensionForMimeType(String contentType)
+            throws MimeTypeResolutionException {
+        return isNitfMimeType(contentType) ? DEFAULT_EXTENSION : null;
+    }
+
+    @Override
+    public String getMimeTypeForFileExtension(String fileExtension)
+            throws MimeTypeResolutionException {
+        if (fileExtension == null) {
+            return null;
+        }
+        String extension = fileExtension.trim().toLowerCase(Locale.US);
+        if (extension.startsWith(".")) {
+            extension = extension.substring(1);
+        }
+        for (String nitfExtension : EXTENSIONS) {
+            if (nitfExtension.equals(extension)) {
+                return NitfInputTransformer.MIME_TYPE;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns {@code image/nitf} if {@code input} starts with a NITF or NSIF file header, and
+     * null otherwise. Only the header is read; a stream that supports mark and reset is reset
+     * to where it was.
+     */
+    public String getMimeTypeForInputStream(InputStream input)
+            throws MimeTypeResolutionException {
+        if (input == null) {
+            return null;
+        }
+        try {
+            SniffedNitfHeader.read(input.markSupported() ? input
+                    : new BufferedInputStream(input, SniffedNitfHeader.SNIFF_LENGTH));
+            return NitfInputTransformer.MIME_TYPE;
+        } catch (CatalogTransformerException e) {
+            LOGGER.debug("Content is not NITF: {}", e.getMessage());
+            return null;
+        } catch (IOException e) {
+            throw new MimeTypeResolutionException(e);
+        }
+    }
+
+    private static boolean isNitfMimeType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int parameters = contentType.indexOf(';');
+        String type = parameters < 0 ? contentType : contentType.substring(0, parameters);
+        return NitfInputTransformer.MIME_TYPE.equalsIgnoreCase(type.trim());
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * Timing and throughput of the NITF input transformer, as seen over JMX.
+ * <p>
+ * Counts and timings cover the transforms made while metrics are enabled, since the last reset.
+ */
+public interface NitfTransformerMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * Returns the time a transform must take to be logged with its per phase breakdown, or zero
+     * if slow transforms are not logged.
+     */
+    long getSlowTransformThresholdMillis();
+
+    void setSlowTransformThresholdMillis(long thresholdMillis);
+
+    /**
+     * Returns whether the bytes allocated by each phase are counted, which costs a little more
+     * per phase than timing alone.
+     */
+    boolean isAllocationTrackingEnabled();
+
+    void setAllocationTrackingEnabled(boolean enabled);
+
+    long getTransformCount();
+
+    long getFailureCount();
+
+    /**
+     * Returns the size of all files transformed, in bytes.
+     */
+    long getBytesProcessed();
+
+    long getImageSegmentCount();
+
+    long getGraphicSegmentCount();
+
+    long getTextSegmentCount();
+
+    long getTreCount();
+
+    /**
+     * Returns how many image segments had a footprint in each coordinate representation that
+     * can't be turned into a location, keyed by representation.
+     */
+    Map<String, Long> getUnsupportedCoordinateRepresentations();
+
+    /**
+     * Returns the number of stream inputs answered from the cache of recently seen files.
+     */
+    long getCacheHitCount();
+
+    long getCacheMissCount();
+
+    long getCacheEntryCount();
+
+    /**
+     * Returns the estimated heap held by the cached metacards, in bytes.
+     */
+    long getCacheRetainedBytes();
+
+    /**
+     * Returns the number of graphic thumbnails taken from the cache of rendered graphics
+     * rather than rendered.
+     */
+    long getThumbnailCacheHitCount();
+
+    long getThumbnailCacheMissCount();
+
+    /**
+     * Returns the fraction of graphic thumbnail lookups that were answered from the cache, or
+     * zero if there were none.
+     */
+    double getThumbnailCacheHitRate();
+
+    long getThumbnailCacheEntryCount();
+
+    /**
+     * Returns the bytes held by the cached graphic thumbnails.
+     */
+    long getThumbnailCacheRetainedBytes();
+
+    /**
+     * Returns the number of distinct attribute values shared between metacards.
+     */
+    long getInternedValueCount();
+
+    /**
+     * Returns the number of attribute values replaced by a shared instance.
+     */
+    long getInternHitCount();
+
+    /**
+     * Returns an estimate of the heap saved by sharing attribute values, in bytes.
+     */
+    long getInternSavedBytes();
+
+    /**
+     * Returns the bytes of buffered input currently held on the heap by stream transforms.
+     */
+    long getHeapBudgetUsedBytes();
+
+    /**
+     * Returns the number of transforms waiting for room in the heap budget.
+     */
+    int getHeapBudgetWaiterCount();
+
+    /**
+     * Returns the number of transforms rejected because the heap budget stayed full.
+     */
+    long getHeapBudgetRejectionCount();
+
+    /**
+     * Returns the number of stream transforms whose input was spooled to a file.
+     */
+    long getSpilledTransformCount();
+
+    /**
+     * Returns the latency of each phase of the transform, keyed by phase name, plus the whole
+     * transform under {@code total}.
+     */
+    Map<String, PhaseStatistics> getPhaseStatistics();
+
+    void reset();
+
+    /**
+     * Latency of one phase. Percentiles are the upper bound of the histogram bucket they fall
+     * in, and the buckets double in width, so they are accurate to within a factor of two.
+     * The mean allocation covers the transforms made while allocation tracking was on, and is
+     * zero if there were none.
+     */
+    final class PhaseStatistics {
+
+        private final long count;
+
+        private final double meanMillis;
+
+        private final double maxMillis;
+
+        private final double p50Millis;
+
+        private final double p95Millis;
+
+        private final double p99Millis;
+
+        private final long meanAllocatedBytes;
+
+        @ConstructorProperties({"count", "meanMillis", "maxMillis", "p50Millis", "p95Millis",
+                "p99Millis", "meanAllocatedBytes"})
+        public PhaseStatistics(long count, double meanMillis, double maxMillis, double p50Millis,
+                double p95Millis, double p99Millis, long meanAllocatedBytes) {
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.maxMillis = maxMillis;
+            this.p50Millis = p50Millis;
+            this.p95Millis = p95Millis;
+            this.p99Millis = p99Millis;
+            this.meanAllocatedBytes = meanAllocatedBytes;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP95Millis() {
+            return p95Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public long getMeanAllocatedBytes() {
+            return meanAllocatedBytes;
+        }
+    }
+}
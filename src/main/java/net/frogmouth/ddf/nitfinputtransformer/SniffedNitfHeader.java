@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import ddf.catalog.transform.CatalogTransformerException;
+
+/**
+ * The leading fields of a NITF or NSIF file header, read and checked before the rest of the
+ * file so that input that isn't NITF is turned away without being buffered or parsed.
+ * <p>
+ * Checks the file profile and version, the complexity level, and that the file and header
+ * lengths are numbers consistent with each other. In NITF 2.1 and NSIF 1.0 the file length
+ * (FL) is at offset 342 and the header length (HL) follows it; NITF 2.0 puts them at the same
+ * offset, or 40 bytes later when the file has a downgrade event (FSDWNG of 999998).
+ */
+final class SniffedNitfHeader {
+
+    /**
+     * Bytes to read to be sure of covering the header length field.
+     */
+    static final int SNIFF_LENGTH = 400;
+
+    /**
+     * The file length of a file written before its length was known.
+     */
+    static final long UNKNOWN_FILE_LENGTH = 999999999999L;
+
+    private static final int FILE_LENGTH_OFFSET = 342;
+
+    private static final int NITF20_DOWNGRADE_OFFSET = 280;
+
+    private static final int NITF20_DOWNGRADE_EVENT_LENGTH = 40;
+
+    /**
+     * The segment counts and extended header lengths that at least follow HL.
+     */
+    private static final int MIN_SEGMENT_TABLE_LENGTH = 28;
+
+    private final String version;
+
+    private final long fileLength;
+
+    private final int headerLength;
+
+    private SniffedNitfHeader(String version, long fileLength, int headerLength) {
+        this.version = version;
+        this.fileLength = fileLength;
+        this.headerLength = headerLength;
+    }
+
+    /**
+     * Reads the header from the first {@code length} bytes of {@code bytes}.
+     *
+     * @throws CatalogTransformerException if they don't start a NITF or NSIF file
+     */
+    static SniffedNitfHeader read(byte[] bytes, int length) throws CatalogTransformerException {
+        if (length < 9) {
+            throw new CatalogTransformerException("Input is too short to be NITF: " + length
+                    + " bytes");
+        }
+        String version = ascii(bytes, 0, 9);
+        int offset = FILE_LENGTH_OFFSET;
+        if ("NITF02.00".equals(version)) {
+            if (length >= NITF20_DOWNGRADE_OFFSET + 6 && "999998".equals(
+                    ascii(bytes, NITF20_DOWNGRADE_OFFSET, 6))) {
+                offset += NITF20_DOWNGRADE_EVENT_LENGTH;
+            }
+        } else if (!"NITF02.10".equals(version) && !"NSIF01.00".equals(version)) {
+            throw new CatalogTransformerException("Input is not NITF: it starts with \""
+                    + printable(version) + "\" rather than NITF02.10, NITF02.00 or NSIF01.00");
+        }
+        if (length < offset + 18) {
+            throw new CatalogTransformerException("Input ends within its " + version
+                    + " file header, after " + length + " bytes");
+        }
+        if (number(bytes, 9, 2) < 0) {
+            throw new CatalogTransformerException(version + " complexity level is not a number: \""
+                    + printable(ascii(bytes, 9, 2)) + "\"");
+        }
+        long fileLength = number(bytes, offset, 12);
+        long headerLength = number(bytes, offset + 12, 6);
+        if (fileLength < 0 || headerLength < 0) {
+            throw new CatalogTransformerException(version + " file or header length is not a"
+                    + " number: \"" + printable(ascii(bytes, offset, 18)) + "\"");
+        }
+        if (headerLength < offset + 18 + MIN_SEGMENT_TABLE_LENGTH
+                || (fileLength != UNKNOWN_FILE_LENGTH && fileLength < headerLength)) {
+            throw new CatalogTransformerException(version + " header length " + headerLength
+                    + " is not consistent with file length " + fileLength);
+        }
+        return new SniffedNitfHeader(version, fileLength, (int) headerLength);
+    }
+
+    /**
+     * Reads the header from the start of {@code input}, which must support mark and reset, and
+     * resets it to where it was.
+     */
+    static SniffedNitfHeader read(InputStream input) throws IOException, CatalogTransformerException {
+        byte[] bytes = new byte[SNIFF_LENGTH];
+        input.mark(SNIFF_LENGTH);
+        try {
+            return read(bytes, readFully(input, bytes));
+        } finally {
+            input.reset();
+        }
+    }
+
+    /**
+     * Reads the header from {@code channel} at {@code position}, without moving the channel.
+     */
+    static SniffedNitfHeader read(FileChannel channel, long position)
+            throws IOException, CatalogTransformerException {
+        ByteBuffer buffer = ByteBuffer.allocate(SNIFF_LENGTH);
+        while (buffer.hasRemaining()
+                && channel.read(buffer, position + buffer.position()) >= 0) {
+            continue;
+        }
+        return read(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Reads into {@code bytes} until it is full or the input ends, returning the bytes read.
+     */
+    static int readFully(InputStream input, byte[] bytes) throws IOException {
+        int length = 0;
+        while (length < bytes.length) {
+            int read = input.read(bytes, length, bytes.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the length of the whole file, or {@link #UNKNOWN_FILE_LENGTH}.
+     */
+    long getFileLength() {
+        return fileLength;
+    }
+
+    int getHeaderLength() {
+        return headerLength;
+    }
+
+    boolean isFileLengthKnown() {
+        return fileLength != UNKNOWN_FILE_LENGTH;
+    }
+
+    private static String ascii(byte[] bytes, int offset, int length) {
+        return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the decimal number in the field, or -1 if it isn't all digits.
+     */
+    private static long number(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            if (bytes[i] < '0' || bytes[i] > '9') {
+                return -1;
+            }
+            value = value * 10 + bytes[i] - '0';
+        }
+        return value;
+    }
+
+    private static String printable(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            result.append(c >= 0x20 && c < 0x7f ? c : '?');
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps the CGM graphics of a file and the layout they are rendered in to their encoded
+ * thumbnail, so overlays that many files share, such as banners, grids and logos, are parsed
+ * and rendered once.
+ * <p>
+ * Thumbnails are keyed by a digest of the graphics' data and the layout. The cache is bounded
+ * by the bytes of the thumbnails it holds, and the least recently used are evicted first.
+ * Thumbnails are handed out as copies.
+ */
+class ThumbnailCache {
+
+    /**
+     * Rough heap cost of a map entry, its key and the thumbnail array, on top of the pixels.
+     */
+    private static final long ENTRY_OVERHEAD = 160;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final LinkedHashMap<ByteBuffer, byte[]> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile long maxBytes;
+
+    private long retainedBytes = 0;
+
+    ThumbnailCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Returns the key of the thumbnail of {@code graphics} rendered in {@code layout}.
+     */
+    static byte[] key(List<byte[]> graphics, int[] layout) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer integers = ByteBuffer.allocate(4 * (graphics.size() + layout.length));
+        for (byte[] graphic : graphics) {
+            digest.update(graphic);
+            integers.putInt(graphic.length);
+        }
+        for (int value : layout) {
+            integers.putInt(value);
+        }
+        digest.update(integers.array());
+        return digest.digest();
+    }
+
+    /**
+     * Returns a copy of the thumbnail cached under {@code key}, or null if there is none.
+     */
+    byte[] get(byte[] key) {
+        byte[] thumbnail;
+        synchronized (this) {
+            thumbnail = entries.get(ByteBuffer.wrap(key));
+        }
+        if (thumbnail == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return thumbnail.clone();
+    }
+
+    /**
+     * Caches a copy of {@code thumbnail} under {@code key}, unless it alone would fill more
+     * than a quarter of the cache.
+     */
+    void put(byte[] key, byte[] thumbnail) {
+        long size = ENTRY_OVERHEAD + thumbnail.length;
+        synchronized (this) {
+            if (size > maxBytes / 4) {
+                return;
+            }
+            byte[] previous = entries.put(ByteBuffer.wrap(key.clone()), thumbnail.clone());
+            if (previous != null) {
+                retainedBytes -= ENTRY_OVERHEAD + previous.length;
+            }
+            retainedBytes += size;
+            evict();
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        retainedBytes = 0;
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    void resetCounts() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private void evict() {
+        Iterator<byte[]> eldest = entries.values().iterator();
+        while (retainedBytes > maxBytes && eldest.hasNext()) {
+            retainedBytes -= ENTRY_OVERHEAD + eldest.next().length;
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes thumbnails as JPEG in memory.
+ * <p>
+ * Each thread keeps its own JPEG writer, rather than {@code ImageIO.write} looking one up for
+ * every image, and writes through a memory cached stream so the ImageIO disk cache is never
+ * used. JPEG has no alpha channel, so an image with one is flattened onto white first.
+ * Encoders are immutable.
+ */
+class ThumbnailEncoder {
+
+    static final float DEFAULT_QUALITY = 0.75f;
+
+    private static final ThreadLocal<ImageWriter> WRITERS = ThreadLocal.withInitial(() -> {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IllegalStateException("No JPEG image writer available");
+        }
+        return writers.next();
+    });
+
+    private final float quality;
+
+    /**
+     * @param quality JPEG quality from 0 to 1
+     */
+    ThumbnailEncoder(float quality) {
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("Thumbnail quality must be from 0 to 1: "
+                    + quality);
+        }
+        this.quality = quality;
+    }
+
+    float getQuality() {
+        return quality;
+    }
+
+    byte[] encode(BufferedImage image) throws IOException {
+        BufferedImage opaque = image.getColorModel().hasAlpha() ? flatten(image) : image;
+        ImageWriter writer = WRITERS.get();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                Math.max(1024, opaque.getWidth() * opaque.getHeight() / 4));
+        ImageOutputStream output = new MemoryCacheImageOutputStream(bytes);
+        try {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(opaque, null, null), param);
+        } finally {
+            writer.reset();
+            output.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static BufferedImage flatten(BufferedImage image) {
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return rgb;
+    }
+}
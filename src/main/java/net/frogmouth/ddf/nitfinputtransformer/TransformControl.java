@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.frogmouth.ddf.nitfinputtransformer.TransformMetrics.Phase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds one transform to the time budget of each of its phases, and lets it be cancelled.
+ * <p>
+ * Neither can stop code that doesn't look: a phase's budget is checked when the next phase
+ * starts, and as the parser reads its input, so a parser stuck on a pathological TRE stops at
+ * its next read. Cancelling interrupts the thread running the transform and releases its
+ * buffered input at once. {@link #NONE} never cancels or runs out, and costs nothing.
+ */
+class TransformControl {
+
+    static final TransformControl NONE = new TransformControl(
+            Collections.<Phase, Long>emptyMap());
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransformControl.class);
+
+    /**
+     * Single byte reads between checks, as the parser reads much of its input a byte at a time.
+     */
+    private static final int READS_PER_CHECK = 4096;
+
+    private final Map<Phase, Long> budgetMillis;
+
+    private final List<Closeable> releasables = new ArrayList<>();
+
+    private volatile boolean cancelled = false;
+
+    private Thread runner;
+
+    private volatile Phase phase;
+
+    private volatile long phaseStart;
+
+    private volatile boolean degraded = false;
+
+    TransformControl(Map<Phase, Long> budgetMillis) {
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * Reads budgets written as {@code phase=milliseconds}, such as {@code thumbnail=5000}.
+     *
+     * @throws IllegalArgumentException if an entry is not of that form
+     */
+    static Map<Phase, Long> parseBudgets(List<String> entries) {
+        Map<Phase, Long> budgets = new EnumMap<>(Phase.class);
+        if (entries != null) {
+            for (String entry : entries) {
+                if (entry == null || entry.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parts = entry.split("=");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Phase time budget is not phase=millis: "
+                            + entry);
+                }
+                long millis = Long.parseLong(parts[1].trim());
+                if (millis > 0) {
+                    budgets.put(Phase.valueOf(parts[0].trim().toUpperCase(Locale.US)), millis);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(budgets);
+    }
+
+    boolean hasBudget(Phase phase) {
+        return budgetMillis.containsKey(phase);
+    }
+
+    /**
+     * Returns how long {@code phase} may take, in nanoseconds, or {@code Long.MAX_VALUE}.
+     */
+    long getBudgetNanos(Phase phase) {
+        Long millis = budgetMillis.get(phase);
+        return millis != null ? TimeUnit.MILLISECONDS.toNanos(millis) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Ends the current phase, failing if it ran past its budget or the transform has been
+     * cancelled, and starts {@code next}.
+     */
+    void startPhase(Phase next) throws InterruptedIOException {
+        if (this == NONE) {
+            return;
+        }
+        endPhase();
+        phase = next;
+        phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Ends the current phase, failing if it ran past its budget or the transform has been
+     * cancelled.
+     */
+    void endPhase() throws InterruptedIOException {
+        if (this == NONE) {
+            return;
+        }
+        check();
+        phase = null;
+    }
+
+    private void check() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("NITF transform cancelled");
+        }
+        Phase current = phase;
+        if (current != null
+                && System.nanoTime() - phaseStart > getBudgetNanos(current)) {
+            throw new InterruptedIOException("NITF " + current.name().toLowerCase(Locale.US)
+                    + " phase ran past its budget of " + budgetMillis.get(current) + " ms");
+        }
+    }
+
+    /**
+     * Returns {@code input} checked against the current phase's budget and cancellation as it
+     * is read.
+     */
+    InputStream wrap(InputStream input) {
+        if (this == NONE) {
+            return input;
+        }
+        return new FilterInputStream(input) {
+            private int reads = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (++reads == READS_PER_CHECK) {
+                    reads = 0;
+                    check();
+                }
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                check();
+                return super.read(buffer, offset, length);
+            }
+
+            @Override
+            public long skip(long count) throws IOException {
+                check();
+                return super.skip(count);
+            }
+        };
+    }
+
+    /**
+     * Has {@code releasable} closed if the transform is cancelled, or at once if it already
+     * has been.
+     */
+    void releaseOnCancel(Closeable releasable) {
+        if (this == NONE) {
+            return;
+        }
+        synchronized (this) {
+            if (!cancelled) {
+                releasables.add(releasable);
+                return;
+            }
+        }
+        release(releasable);
+    }
+
+    /**
+     * Marks the calling thread as the one running the transform, so cancelling interrupts it.
+     */
+    synchronized void enter() {
+        runner = Thread.currentThread();
+    }
+
+    synchronized void exit() {
+        runner = null;
+        releasables.clear();
+        if (cancelled) {
+            // Don't leave an interrupt meant for this transform to the next task on the thread.
+            Thread.interrupted();
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Records that part of the metacard was left out for running past its budget, so the
+     * metacard shouldn't be kept for later transforms of the same input. Only a transform with
+     * budgets can run past one, so {@link #NONE} is never marked.
+     */
+    void markDegraded() {
+        degraded = true;
+    }
+
+    boolean isDegraded() {
+        return degraded;
+    }
+
+    void cancel() {
+        List<Closeable> toRelease;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            if (runner != null) {
+                runner.interrupt();
+            }
+            toRelease = new ArrayList<>(releasables);
+            releasables.clear();
+        }
+        for (Closeable releasable : toRelease) {
+            release(releasable);
+        }
+    }
+
+    private static void release(Closeable releasable) {
+        try {
+            releasable.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to release input of a cancelled transform", e);
+        }
+    }
+}
@@ -0,0 +1,571 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.codice.imaging.nitf.core.SlottedNitfParseStrategy;
+import org.codice.imaging.nitf.core.graphic.NitfGraphicSegmentHeader;
+import org.codice.imaging.nitf.core.image.ImageCoordinatesRepresentation;
+import org.codice.imaging.nitf.core.image.NitfImageSegmentHeader;
+import org.codice.imaging.nitf.core.text.TextSegmentHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects per phase latency histograms and throughput counters for the transformer.
+ * <p>
+ * Each transform takes a {@link Timer} from {@link #startTimer}, marks the end of each phase
+ * with {@link Timer#lap}, and reports the outcome once. When metrics are disabled the timer
+ * returned is a shared one that does nothing, not even read the clock.
+ * <p>
+ * With allocation tracking on, the timer also reads the bytes allocated by the transforming
+ * thread at each lap. Work handed to other threads, such as parallel segments or a budgeted
+ * thumbnail, is not counted.
+ */
+class TransformMetrics implements NitfTransformerMetricsMXBean {
+
+    /**
+     * The phases of a transform, in the order they run.
+     */
+    enum Phase {
+        READ("read"), PARSE("parse"), ATTRIBUTES("attributes"), LOCATION("location"),
+        METADATA("metadata"), THUMBNAIL("thumbnail");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransformMetrics.class);
+
+    private static final Timer DISABLED = new Timer(null, null, 0);
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private volatile boolean enabled = true;
+
+    private volatile long slowTransformThresholdMillis = 0;
+
+    private volatile boolean allocationTracking = false;
+
+    private final LatencyHistogram[] phaseLatencies = new LatencyHistogram[PHASES.length];
+
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    private final AtomicLong transforms = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong imageSegments = new AtomicLong();
+
+    private final AtomicLong graphicSegments = new AtomicLong();
+
+    private final AtomicLong textSegments = new AtomicLong();
+
+    private final AtomicLong tres = new AtomicLong();
+
+    private final AtomicLong spills = new AtomicLong();
+
+    private final ConcurrentMap<ImageCoordinatesRepresentation, AtomicLong> unsupportedRepresentations =
+            new ConcurrentHashMap<ImageCoordinatesRepresentation, AtomicLong>();
+
+    private final MetacardCache cache;
+
+    private final ThumbnailCache thumbnailCache;
+
+    private final AttributeInterner interner;
+
+    private final HeapBudget heapBudget;
+
+    TransformMetrics(MetacardCache cache, ThumbnailCache thumbnailCache,
+            AttributeInterner interner, HeapBudget heapBudget) {
+        this.cache = cache;
+        this.thumbnailCache = thumbnailCache;
+        this.interner = interner;
+        this.heapBudget = heapBudget;
+        for (int i = 0; i < phaseLatencies.length; ++i) {
+            phaseLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Starts timing the transform of {@code source}, which is only used to name the file in
+     * the slow transform log, and is {@code bytes} long.
+     */
+    Timer startTimer(Object source, long bytes) {
+        if (!enabled) {
+            return DISABLED;
+        }
+        return new Timer(this, source, bytes);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public boolean isAllocationTrackingEnabled() {
+        return allocationTracking;
+    }
+
+    @Override
+    public void setAllocationTrackingEnabled(boolean enabled) {
+        if (enabled && !AllocationCounter.isSupported()) {
+            LOGGER.warn("This JVM doesn't count thread allocation; allocation stays untracked");
+            return;
+        }
+        this.allocationTracking = enabled;
+    }
+
+    @Override
+    public long getSlowTransformThresholdMillis() {
+        return slowTransformThresholdMillis;
+    }
+
+    @Override
+    public void setSlowTransformThresholdMillis(long thresholdMillis) {
+        this.slowTransformThresholdMillis = thresholdMillis;
+    }
+
+    @Override
+    public long getTransformCount() {
+        return transforms.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public long getBytesProcessed() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getImageSegmentCount() {
+        return imageSegments.get();
+    }
+
+    @Override
+    public long getGraphicSegmentCount() {
+        return graphicSegments.get();
+    }
+
+    @Override
+    public long getTextSegmentCount() {
+        return textSegments.get();
+    }
+
+    @Override
+    public long getTreCount() {
+        return tres.get();
+    }
+
+    @Override
+    public Map<String, Long> getUnsupportedCoordinateRepresentations() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<ImageCoordinatesRepresentation, AtomicLong> count
+                : unsupportedRepresentations.entrySet()) {
+            counts.put(count.getKey().toString(), count.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Counts a stream transform whose input was spooled to a file.
+     */
+    void recordSpill() {
+        if (enabled) {
+            spills.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts an image segment whose footprint is in {@code representation}, which has no
+     * location support.
+     */
+    void recordUnsupportedRepresentation(ImageCoordinatesRepresentation representation) {
+        if (!enabled) {
+            return;
+        }
+        AtomicLong count = unsupportedRepresentations.get(representation);
+        if (count == null) {
+            AtomicLong added = new AtomicLong();
+            count = unsupportedRepresentations.putIfAbsent(representation, added);
+            if (count == null) {
+                count = added;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
+    @Override
+    public long getCacheEntryCount() {
+        return cache.getEntryCount();
+    }
+
+    @Override
+    public long getCacheRetainedBytes() {
+        return cache.getRetainedBytes();
+    }
+
+    @Override
+    public long getThumbnailCacheHitCount() {
+        return thumbnailCache.getHitCount();
+    }
+
+    @Override
+    public long getThumbnailCacheMissCount() {
+        return thumbnailCache.getMissCount();
+    }
+
+    @Override
+    public double getThumbnailCacheHitRate() {
+        long hits = thumbnailCache.getHitCount();
+        long lookups = hits + thumbnailCache.getMissCount();
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    @Override
+    public long getThumbnailCacheEntryCount() {
+        return thumbnailCache.getEntryCount();
+    }
+
+    @Override
+    public long getThumbnailCacheRetainedBytes() {
+        return thumbnailCache.getRetainedBytes();
+    }
+
+    @Override
+    public long getInternedValueCount() {
+        return interner.getEntryCount();
+    }
+
+    @Override
+    public long getInternHitCount() {
+        return interner.getHitCount();
+    }
+
+    @Override
+    public long getInternSavedBytes() {
+        return interner.getSavedBytes();
+    }
+
+    @Override
+    public long getHeapBudgetUsedBytes() {
+        return heapBudget.getUsedBytes();
+    }
+
+    @Override
+    public int getHeapBudgetWaiterCount() {
+        return heapBudget.getWaiterCount();
+    }
+
+    @Override
+    public long getHeapBudgetRejectionCount() {
+        return heapBudget.getRejectionCount();
+    }
+
+    @Override
+    public long getSpilledTransformCount() {
+        return spills.get();
+    }
+
+    @Override
+    public Map<String, PhaseStatistics> getPhaseStatistics() {
+        Map<String, PhaseStatistics> statistics = new LinkedHashMap<String, PhaseStatistics>();
+        for (Phase phase : PHASES) {
+            statistics.put(phase.label, phaseLatencies[phase.ordinal()].getStatistics());
+        }
+        statistics.put("total", totalLatency.getStatistics());
+        return statistics;
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : phaseLatencies) {
+            histogram.reset();
+        }
+        totalLatency.reset();
+        transforms.set(0);
+        failures.set(0);
+        bytes.set(0);
+        imageSegments.set(0);
+        graphicSegments.set(0);
+        textSegments.set(0);
+        tres.set(0);
+        spills.set(0);
+        unsupportedRepresentations.clear();
+        cache.resetCounts();
+        thumbnailCache.resetCounts();
+        interner.resetCounts();
+        heapBudget.resetCounts();
+    }
+
+    private void record(Timer timer, long totalNanos, SlottedNitfParseStrategy nitf) {
+        for (Phase phase : PHASES) {
+            long nanos = timer.phaseNanos[phase.ordinal()];
+            if (nanos >= 0) {
+                phaseLatencies[phase.ordinal()].record(nanos);
+                if (timer.phaseAllocated != null) {
+                    phaseLatencies[phase.ordinal()].recordAllocation(
+                            timer.phaseAllocated[phase.ordinal()]);
+                }
+            }
+        }
+        totalLatency.record(totalNanos);
+        if (timer.phaseAllocated != null) {
+            totalLatency.recordAllocation(
+                    AllocationCounter.currentThreadAllocatedBytes() - timer.startAllocated);
+        }
+        transforms.incrementAndGet();
+        bytes.addAndGet(timer.bytes);
+
+        long treCount = nitf.getNitfHeader().getTREsRawStructure().getTREs().size();
+        for (NitfImageSegmentHeader image : nitf.getImageSegmentHeaders()) {
+            treCount += image.getTREsRawStructure().getTREs().size();
+        }
+        for (NitfGraphicSegmentHeader graphic : nitf.getGraphicSegmentHeaders()) {
+            treCount += graphic.getTREsRawStructure().getTREs().size();
+        }
+        for (TextSegmentHeader text : nitf.getTextSegmentHeaders()) {
+            treCount += text.getTREsRawStructure().getTREs().size();
+        }
+        imageSegments.addAndGet(nitf.getImageSegmentHeaders().size());
+        graphicSegments.addAndGet(nitf.getGraphicSegmentHeaders().size());
+        textSegments.addAndGet(nitf.getTextSegmentHeaders().size());
+        tres.addAndGet(treCount);
+
+        long threshold = slowTransformThresholdMillis;
+        if (threshold > 0 && totalNanos >= TimeUnit.MILLISECONDS.toNanos(threshold)) {
+            LOGGER.warn("Slow NITF transform of {} ({} bytes, {} images, {} graphics, {} TREs) "
+                            + "took {}: {}", timer.source != null ? timer.source : "input",
+                    timer.bytes, nitf.getImageSegmentHeaders().size(),
+                    nitf.getGraphicSegmentHeaders().size(), treCount, formatMillis(totalNanos),
+                    timer.getBreakdown());
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.US, "%.1f ms", nanos / 1e6);
+    }
+
+    /**
+     * Times the phases of one transform. A timer is used by one thread only.
+     */
+    static final class Timer {
+
+        private final TransformMetrics metrics;
+
+        private final Object source;
+
+        private long bytes;
+
+        private final long[] phaseNanos;
+
+        private final long start;
+
+        private long lapStart;
+
+        /**
+         * Bytes allocated in each phase, or null if allocation isn't tracked.
+         */
+        private final long[] phaseAllocated;
+
+        private final long startAllocated;
+
+        private long lapAllocated;
+
+        private Timer(TransformMetrics metrics, Object source, long bytes) {
+            this.metrics = metrics;
+            this.source = source;
+            this.bytes = bytes;
+            if (metrics == null) {
+                this.phaseNanos = null;
+                this.start = 0;
+            } else {
+                this.phaseNanos = new long[PHASES.length];
+                Arrays.fill(phaseNanos, -1);
+                this.start = System.nanoTime();
+            }
+            this.lapStart = start;
+            if (metrics != null && metrics.allocationTracking) {
+                this.phaseAllocated = new long[PHASES.length];
+                this.startAllocated = AllocationCounter.currentThreadAllocatedBytes();
+            } else {
+                this.phaseAllocated = null;
+                this.startAllocated = 0;
+            }
+            this.lapAllocated = startAllocated;
+        }
+
+        /**
+         * Sets the size of the input, for when it isn't known until the input has been read.
+         */
+        void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Marks the end of {@code phase}, which is taken to have started at the end of the
+         * previous one.
+         */
+        void lap(Phase phase) {
+            if (metrics == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            int index = phase.ordinal();
+            phaseNanos[index] = Math.max(phaseNanos[index], 0) + now - lapStart;
+            lapStart = now;
+            if (phaseAllocated != null) {
+                long allocated = AllocationCounter.currentThreadAllocatedBytes();
+                phaseAllocated[index] += allocated - lapAllocated;
+                lapAllocated = allocated;
+            }
+        }
+
+        void finished(SlottedNitfParseStrategy nitf) {
+            if (metrics == null) {
+                return;
+            }
+            metrics.record(this, System.nanoTime() - start, nitf);
+        }
+
+        void failed() {
+            if (metrics == null) {
+                return;
+            }
+            metrics.failures.incrementAndGet();
+        }
+
+        private String getBreakdown() {
+            StringBuilder breakdown = new StringBuilder();
+            for (Phase phase : PHASES) {
+                long nanos = phaseNanos[phase.ordinal()];
+                if (nanos >= 0) {
+                    if (breakdown.length() > 0) {
+                        breakdown.append(", ");
+                    }
+                    breakdown.append(phase.label).append(' ').append(formatMillis(nanos));
+                }
+            }
+            return breakdown.toString();
+        }
+    }
+
+    /**
+     * A latency histogram with buckets that double in width, from 1 microsecond up.
+     */
+    private static final class LatencyHistogram {
+
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private final AtomicLong allocatedBytes = new AtomicLong();
+
+        private final AtomicLong allocationSamples = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        void recordAllocation(long bytes) {
+            allocatedBytes.addAndGet(bytes);
+            allocationSamples.incrementAndGet();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; ++i) {
+                counts.set(i, 0);
+            }
+            totalNanos.set(0);
+            maxNanos.set(0);
+            allocatedBytes.set(0);
+            allocationSamples.set(0);
+        }
+
+        PhaseStatistics getStatistics() {
+            long[] snapshot = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                snapshot[i] = counts.get(i);
+                count += snapshot[i];
+            }
+            double mean = count == 0 ? 0 : totalNanos.get() / 1e6 / count;
+            long samples = allocationSamples.get();
+            long meanAllocated = samples == 0 ? 0 : allocatedBytes.get() / samples;
+            return new PhaseStatistics(count, mean, maxNanos.get() / 1e6,
+                    percentile(snapshot, count, 0.50), percentile(snapshot, count, 0.95),
+                    percentile(snapshot, count, 0.99), meanAllocated);
+        }
+
+        /**
+         * Returns the upper bound, in milliseconds, of the bucket holding the quantile.
+         */
+        private static double percentile(long[] snapshot, long count, double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return (1L << i) / 1e3;
+                }
+            }
+            return (1L << (BUCKETS - 1)) / 1e3;
+        }
+    }
+}
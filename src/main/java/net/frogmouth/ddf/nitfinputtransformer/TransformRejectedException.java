@@ -0,0 +1,26 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import ddf.catalog.transform.CatalogTransformerException;
+
+/**
+ * Thrown when a transform is turned away because the transformer is busy, rather than because
+ * anything is wrong with its input. The same input can be retried later.
+ */
+public class TransformRejectedException extends CatalogTransformerException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TransformRejectedException(String message) {
+        super(message);
+    }
+}
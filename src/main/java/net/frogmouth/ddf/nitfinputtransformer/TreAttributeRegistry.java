@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ddf.catalog.data.AttributeDescriptor;
+import ddf.catalog.data.MetacardType;
+import ddf.catalog.data.impl.AttributeDescriptorImpl;
+import ddf.catalog.data.impl.BasicTypes;
+import ddf.catalog.data.impl.MetacardTypeImpl;
+
+/**
+ * Extends the NITF metacard type with an attribute for each TRE field seen so far, named
+ * {@code tre.<TRE name>.<field name>}.
+ * <p>
+ * The registered attributes are held in an immutable snapshot that is replaced, never changed,
+ * when a file brings new TRE fields, so lookups take no lock and a metacard's type never
+ * changes under it. Fields inside repeated groups are flattened to their own names, and every
+ * value is kept, so TRE attributes are multivalued strings. Once {@code maxAttributes} TRE
+ * attributes have been registered no more are added, which keeps files with unusual or
+ * malformed TREs from growing the type without bound.
+ * <p>
+ * The typed attributes of the current {@link TreMapping} are held alongside, and replace those
+ * of the previous mapping when it is reloaded. They don't count toward the limit.
+ */
+class TreAttributeRegistry {
+
+    static final String PREFIX = "tre.";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TreAttributeRegistry.class);
+
+    private final AtomicReference<Snapshot> snapshot;
+
+    private volatile int maxAttributes;
+
+    private volatile boolean warnedFull = false;
+
+    TreAttributeRegistry(MetacardType baseType, int maxAttributes) {
+        this.maxAttributes = maxAttributes;
+        this.snapshot = new AtomicReference<Snapshot>(new Snapshot(baseType,
+                Collections.<String>emptySet(), TreMapping.EMPTY.getDescriptors()));
+    }
+
+    int getMaxAttributes() {
+        return maxAttributes;
+    }
+
+    void setMaxAttributes(int maxAttributes) {
+        this.maxAttributes = maxAttributes;
+    }
+
+    /**
+     * Returns the metacard type with every TRE attribute registered so far.
+     */
+    MetacardType getMetacardType() {
+        return snapshot.get().type;
+    }
+
+    /**
+     * Registers an attribute for each of the {@code values} keys, and the mapped attributes
+     * {@code mappedDescriptors} describe in place of any registered before, and returns a
+     * metacard type holding them. Values for attributes that don't fit under the limit are
+     * removed from {@code values}.
+     */
+    MetacardType register(Map<String, List<Serializable>> values,
+            List<AttributeDescriptor> mappedDescriptors) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            List<String> added = new ArrayList<String>();
+            int room = maxAttributes - current.treAttributeNames.size();
+            Iterator<String> names = values.keySet().iterator();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (current.treAttributeNames.contains(name)) {
+                    continue;
+                }
+                if (added.size() < room) {
+                    added.add(name);
+                } else {
+                    warnFull();
+                    names.remove();
+                }
+            }
+            // A mapping's descriptor list stays the same object until the mapping is reloaded.
+            boolean remapped = mappedDescriptors != current.mappedDescriptors;
+            if (added.isEmpty() && !remapped) {
+                return current.type;
+            }
+            Snapshot next = current.with(added, mappedDescriptors);
+            if (snapshot.compareAndSet(current, next)) {
+                LOGGER.debug("Registered {} TRE attributes, {} in all", added.size(),
+                        next.treAttributeNames.size());
+                return next.type;
+            }
+        }
+    }
+
+    private void warnFull() {
+        if (!warnedFull) {
+            warnedFull = true;
+            LOGGER.warn("The limit of {} TRE attributes has been reached; further TRE fields "
+                    + "are only written to the metadata", maxAttributes);
+        }
+    }
+
+    /**
+     * An immutable set of registered TRE and mapped attributes and the metacard type that
+     * holds them.
+     */
+    private static final class Snapshot {
+
+        private final MetacardType type;
+
+        private final Set<String> treAttributeNames;
+
+        private final List<AttributeDescriptor> mappedDescriptors;
+
+        Snapshot(MetacardType type, Set<String> treAttributeNames,
+                List<AttributeDescriptor> mappedDescriptors) {
+            this.type = type;
+            this.treAttributeNames = treAttributeNames;
+            this.mappedDescriptors = mappedDescriptors;
+        }
+
+        Snapshot with(List<String> added, List<AttributeDescriptor> mapped) {
+            Set<String> names = new HashSet<String>(treAttributeNames);
+            Map<String, AttributeDescriptor> descriptors =
+                    new HashMap<String, AttributeDescriptor>();
+            for (AttributeDescriptor descriptor : type.getAttributeDescriptors()) {
+                descriptors.put(descriptor.getName(), descriptor);
+            }
+            if (mapped != mappedDescriptors) {
+                for (AttributeDescriptor descriptor : mappedDescriptors) {
+                    descriptors.remove(descriptor.getName());
+                }
+                for (AttributeDescriptor descriptor : mapped) {
+                    descriptors.put(descriptor.getName(), descriptor);
+                }
+            }
+            for (String name : added) {
+                names.add(name);
+                descriptors.put(name, new AttributeDescriptorImpl(name, true /* indexed */,
+                        true /* stored */, false /* tokenized */, true /* multivalued */,
+                        BasicTypes.STRING_TYPE));
+            }
+            return new Snapshot(new MetacardTypeImpl(type.getName(),
+                    new HashSet<AttributeDescriptor>(descriptors.values())),
+                    Collections.unmodifiableSet(names), mapped);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.codice.imaging.nitf.core.tre.Tre;
+import org.codice.imaging.nitf.core.tre.TreCollection;
+import org.codice.imaging.nitf.core.tre.TreEntry;
+import org.codice.imaging.nitf.core.tre.TreGroup;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ddf.catalog.data.AttributeDescriptor;
+import ddf.catalog.data.AttributeType;
+import ddf.catalog.data.MetacardType;
+import ddf.catalog.data.impl.AttributeDescriptorImpl;
+import ddf.catalog.data.impl.BasicTypes;
+
+/**
+ * Copies selected TRE fields, and fields of XML data extension segments, into typed metacard
+ * attributes, following rules compiled from a properties file with one attribute per line:
+ * <pre>
+ * sensorId = ACFTB.SENSOR_ID
+ * sunAzimuth = USE00A.SUN_AZ, CSEXRA.SUN_AZIMUTH : double
+ * sicdClassification = XML_DATA_CONTENT/SICD/CollectionInfo/Classification
+ * </pre>
+ * Each rule names one or more {@code TRE.FIELD} or {@link XmlDesExtractor DES path} sources
+ * and, optionally, the type of the attribute: {@code string} (the default), {@code integer},
+ * {@code long}, {@code double} or {@code date}, which reads {@code yyyyMMddHHmmss} or
+ * {@code yyyyMMdd} in UTC. Fields inside repeated groups are found by their own name, and every
+ * value is kept, so the attributes are multivalued. Values that can't be converted to the
+ * attribute type are skipped.
+ * <p>
+ * The rules are compiled into a plan per TRE, keyed by field name, so a file's TREs are walked
+ * once and a TRE no rule names costs a single lookup. The same walk collects the generic
+ * {@code tre.<TRE name>.<field name>} values when asked. Mappings are immutable.
+ */
+class TreMapping {
+
+    static final TreMapping EMPTY = new TreMapping(
+            Collections.<String, Map<String, Target[]>>emptyMap(),
+            Collections.<String, XmlDesExtractor.Field[]>emptyMap(),
+            Collections.<AttributeDescriptor>emptyList());
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TreMapping.class);
+
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormat
+            .forPattern("yyyyMMddHHmmss").withZone(DateTimeZone.UTC);
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormat
+            .forPattern("yyyyMMdd").withZone(DateTimeZone.UTC);
+
+    /**
+     * The attribute types a rule may give.
+     */
+    enum ValueType {
+        STRING(BasicTypes.STRING_TYPE) {
+            @Override
+            Serializable convert(String value) {
+                return value;
+            }
+        },
+        INTEGER(BasicTypes.INTEGER_TYPE) {
+            @Override
+            Serializable convert(String value) {
+                return Integer.valueOf(value);
+            }
+        },
+        LONG(BasicTypes.LONG_TYPE) {
+            @Override
+            Serializable convert(String value) {
+                return Long.valueOf(value);
+            }
+        },
+        DOUBLE(BasicTypes.DOUBLE_TYPE) {
+            @Override
+            Serializable convert(String value) {
+                return Double.valueOf(value);
+            }
+        },
+        DATE(BasicTypes.DATE_TYPE) {
+            @Override
+            Serializable convert(String value) {
+                DateTimeFormatter formatter = value.length() == 8 ? DATE_FORMATTER
+                        : DATE_TIME_FORMATTER;
+                return formatter.parseDateTime(value).toDate();
+            }
+        };
+
+        private final AttributeType<?> attributeType;
+
+        ValueType(AttributeType<?> attributeType) {
+            this.attributeType = attributeType;
+        }
+
+        /**
+         * Converts a trimmed, non-empty field value, throwing IllegalArgumentException if it
+         * isn't one of this type.
+         */
+        abstract Serializable convert(String value);
+
+        static ValueType fromString(String type) {
+            return valueOf(type.trim().toUpperCase(Locale.US));
+        }
+    }
+
+    private final Map<String, Map<String, Target[]>> plans;
+
+    private final Map<String, XmlDesExtractor.Field[]> desFields;
+
+    private final List<AttributeDescriptor> descriptors;
+
+    private TreMapping(Map<String, Map<String, Target[]>> plans,
+            Map<String, XmlDesExtractor.Field[]> desFields,
+            List<AttributeDescriptor> descriptors) {
+        this.plans = plans;
+        this.desFields = desFields;
+        this.descriptors = descriptors;
+    }
+
+    /**
+     * Reads and compiles the rules in {@code input}.
+     *
+     * @throws IllegalArgumentException if a rule is malformed, or names an attribute
+     *                                  {@code baseType} already has
+     */
+    static TreMapping load(InputStream input, MetacardType baseType) throws IOException {
+        Properties rules = new Properties();
+        rules.load(input);
+        return compile(rules, baseType);
+    }
+
+    /**
+     * Compiles {@code rules}, keyed by attribute name.
+     *
+     * @throws IllegalArgumentException if a rule is malformed, or names an attribute
+     *                                  {@code baseType} already has
+     */
+    static TreMapping compile(Properties rules, MetacardType baseType) {
+        Map<String, Map<String, List<Target>>> targets =
+                new HashMap<String, Map<String, List<Target>>>();
+        Map<String, List<XmlDesExtractor.Field>> desTargets =
+                new HashMap<String, List<XmlDesExtractor.Field>>();
+        List<AttributeDescriptor> descriptors = new ArrayList<AttributeDescriptor>();
+        // Sorted so the attributes come out in the same order whatever the file's order.
+        for (String attribute : new TreeSet<String>(rules.stringPropertyNames())) {
+            String rule = rules.getProperty(attribute);
+            String name = attribute.trim();
+            if (name.isEmpty() || name.startsWith(TreAttributeRegistry.PREFIX)
+                    || baseType.getAttributeDescriptor(name) != null) {
+                throw new IllegalArgumentException("TRE mapping can't define attribute '" + name
+                        + "'");
+            }
+
+            ValueType type = ValueType.STRING;
+            String sources = rule;
+            int typeSeparator = rule.lastIndexOf(':');
+            if (typeSeparator >= 0) {
+                sources = rule.substring(0, typeSeparator);
+                try {
+                    type = ValueType.fromString(rule.substring(typeSeparator + 1));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown type in TRE mapping for '" + name
+                            + "': " + rule, e);
+                }
+            }
+
+            Target target = new Target(name, type);
+            for (String source : sources.split(",")) {
+                if (source.indexOf('/') >= 0) {
+                    XmlDesExtractor.Field field = XmlDesExtractor.Field.parse(name, type, source);
+                    List<XmlDesExtractor.Field> fields = desTargets.get(field.desType);
+                    if (fields == null) {
+                        fields = new ArrayList<XmlDesExtractor.Field>();
+                        desTargets.put(field.desType, fields);
+                    }
+                    fields.add(field);
+                    continue;
+                }
+                String[] parts = source.trim().split("\\.");
+                if (parts.length != 2 || parts[0].isEmpty() || parts[1].isEmpty()) {
+                    throw new IllegalArgumentException("TRE mapping source for '" + name
+                            + "' is not TRE.FIELD: " + source.trim());
+                }
+                Map<String, List<Target>> plan = targets.get(parts[0]);
+                if (plan == null) {
+                    plan = new HashMap<String, List<Target>>();
+                    targets.put(parts[0], plan);
+                }
+                List<Target> fieldTargets = plan.get(parts[1]);
+                if (fieldTargets == null) {
+                    fieldTargets = new ArrayList<Target>(1);
+                    plan.put(parts[1], fieldTargets);
+                }
+                fieldTargets.add(target);
+            }
+            descriptors.add(new AttributeDescriptorImpl(name, true /* indexed */,
+                    true /* stored */, false /* tokenized */, true /* multivalued */,
+                    type.attributeType));
+        }
+
+        Map<String, Map<String, Target[]>> plans = new HashMap<String, Map<String, Target[]>>();
+        for (Map.Entry<String, Map<String, List<Target>>> tre : targets.entrySet()) {
+            Map<String, Target[]> plan = new HashMap<String, Target[]>();
+            for (Map.Entry<String, List<Target>> field : tre.getValue().entrySet()) {
+                plan.put(field.getKey(), field.getValue().toArray(new Target[0]));
+            }
+            plans.put(tre.getKey(), plan);
+        }
+        Map<String, XmlDesExtractor.Field[]> desFields =
+                new HashMap<String, XmlDesExtractor.Field[]>();
+        for (Map.Entry<String, List<XmlDesExtractor.Field>> des : desTargets.entrySet()) {
+            desFields.put(des.getKey(), des.getValue().toArray(new XmlDesExtractor.Field[0]));
+        }
+        return new TreMapping(plans, desFields, Collections.unmodifiableList(descriptors));
+    }
+
+    /**
+     * Returns the descriptors of the mapped attributes. The same list is returned for the life
+     * of the mapping.
+     */
+    List<AttributeDescriptor> getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * Returns whether no rule reads a TRE field.
+     */
+    boolean isEmpty() {
+        return plans.isEmpty();
+    }
+
+    /**
+     * Returns the fields rules read from the XML of a DES of type {@code desType}, or null if
+     * there are none.
+     */
+    XmlDesExtractor.Field[] getDesFields(String desType) {
+        return desFields.get(desType);
+    }
+
+    /**
+     * Walks the TREs in {@code treCollections} once, adding the value of each mapped field to
+     * {@code mappedValues} and, when {@code fieldValues} is not null, the value of every field
+     * of the TREs {@code policy} allows to {@code fieldValues} under its {@code tre.} name.
+     * Both are keyed by attribute name, in the order the values were found.
+     */
+    void collectValues(Collection<TreCollection> treCollections, TrePolicy policy,
+            Map<String, List<Serializable>> fieldValues,
+            Map<String, List<Serializable>> mappedValues) {
+        for (TreCollection treCollection : treCollections) {
+            for (Tre tre : treCollection.getTREs()) {
+                String treName = tre.getName().trim();
+                Map<String, Target[]> plan = plans.get(treName);
+                String prefix = null;
+                if (fieldValues != null && policy.isAllowed(treName)) {
+                    prefix = TreAttributeRegistry.PREFIX + treName + ".";
+                }
+                if (plan != null || prefix != null) {
+                    collectValues(tre.getEntries(), plan, mappedValues, prefix, fieldValues);
+                }
+            }
+        }
+    }
+
+    private static void collectValues(List<TreEntry> entries, Map<String, Target[]> plan,
+            Map<String, List<Serializable>> mappedValues, String prefix,
+            Map<String, List<Serializable>> fieldValues) {
+        for (TreEntry entry : entries) {
+            String value = entry.getFieldValue();
+            if (value != null) {
+                value = value.trim();
+            }
+            if (value != null && !value.isEmpty()) {
+                String fieldName = entry.getName().trim();
+                if (prefix != null) {
+                    addValue(fieldValues, prefix + fieldName, value);
+                }
+                Target[] targets = plan != null ? plan.get(fieldName) : null;
+                if (targets != null) {
+                    for (Target target : targets) {
+                        addMappedValue(mappedValues, target, value);
+                    }
+                }
+            }
+            if (entry.getGroups() != null) {
+                for (TreGroup group : entry.getGroups()) {
+                    collectValues(group.getEntries(), plan, mappedValues, prefix, fieldValues);
+                }
+            }
+        }
+    }
+
+    private static void addMappedValue(Map<String, List<Serializable>> values, Target target,
+            String value) {
+        Serializable converted;
+        try {
+            converted = target.type.convert(value);
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("Skipping TRE value '{}' that is not a {} for {}", value,
+                    target.type, target.attribute);
+            return;
+        }
+        addValue(values, target.attribute, converted);
+    }
+
+    private static void addValue(Map<String, List<Serializable>> values, String name,
+            Serializable value) {
+        List<Serializable> attributeValues = values.get(name);
+        if (attributeValues == null) {
+            attributeValues = new ArrayList<Serializable>(1);
+            values.put(name, attributeValues);
+        }
+        attributeValues.add(value);
+    }
+
+    private static final class Target {
+
+        private final String attribute;
+
+        private final ValueType type;
+
+        Target(String attribute, ValueType type) {
+            this.attribute = attribute;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides which TREs are expanded field by field into the metadata XML, and how far.
+ * <p>
+ * A TRE is expanded if its name is allowed: on the allowlist, when there is one, and not on
+ * the denylist. Repeated groups nested deeper than {@code maxGroupDepth} are written without
+ * their groups. A TRE whose expansion would pass {@code maxTreLength} characters, or take the
+ * file's TREs past {@code maxFileLength}, is summarized by name and length instead, as are TREs
+ * that aren't allowed. A limit of zero or less means no limit. Policies are immutable.
+ */
+class TrePolicy {
+
+    static final TrePolicy DEFAULT = new TrePolicy(Collections.<String>emptySet(),
+            Collections.<String>emptySet(), 64 * 1024, 1024 * 1024, 4);
+
+    private final Set<String> allowlist;
+
+    private final Set<String> denylist;
+
+    private final int maxTreLength;
+
+    private final int maxFileLength;
+
+    private final int maxGroupDepth;
+
+    TrePolicy(Collection<String> allowlist, Collection<String> denylist, int maxTreLength,
+            int maxFileLength, int maxGroupDepth) {
+        this.allowlist = normalize(allowlist);
+        this.denylist = normalize(denylist);
+        this.maxTreLength = maxTreLength > 0 ? maxTreLength : Integer.MAX_VALUE;
+        this.maxFileLength = maxFileLength > 0 ? maxFileLength : Integer.MAX_VALUE;
+        this.maxGroupDepth = maxGroupDepth > 0 ? maxGroupDepth : Integer.MAX_VALUE;
+    }
+
+    private static Set<String> normalize(Collection<String> names) {
+        Set<String> normalized = new HashSet<String>();
+        if (names != null) {
+            for (String name : names) {
+                if (name != null && !name.trim().isEmpty()) {
+                    normalized.add(name.trim());
+                }
+            }
+        }
+        return Collections.unmodifiableSet(normalized);
+    }
+
+    TrePolicy withAllowlist(Collection<String> names) {
+        return new TrePolicy(names, denylist, maxTreLength, maxFileLength, maxGroupDepth);
+    }
+
+    TrePolicy withDenylist(Collection<String> names) {
+        return new TrePolicy(allowlist, names, maxTreLength, maxFileLength, maxGroupDepth);
+    }
+
+    TrePolicy withMaxTreLength(int length) {
+        return new TrePolicy(allowlist, denylist, length, maxFileLength, maxGroupDepth);
+    }
+
+    TrePolicy withMaxFileLength(int length) {
+        return new TrePolicy(allowlist, denylist, maxTreLength, length, maxGroupDepth);
+    }
+
+    TrePolicy withMaxGroupDepth(int depth) {
+        return new TrePolicy(allowlist, denylist, maxTreLength, maxFileLength, depth);
+    }
+
+    /**
+     * Returns true if the TRE named {@code name} may be expanded.
+     */
+    boolean isAllowed(String name) {
+        String trimmed = name.trim();
+        return (allowlist.isEmpty() || allowlist.contains(trimmed))
+                && !denylist.contains(trimmed);
+    }
+
+    int getMaxTreLength() {
+        return maxTreLength;
+    }
+
+    int getMaxFileLength() {
+        return maxFileLength;
+    }
+
+    int getMaxGroupDepth() {
+        return maxGroupDepth;
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.codice.imaging.nitf.core.image.ImageCompression;
+import org.codice.imaging.nitf.core.image.ImageMode;
+import org.codice.imaging.nitf.core.image.ImageRepresentation;
+import org.codice.imaging.nitf.core.image.NitfImageSegmentHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a reduced resolution thumbnail from an uncompressed (IC=NC or NM) image segment.
+ * <p>
+ * The image is point sampled at a fixed stride. For each sampled row only the span of each
+ * block row that holds sampled columns is read, so memory use is bounded by one block row no
+ * matter how large the image is, and most of the pixel data is never read at all.
+ */
+class UncompressedImageThumbnailer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UncompressedImageThumbnailer.class);
+
+    private final NitfDataSource dataSource;
+
+    private final long dataOffset;
+
+    private final boolean masked;
+
+    private final ImageMode imageMode;
+
+    private final int rows;
+
+    private final int columns;
+
+    private final int bands;
+
+    private final int blocksPerRow;
+
+    private final int blocksPerColumn;
+
+    private final int pixelsPerBlockHorizontal;
+
+    private final int pixelsPerBlockVertical;
+
+    private final int bitsPerPixel;
+
+    private final int valueShift;
+
+    private final int[] displayBands;
+
+    private long pixelDataOffset;
+
+    private NitfBlockMask blockMask;
+
+    private byte[] spanBuffer = new byte[0];
+
+    UncompressedImageThumbnailer(NitfImageSegmentHeader image, NitfDataSource dataSource,
+            long dataOffset) {
+        this.dataSource = dataSource;
+        this.dataOffset = dataOffset;
+        this.masked = image.getImageCompression() == ImageCompression.NOTCOMPRESSEDMASK;
+        this.imageMode = image.getImageMode();
+        this.rows = (int) image.getNumberOfRows();
+        this.columns = (int) image.getNumberOfColumns();
+        this.bands = image.getNumBands();
+        this.blocksPerRow = image.getNumberOfBlocksPerRow();
+        this.blocksPerColumn = image.getNumberOfBlocksPerColumn();
+        // A block size of zero means the block is the full width or height of the image.
+        this.pixelsPerBlockHorizontal = image.getNumberOfPixelsPerBlockHorizontal() > 0
+                ? image.getNumberOfPixelsPerBlockHorizontal() : columns;
+        this.pixelsPerBlockVertical = image.getNumberOfPixelsPerBlockVertical() > 0
+                ? image.getNumberOfPixelsPerBlockVertical() : rows;
+        this.bitsPerPixel = image.getNumberOfBitsPerPixelPerBand();
+        int actualBits = image.getActualBitsPerPixelPerBand();
+        if (actualBits <= 0 || actualBits > bitsPerPixel) {
+            actualBits = bitsPerPixel;
+        }
+        this.valueShift = Math.max(0, actualBits - 8);
+        if (bands >= 3 && (image.getImageRepresentation() == ImageRepresentation.RGBTRUECOLOUR
+                || image.getImageRepresentation() == ImageRepresentation.MULTIBAND)) {
+            displayBands = new int[] {0, 1, 2};
+        } else {
+            displayBands = new int[] {0};
+        }
+    }
+
+    /**
+     * Returns true if {@code image} is uncompressed in a layout this class can sample.
+     */
+    static boolean canRender(NitfImageSegmentHeader image) {
+        if (image.getImageCompression() != ImageCompression.NOTCOMPRESSED
+                && image.getImageCompression() != ImageCompression.NOTCOMPRESSEDMASK) {
+            return false;
+        }
+        if (image.getNumberOfBitsPerPixelPerBand() < 1
+                || image.getNumberOfBitsPerPixelPerBand() > 32) {
+            return false;
+        }
+        return image.getNumBands() > 0 && image.getNumberOfRows() > 0
+                && image.getNumberOfColumns() > 0 && image.getImageMode() != ImageMode.UNKNOWN;
+    }
+
+    /**
+     * Renders a thumbnail no larger than {@code maxDimension} pixels on its longest side.
+     */
+    BufferedImage render(int maxDimension) throws IOException {
+        readBlockMask();
+
+        int stride = Math.max(1, (Math.max(rows, columns) + maxDimension - 1) / maxDimension);
+        int thumbnailRows = (rows + stride - 1) / stride;
+        int thumbnailColumns = (columns + stride - 1) / stride;
+        LOGGER.debug("Sampling {}x{} image every {} pixels", columns, rows, stride);
+
+        BufferedImage thumbnail;
+        if (displayBands.length == 3) {
+            thumbnail = new BufferedImage(thumbnailColumns, thumbnailRows,
+                    BufferedImage.TYPE_INT_RGB);
+        } else {
+            thumbnail = new BufferedImage(thumbnailColumns, thumbnailRows,
+                    BufferedImage.TYPE_BYTE_GRAY);
+        }
+
+        int[] rowValues = new int[thumbnailColumns];
+        int[] rgb = new int[thumbnailColumns];
+        for (int y = 0; y < thumbnailRows; ++y) {
+            int sourceRow = y * stride;
+            for (int b = 0; b < displayBands.length; ++b) {
+                sampleRow(displayBands[b], sourceRow, stride, rowValues);
+                for (int x = 0; x < thumbnailColumns; ++x) {
+                    if (b == 0) {
+                        rgb[x] = 0;
+                    }
+                    rgb[x] = (rgb[x] << 8) | rowValues[x];
+                }
+            }
+            if (displayBands.length == 3) {
+                thumbnail.setRGB(0, y, thumbnailColumns, 1, rgb, 0, thumbnailColumns);
+            } else {
+                thumbnail.getRaster().setSamples(0, y, thumbnailColumns, 1, 0, rgb);
+            }
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Fills {@code values} with the 8 bit value of every {@code stride}th column of
+     * {@code sourceRow} in {@code band}.
+     */
+    private void sampleRow(int band, int sourceRow, int stride, int[] values) throws IOException {
+        int blockRow = sourceRow / pixelsPerBlockVertical;
+        int rowInBlock = sourceRow % pixelsPerBlockVertical;
+
+        int x = 0;
+        for (int blockColumn = 0; blockColumn < blocksPerRow && x < values.length;
+                ++blockColumn) {
+            int blockStart = blockColumn * pixelsPerBlockHorizontal;
+            int blockEnd = Math.min(blockStart + pixelsPerBlockHorizontal, columns);
+            if (x * stride >= blockEnd) {
+                continue;
+            }
+            int firstColumn = x * stride - blockStart;
+            int lastX = Math.min(values.length - 1, (blockEnd - 1) / stride);
+            int lastColumn = lastX * stride - blockStart;
+
+            long blockOffset = getBlockOffset(band, blockRow, blockColumn);
+            if (blockOffset < 0) {
+                for (; x <= lastX; ++x) {
+                    values[x] = 0;
+                }
+                continue;
+            }
+
+            long firstBit = getSampleBit(band, rowInBlock, firstColumn);
+            long lastBit = getSampleBit(band, rowInBlock, lastColumn) + bitsPerPixel;
+            long firstByte = firstBit / 8;
+            int spanLength = (int) ((lastBit + 7) / 8 - firstByte);
+            if (spanBuffer.length < spanLength) {
+                spanBuffer = new byte[spanLength];
+            }
+            dataSource.readFully(pixelDataOffset + blockOffset + firstByte, spanBuffer, 0,
+                    spanLength);
+
+            for (; x <= lastX; ++x) {
+                long bit = getSampleBit(band, rowInBlock, x * stride - blockStart) - firstByte * 8;
+                values[x] = toDisplayValue(readBits(bit));
+            }
+        }
+    }
+
+    /**
+     * Returns the bit offset of a sample from the start of its block, for the band layouts
+     * described by IMODE.
+     */
+    private long getSampleBit(int band, int rowInBlock, int columnInBlock) {
+        long pixelsPerBlockRow = pixelsPerBlockHorizontal;
+        switch (imageMode) {
+        case PIXELINTERLEVE:
+            return ((rowInBlock * pixelsPerBlockRow + columnInBlock) * bands + band)
+                    * bitsPerPixel;
+        case ROWINTERLEVE:
+            return ((rowInBlock * (long) bands + band) * pixelsPerBlockRow + columnInBlock)
+                    * bitsPerPixel;
+        case BLOCKINTERLEVE:
+            return band * getBandBlockBytes() * 8
+                    + (rowInBlock * pixelsPerBlockRow + columnInBlock) * bitsPerPixel;
+        default:
+            return (rowInBlock * pixelsPerBlockRow + columnInBlock) * bitsPerPixel;
+        }
+    }
+
+    private long getBandBlockBytes() {
+        return ((long) pixelsPerBlockHorizontal * pixelsPerBlockVertical * bitsPerPixel + 7) / 8;
+    }
+
+    /**
+     * Returns the offset of a block from the start of the pixel data, or -1 if the block mask
+     * says the block is not recorded.
+     */
+    private long getBlockOffset(int band, int blockRow, int blockColumn) {
+        int blockIndex = blockRow * blocksPerRow + blockColumn;
+        boolean bandSequential = imageMode == ImageMode.BANDSEQUENTIAL && bands > 1;
+        if (blockMask != null && blockMask.hasBlockOffsets()) {
+            int maskIndex = bandSequential ? band * blocksPerRow * blocksPerColumn + blockIndex
+                    : blockIndex;
+            return blockMask.getBlockOffset(maskIndex);
+        }
+        long bandBlockBytes = getBandBlockBytes();
+        if (bandSequential) {
+            return (band * (long) blocksPerRow * blocksPerColumn + blockIndex) * bandBlockBytes;
+        }
+        return blockIndex * bandBlockBytes * bands;
+    }
+
+    /**
+     * Reads the block mask table at the start of IC=NM image data, if there is one.
+     */
+    private void readBlockMask() throws IOException {
+        pixelDataOffset = dataOffset;
+        if (!masked) {
+            return;
+        }
+        int maskCount = blocksPerRow * blocksPerColumn;
+        if (imageMode == ImageMode.BANDSEQUENTIAL) {
+            maskCount *= bands;
+        }
+        blockMask = NitfBlockMask.read(dataSource, dataOffset, maskCount);
+        pixelDataOffset = blockMask.getPixelDataOffset();
+    }
+
+    private int readBits(long bitOffset) {
+        if (bitsPerPixel % 8 == 0 && bitOffset % 8 == 0) {
+            return (int) NitfBlockMask.readUnsigned(spanBuffer, (int) (bitOffset / 8),
+                    bitsPerPixel / 8);
+        }
+        long value = 0;
+        for (int i = 0; i < bitsPerPixel; ++i) {
+            long bit = bitOffset + i;
+            int current = (spanBuffer[(int) (bit / 8)] >> (7 - (int) (bit % 8))) & 0x01;
+            value = (value << 1) | current;
+        }
+        return (int) value;
+    }
+
+    private int toDisplayValue(int value) {
+        if (bitsPerPixel == 1) {
+            return value == 0 ? 0 : 0xFF;
+        }
+        return Math.min(0xFF, (value >>> valueShift) & 0xFFFFFF);
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) Codice Foundation
+ * <p>
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ */
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pulls selected fields out of the XML carried by a data extension segment, such as the SICD
+ * and SIDD metadata in an {@code XML_DATA_CONTENT} DES.
+ * <p>
+ * Fields are named by a path of element local names from the document root, optionally
+ * ending in {@code @attribute}, with {@code *} matching any one element:
+ * <pre>
+ * XML_DATA_CONTENT/SICD/CollectionInfo/Classification
+ * XML_DATA_CONTENT/SICD/ImageFormation/RcvChanProc/@index
+ * </pre>
+ * Namespaces are ignored. The XML is read with a StAX pull parser straight from the segment
+ * data, so only the text of the fields named is ever held, whatever the size of the DES. Text
+ * longer than {@link #MAX_VALUE_LENGTH} is skipped rather than collected. DTDs and external
+ * entities are not read.
+ */
+class XmlDesExtractor {
+
+    static final int MAX_VALUE_LENGTH = 4096;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(XmlDesExtractor.class);
+
+    /**
+     * DES types whose data is an XML document. SICD_XML and SIDD_XML are the identifiers used
+     * by files written before XML_DATA_CONTENT was registered.
+     */
+    private static final Set<String> XML_DES_TYPES = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList("XML_DATA_CONTENT", "SICD_XML", "SIDD_XML")));
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+    private XmlDesExtractor() {
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    }
+
+    /**
+     * Returns whether a DES of type {@code identifier} carries XML this class can read.
+     */
+    static boolean isXmlDes(String identifier) {
+        return XML_DES_TYPES.contains(identifier);
+    }
+
+    /**
+     * Streams the XML in {@code payload}, returning the text of every element or attribute
+     * {@code fields} name, by field in the order given, and in document order for each.
+     * Fields with no value are left out. A document that turns out to be malformed gives the
+     * values found before the error; only a failure to read {@code payload} is thrown.
+     */
+    static Map<Field, List<String>> extract(InputStream payload, Field[] fields)
+            throws IOException {
+        Map<Field, List<String>> values = new LinkedHashMap<Field, List<String>>();
+        XMLStreamReader reader;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(payload);
+        } catch (XMLStreamException e) {
+            LOGGER.debug("Unable to read XML in DES", e);
+            return values;
+        }
+        // How many leading steps of each field's path the current element path matches.
+        int[] matched = new int[fields.length];
+        StringBuilder[] text = new StringBuilder[fields.length];
+        boolean[] tooLong = new boolean[fields.length];
+        int depth = 0;
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    ++depth;
+                    String name = reader.getLocalName();
+                    for (int i = 0; i < fields.length; ++i) {
+                        Field field = fields[i];
+                        if (matched[i] != depth - 1 || !field.matches(depth - 1, name)) {
+                            continue;
+                        }
+                        matched[i] = depth;
+                        if (depth < field.elements.length) {
+                            continue;
+                        }
+                        if (field.attribute != null) {
+                            String value = getAttribute(reader, field.attribute);
+                            if (value != null) {
+                                addValue(values, field, value);
+                            }
+                        } else {
+                            text[i] = new StringBuilder();
+                            tooLong[i] = false;
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    for (int i = 0; i < fields.length; ++i) {
+                        if (text[i] != null && !tooLong[i]) {
+                            if (text[i].length() + reader.getTextLength() > MAX_VALUE_LENGTH) {
+                                tooLong[i] = true;
+                            } else {
+                                text[i].append(reader.getTextCharacters(),
+                                        reader.getTextStart(), reader.getTextLength());
+                            }
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    for (int i = 0; i < fields.length; ++i) {
+                        if (matched[i] != depth) {
+                            continue;
+                        }
+                        if (text[i] != null && depth == fields[i].elements.length) {
+                            if (tooLong[i]) {
+                                LOGGER.debug("Skipping DES value over {} characters for {}",
+                                        MAX_VALUE_LENGTH, fields[i].attributeName);
+                            } else {
+                                addValue(values, fields[i], text[i].toString());
+                            }
+                            text[i] = null;
+                        }
+                        matched[i] = depth - 1;
+                    }
+                    --depth;
+                    break;
+                default:
+                    break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            Throwable cause = e.getNestedException() != null ? e.getNestedException()
+                    : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            LOGGER.debug("Stopped reading malformed XML in DES", e);
+        } finally {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                LOGGER.debug("Unable to close DES XML reader", e);
+            }
+        }
+        return values;
+    }
+
+    private static String getAttribute(XMLStreamReader reader, String localName) {
+        for (int i = 0; i < reader.getAttributeCount(); ++i) {
+            if (localName.equals(reader.getAttributeLocalName(i))) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    private static void addValue(Map<Field, List<String>> values, Field field, String value) {
+        String trimmed = value.trim();
+        if (trimmed.isEmpty()) {
+            return;
+        }
+        List<String> fieldValues = values.get(field);
+        if (fieldValues == null) {
+            fieldValues = new ArrayList<String>(1);
+            values.put(field, fieldValues);
+        }
+        fieldValues.add(trimmed);
+    }
+
+    /**
+     * A DES field copied into a metacard attribute.
+     */
+    static final class Field {
+
+        final String attributeName;
+
+        final TreMapping.ValueType type;
+
+        final String desType;
+
+        private final String[] elements;
+
+        private final String attribute;
+
+        private Field(String attributeName, TreMapping.ValueType type, String desType,
+                String[] elements, String attribute) {
+            this.attributeName = attributeName;
+            this.type = type;
+            this.desType = desType;
+            this.elements = elements;
+            this.attribute = attribute;
+        }
+
+        /**
+         * Parses {@code source}, a DES type followed by the path of the field.
+         *
+         * @throws IllegalArgumentException if it isn't one
+         */
+        static Field parse(String attributeName, TreMapping.ValueType type, String source) {
+            String[] steps = source.trim().split("/", -1);
+            String attribute = null;
+            int elementCount = steps.length - 1;
+            if (steps[steps.length - 1].startsWith("@")) {
+                attribute = steps[steps.length - 1].substring(1);
+                --elementCount;
+            }
+            boolean valid = elementCount > 0 && !steps[0].isEmpty()
+                    && (attribute == null || !attribute.isEmpty());
+            for (int i = 1; valid && i <= elementCount; ++i) {
+                valid = !steps[i].isEmpty() && !steps[i].startsWith("@");
+            }
+            if (!valid) {
+                throw new IllegalArgumentException("DES mapping source for '" + attributeName
+                        + "' is not DES/ELEMENT[/...][/@ATTRIBUTE]: " + source.trim());
+            }
+            return new Field(attributeName, type, steps[0],
+                    Arrays.copyOfRange(steps, 1, elementCount + 1), attribute);
+        }
+
+        private boolean matches(int step, String localName) {
+            return step < elements.length
+                    && ("*".equals(elements[step]) || elements[step].equals(localName));
+        }
+
+        /**
+         * Converts a value of this field to the attribute type, or returns null if it isn't
+         * one.
+         */
+        Serializable convert(String value) {
+            try {
+                return type.convert(value);
+            } catch (IllegalArgumentException e) {
+                LOGGER.debug("Skipping DES value '{}' that is not a {} for {}", value, type,
+                        attributeName);
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates NITF 2.1 files of a chosen shape for tests and benchmarks.
+ * <p>
+ * Images are uncompressed 8 bit MONO with geographic corner coordinates, graphics are small
+ * binary CGM drawings and text segments are plain ASCII. The file header and every image
+ * subheader carry {@code treCount} TREs, whose repeated group depth is picked with
+ * {@code treGroupDepth}: 0 gives STDIDC (no groups), 1 gives ENGRDA (one level of records) and
+ * 2 gives ACCHZB (records of coordinate points). Data extension segments hold whatever data
+ * they are given. Output depends only on the settings and the seed, so the same settings
+ * always give the same bytes.
+ */
+public class SyntheticNitfGenerator {
+
+    private static final String DATE_TIME = "20150101120000";
+
+    private static final int SECURITY_LENGTH = 167;
+
+    private int imageSegments = 1;
+
+    private int graphicSegments = 0;
+
+    private int textSegments = 0;
+
+    private int graphicSize = 100;
+
+    private int graphicSpacing = 0;
+
+    private int imageRows = 256;
+
+    private int imageColumns = 256;
+
+    private int treCount = 0;
+
+    private int treGroupDepth = 1;
+
+    private int treGroupCount = 4;
+
+    private int textLength = 1024;
+
+    private final List<String> desTypes = new ArrayList<String>();
+
+    private final List<byte[]> desData = new ArrayList<byte[]>();
+
+    private long seed = 1;
+
+    public SyntheticNitfGenerator imageSegments(int count) {
+        this.imageSegments = count;
+        return this;
+    }
+
+    public SyntheticNitfGenerator graphicSegments(int count) {
+        this.graphicSegments = count;
+        return this;
+    }
+
+    /**
+     * Sets the width and height each graphic subheader declares for its bounding box. The
+     * drawing itself stays the same.
+     */
+    public SyntheticNitfGenerator graphicSize(int size) {
+        this.graphicSize = size;
+        return this;
+    }
+
+    /**
+     * Attaches each graphic after the first to the one before it, {@code spacing} rows and
+     * columns further on, so the graphics run diagonally down the page.
+     */
+    public SyntheticNitfGenerator graphicSpacing(int spacing) {
+        this.graphicSpacing = spacing;
+        return this;
+    }
+
+    public SyntheticNitfGenerator textSegments(int count) {
+        this.textSegments = count;
+        return this;
+    }
+
+    /**
+     * Adds a data extension segment of type {@code type} holding {@code data}, after any
+     * added before.
+     */
+    public SyntheticNitfGenerator dataExtensionSegment(String type, byte[] data) {
+        desTypes.add(type);
+        desData.add(data);
+        return this;
+    }
+
+    /**
+     * Sets the size of each image, which sets the pixel payload at one byte per pixel.
+     */
+    public SyntheticNitfGenerator imageSize(int rows, int columns) {
+        this.imageRows = rows;
+        this.imageColumns = columns;
+        return this;
+    }
+
+    /**
+     * Sets the number of TREs in the file header and in each image subheader.
+     */
+    public SyntheticNitfGenerator treCount(int count) {
+        this.treCount = count;
+        return this;
+    }
+
+    /**
+     * Sets how deeply TRE repeated groups nest, from 0 to 2.
+     */
+    public SyntheticNitfGenerator treGroupDepth(int depth) {
+        if (depth < 0 || depth > 2) {
+            throw new IllegalArgumentException("TRE group depth must be between 0 and 2");
+        }
+        this.treGroupDepth = depth;
+        return this;
+    }
+
+    /**
+     * Sets how many times each TRE repeated group repeats.
+     */
+    public SyntheticNitfGenerator treGroupCount(int count) {
+        this.treGroupCount = count;
+        return this;
+    }
+
+    public SyntheticNitfGenerator textLength(int length) {
+        this.textLength = length;
+        return this;
+    }
+
+    public SyntheticNitfGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public Path write(Path path) throws IOException {
+        Files.write(path, generate());
+        return path;
+    }
+
+    public byte[] generate() throws IOException {
+        Random random = new Random(seed);
+
+        List<byte[]> imageSubheaders = new ArrayList<byte[]>();
+        List<byte[]> images = new ArrayList<byte[]>();
+        for (int i = 0; i < imageSegments; ++i) {
+            imageSubheaders.add(imageSubheader(i, random));
+            images.add(imageData(random));
+        }
+        List<byte[]> graphicSubheaders = new ArrayList<byte[]>();
+        List<byte[]> graphics = new ArrayList<byte[]>();
+        for (int i = 0; i < graphicSegments; ++i) {
+            graphicSubheaders.add(graphicSubheader(i));
+            graphics.add(cgm(random));
+        }
+        List<byte[]> textSubheaders = new ArrayList<byte[]>();
+        List<byte[]> texts = new ArrayList<byte[]>();
+        for (int i = 0; i < textSegments; ++i) {
+            textSubheaders.add(textSubheader(i));
+            texts.add(text(random));
+        }
+
+        Fields segmentTable = new Fields();
+        segmentTable.number(imageSegments, 3);
+        for (int i = 0; i < imageSegments; ++i) {
+            segmentTable.number(imageSubheaders.get(i).length, 6).number(images.get(i).length, 10);
+        }
+        segmentTable.number(graphicSegments, 3);
+        for (int i = 0; i < graphicSegments; ++i) {
+            segmentTable.number(graphicSubheaders.get(i).length, 4)
+                    .number(graphics.get(i).length, 6);
+        }
+        segmentTable.number(0, 3);
+        segmentTable.number(textSegments, 3);
+        for (int i = 0; i < textSegments; ++i) {
+            segmentTable.number(textSubheaders.get(i).length, 4).number(texts.get(i).length, 5);
+        }
+        segmentTable.number(desTypes.size(), 3);
+        List<byte[]> desSubheaders = new ArrayList<byte[]>();
+        for (int i = 0; i < desTypes.size(); ++i) {
+            desSubheaders.add(desSubheader(desTypes.get(i)));
+            segmentTable.number(desSubheaders.get(i).length, 4).number(desData.get(i).length, 9);
+        }
+        segmentTable.number(0, 3);
+        segmentTable.number(0, 5);
+        extendedData(segmentTable, tres(random), 5);
+
+        Fields header = new Fields();
+        header.text("NITF", 4).text("02.10", 5).number(complexityLevel(), 2).text("BF01", 4)
+                .text("SYNTHETIC", 10).text(DATE_TIME, 14).text("Synthetic NITF", 80);
+        header.text("U", SECURITY_LENGTH).number(0, 5).number(0, 5).text("0", 1);
+        header.bytes(new byte[] {0, 0, 0}).text("Generator", 24).text("", 18);
+        int headerLength = header.length() + 12 + 6 + segmentTable.length();
+        long fileLength = headerLength;
+        for (int i = 0; i < imageSegments; ++i) {
+            fileLength += imageSubheaders.get(i).length + images.get(i).length;
+        }
+        for (int i = 0; i < graphicSegments; ++i) {
+            fileLength += graphicSubheaders.get(i).length + graphics.get(i).length;
+        }
+        for (int i = 0; i < textSegments; ++i) {
+            fileLength += textSubheaders.get(i).length + texts.get(i).length;
+        }
+        for (int i = 0; i < desTypes.size(); ++i) {
+            fileLength += desSubheaders.get(i).length + desData.get(i).length;
+        }
+        header.number(fileLength, 12).number(headerLength, 6).bytes(segmentTable.toBytes());
+
+        ByteArrayOutputStream nitf = new ByteArrayOutputStream((int) fileLength);
+        nitf.write(header.toBytes());
+        for (int i = 0; i < imageSegments; ++i) {
+            nitf.write(imageSubheaders.get(i));
+            nitf.write(images.get(i));
+        }
+        for (int i = 0; i < graphicSegments; ++i) {
+            nitf.write(graphicSubheaders.get(i));
+            nitf.write(graphics.get(i));
+        }
+        for (int i = 0; i < textSegments; ++i) {
+            nitf.write(textSubheaders.get(i));
+            nitf.write(texts.get(i));
+        }
+        for (int i = 0; i < desTypes.size(); ++i) {
+            nitf.write(desSubheaders.get(i));
+            nitf.write(desData.get(i));
+        }
+        return nitf.toByteArray();
+    }
+
+    private int complexityLevel() {
+        int largest = Math.max(imageRows, imageColumns);
+        if (largest <= 2048) {
+            return 3;
+        } else if (largest <= 8192) {
+            return 5;
+        } else if (largest <= 65536) {
+            return 6;
+        }
+        return 7;
+    }
+
+    private byte[] imageSubheader(int index, Random random) {
+        Fields fields = new Fields();
+        fields.text("IM", 2).text(String.format(Locale.US, "SYNTH%03d", index), 10)
+                .text(DATE_TIME, 14).text("", 17).text("Synthetic image " + index, 80);
+        fields.text("U", SECURITY_LENGTH).text("0", 1).text("Synthetic", 42);
+        fields.number(imageRows, 8).number(imageColumns, 8).text("INT", 3).text("MONO", 8)
+                .text("VIS", 8).number(8, 2).text("R", 1);
+        fields.text("G", 1).text(corners(random), 60);
+        fields.number(0, 1).text("NC", 2).number(1, 1);
+        fields.text("M", 2).text("", 6).text("N", 1).text("", 3).number(0, 1);
+        fields.number(0, 1).text("B", 1).number(1, 4).number(1, 4);
+        fields.number(imageColumns <= 8192 ? imageColumns : 0, 4);
+        fields.number(imageRows <= 8192 ? imageRows : 0, 4);
+        fields.number(8, 2).number(index + 1, 3).number(0, 3).number(0, 10).text("1.0", 4);
+        fields.number(0, 5);
+        extendedData(fields, tres(random), 5);
+        return fields.toBytes();
+    }
+
+    /**
+     * Returns IGEOLO for a random one degree square, as four ddmmssXdddmmssY corners.
+     */
+    private static String corners(Random random) {
+        int latitude = random.nextInt(170) - 85;
+        int longitude = random.nextInt(358) - 179;
+        return corner(latitude + 1, longitude) + corner(latitude + 1, longitude + 1)
+                + corner(latitude, longitude + 1) + corner(latitude, longitude);
+    }
+
+    private static String corner(int latitude, int longitude) {
+        return String.format(Locale.US, "%02d0000%s%03d0000%s", Math.abs(latitude),
+                latitude < 0 ? "S" : "N", Math.abs(longitude), longitude < 0 ? "W" : "E");
+    }
+
+    private byte[] imageData(Random random) {
+        byte[] pixels = new byte[imageRows * imageColumns];
+        for (int row = 0; row < imageRows; ++row) {
+            for (int column = 0; column < imageColumns; ++column) {
+                int value = (row + column) * 255 / Math.max(1, imageRows + imageColumns - 2);
+                pixels[row * imageColumns + column] = (byte) (value + random.nextInt(16) - 8);
+            }
+        }
+        return pixels;
+    }
+
+    private static byte[] desSubheader(String type) {
+        Fields fields = new Fields();
+        fields.text("DE", 2).text(type, 25).number(1, 2).text("U", SECURITY_LENGTH);
+        fields.number(0, 4);
+        return fields.toBytes();
+    }
+
+    private byte[] graphicSubheader(int index) {
+        Fields fields = new Fields();
+        fields.text("SY", 2).text(String.format(Locale.US, "GRAPH%03d", index), 10)
+                .text("Synthetic " + index, 20);
+        fields.text("U", SECURITY_LENGTH).text("0", 1).text("C", 1).number(0, 13);
+        int offset = index > 0 ? graphicSpacing : 0;
+        fields.number(imageSegments + index + 1, 3)
+                .number(index > 0 && graphicSpacing > 0 ? imageSegments + index : 0, 3)
+                .number(offset, 5).number(offset, 5).number(0, 10);
+        fields.text("C", 1).number(graphicSize, 5).number(graphicSize, 5).number(0, 2)
+                .number(0, 5);
+        return fields.toBytes();
+    }
+
+    /**
+     * Returns a binary CGM drawing of one random polyline in a 100x100 picture.
+     */
+    private static byte[] cgm(Random random) {
+        Fields cgm = new Fields();
+        cgmCommand(cgm, 0, 1, cgmString("synthetic"));
+        cgmCommand(cgm, 1, 1, cgmIntegers(1));
+        cgmCommand(cgm, 1, 11, cgmIntegers(1, -1, 1));
+        cgmCommand(cgm, 0, 3, cgmString("picture"));
+        cgmCommand(cgm, 2, 2, cgmIntegers(1));
+        cgmCommand(cgm, 2, 3, cgmIntegers(0));
+        cgmCommand(cgm, 2, 6, cgmIntegers(0, 0, 100, 100));
+        cgmCommand(cgm, 0, 4, new byte[0]);
+        cgmCommand(cgm, 5, 4, new byte[] {(byte) 0xFF, 0, 0});
+        cgmCommand(cgm, 5, 3, cgmIntegers(2));
+        int[] points = new int[16];
+        for (int i = 0; i < points.length; ++i) {
+            points[i] = random.nextInt(100);
+        }
+        cgmCommand(cgm, 4, 1, cgmIntegers(points));
+        cgmCommand(cgm, 0, 5, new byte[0]);
+        cgmCommand(cgm, 0, 2, new byte[0]);
+        return cgm.toBytes();
+    }
+
+    private static void cgmCommand(Fields cgm, int elementClass, int elementId, byte[] parameters) {
+        int header = (elementClass << 12) | (elementId << 5);
+        if (parameters.length < 31) {
+            cgm.int16(header | parameters.length);
+        } else {
+            cgm.int16(header | 31).int16(parameters.length);
+        }
+        cgm.bytes(parameters);
+        if (parameters.length % 2 != 0) {
+            cgm.bytes(new byte[1]);
+        }
+    }
+
+    private static byte[] cgmString(String value) {
+        Fields fields = new Fields();
+        fields.bytes(new byte[] {(byte) value.length()}).text(value, value.length());
+        return fields.toBytes();
+    }
+
+    private static byte[] cgmIntegers(int... values) {
+        Fields fields = new Fields();
+        for (int value : values) {
+            fields.int16(value);
+        }
+        return fields.toBytes();
+    }
+
+    private byte[] textSubheader(int index) {
+        Fields fields = new Fields();
+        fields.text("TE", 2).text(String.format(Locale.US, "TXT%03d", index), 7).number(0, 3)
+                .text(DATE_TIME, 14).text("Synthetic text " + index, 80);
+        fields.text("U", SECURITY_LENGTH).text("0", 1).text("STA", 3).number(0, 5);
+        return fields.toBytes();
+    }
+
+    private byte[] text(Random random) {
+        StringBuilder text = new StringBuilder(textLength);
+        while (text.length() < textLength) {
+            text.append("Line ").append(random.nextInt(100000)).append("\r\n");
+        }
+        text.setLength(textLength);
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Appends a TRE length field of {@code width} digits, an overflow field and the TREs.
+     */
+    private static void extendedData(Fields fields, byte[] tres, int width) {
+        if (tres.length == 0) {
+            fields.number(0, width);
+        } else {
+            fields.number(tres.length + 3, width).number(0, 3).bytes(tres);
+        }
+    }
+
+    private byte[] tres(Random random) {
+        Fields tres = new Fields();
+        for (int i = 0; i < treCount; ++i) {
+            Fields tre = new Fields();
+            String name;
+            switch (treGroupDepth) {
+            case 0:
+                name = "STDIDC";
+                stdidc(tre, random);
+                break;
+            case 1:
+                name = "ENGRDA";
+                engrda(tre, random);
+                break;
+            default:
+                name = "ACCHZB";
+                acchzb(tre, random);
+                break;
+            }
+            tres.text(name, 6).number(tre.length(), 5).bytes(tre.toBytes());
+        }
+        return tres.toBytes();
+    }
+
+    private static void stdidc(Fields tre, Random random) {
+        tre.text(DATE_TIME, 14).text("SYNTHETIC", 14).number(random.nextInt(100), 2)
+                .number(random.nextInt(1000), 3).text("AA", 2).number(0, 2).text("000", 3)
+                .text("", 1).number(1, 3).number(1, 5).text("AA", 2).number(1, 3).number(1, 5)
+                .text("US", 2).text("", 4).text("", 11).text("", 5).text("", 8);
+    }
+
+    private void engrda(Fields tre, Random random) {
+        tre.text("SYNTHETIC", 20).number(treGroupCount, 3);
+        for (int i = 0; i < treGroupCount; ++i) {
+            String label = String.format(Locale.US, "VALUE%03d", i);
+            String value = Integer.toString(random.nextInt(1000000));
+            tre.number(label.length(), 2).text(label, label.length());
+            tre.number(value.length(), 4).number(1, 4).text("A", 1).number(1, 1).text("NA", 2)
+                    .number(value.length(), 8).text(value, value.length());
+        }
+    }
+
+    private void acchzb(Fields tre, Random random) {
+        tre.number(treGroupCount, 2);
+        for (int i = 0; i < treGroupCount; ++i) {
+            tre.text("M", 3).number(random.nextInt(100), 5).text("", 3);
+            tre.number(treGroupCount, 3);
+            for (int j = 0; j < treGroupCount; ++j) {
+                tre.text(String.format(Locale.US, "%+015.9f", random.nextDouble() * 360 - 180), 15);
+                tre.text(String.format(Locale.US, "%+015.9f", random.nextDouble() * 180 - 90), 15);
+            }
+        }
+    }
+
+    /**
+     * Fixed width NITF fields, written as ASCII.
+     */
+    private static class Fields {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /**
+         * Appends {@code value} left justified and space filled to {@code width} characters.
+         */
+        Fields text(String value, int width) {
+            StringBuilder field = new StringBuilder(value);
+            field.setLength(Math.min(field.length(), width));
+            while (field.length() < width) {
+                field.append(' ');
+            }
+            return bytes(field.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Appends {@code value} zero filled to {@code width} digits.
+         */
+        Fields number(long value, int width) {
+            String digits = Long.toString(value);
+            if (digits.length() > width) {
+                throw new IllegalArgumentException(value + " does not fit in " + width + " digits");
+            }
+            StringBuilder field = new StringBuilder(width);
+            while (field.length() + digits.length() < width) {
+                field.append('0');
+            }
+            return bytes(field.append(digits).toString().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        Fields int16(int value) {
+            return bytes(new byte[] {(byte) (value >> 8), (byte) value});
+        }
+
+        Fields bytes(byte[] value) {
+            bytes.write(value, 0, value.length);
+            return this;
+        }
+
+        int length() {
+            return bytes.size();
+        }
+
+        byte[] toBytes() {
+            return bytes.toByteArray();
+        }
+    }
+}
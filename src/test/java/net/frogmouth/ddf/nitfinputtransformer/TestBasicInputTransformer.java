@@ -14,24 +14,63 @@ package net.frogmouth.ddf.nitfinputtransformer;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.imageio.ImageIO;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.junit.Test;
 import org.osgi.framework.BundleContext;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.io.WKTWriter;
+
+import ddf.catalog.data.AttributeDescriptor;
 import ddf.catalog.data.Metacard;
 import ddf.catalog.data.QualifiedMetacardType;
+import ddf.catalog.data.impl.BasicTypes;
 import ddf.catalog.transform.CatalogTransformerException;
 import ddf.catalog.source.UnsupportedQueryException;
 import ddf.catalog.source.SourceUnavailableException;
@@ -47,6 +86,8 @@ public class TestBasicInputTransformer {
 
     private static final String TRE_NITF = "/i_3128b.ntf";
 
+    private static final Path BATCH_REPORT = Paths.get("target", "batch-throughput-report.txt");
+
     public static NitfInputTransformer createTransformer() throws UnsupportedQueryException, SourceUnavailableException, FederationException {
         NitfInputTransformer transformer = new NitfInputTransformer();
         ddf.catalog.CatalogFramework catalog = mock(ddf.catalog.CatalogFramework.class);
@@ -92,6 +133,953 @@ public class TestBasicInputTransformer {
         System.out.println("metacard = " + metacard.getMetadata());
     }
 
+    @Test()
+    public void testPathInput() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException, URISyntaxException {
+        Metacard fromStream = createTransformer().transform(getInputStream(TRE_NITF));
+        Metacard fromPath = createTransformer().transform(getPath(TRE_NITF), null);
+
+        assertNotNull(fromPath);
+        assertThat(fromPath.getCreatedDate(), is(fromStream.getCreatedDate()));
+        assertThat(fromPath.getMetadata(), is(fromStream.getMetadata()));
+        assertThat(fromPath.getLocation(), is(fromStream.getLocation()));
+    }
+
+    @Test()
+    public void testFileInputStreamInput() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException, URISyntaxException {
+        Metacard fromStream = createTransformer().transform(getInputStream(BE_NUM_NITF));
+        FileInputStream fileInput = new FileInputStream(getPath(BE_NUM_NITF).toFile());
+        try {
+            Metacard fromFile = createTransformer().transform(fileInput);
+
+            assertNotNull(fromFile);
+            assertThat(fromFile.getMetadata(), is(fromStream.getMetadata()));
+            assertThat(fromFile.getThumbnail(), is(fromStream.getThumbnail()));
+        } finally {
+            fileInput.close();
+        }
+    }
+
+    @Test()
+    public void testLazyMetacard() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+        Metacard eager = createTransformer().transform(getInputStream(BE_NUM_NITF));
+        NitfInputTransformer lazyTransformer = createTransformer();
+        lazyTransformer.setLazyMetacards(true);
+        Metacard lazy = lazyTransformer.transform(getInputStream(BE_NUM_NITF));
+
+        assertThat(lazy.getCreatedDate(), is(eager.getCreatedDate()));
+        assertThat(lazy.getAttribute(NitfMetacardType.FILE_TITLE).getValue(),
+                is(eager.getAttribute(NitfMetacardType.FILE_TITLE).getValue()));
+        assertThat(lazy.getMetadata(), is(eager.getMetadata()));
+        assertThat(lazy.getLocation(), is(eager.getLocation()));
+        assertThat(lazy.getThumbnail(), is(eager.getThumbnail()));
+    }
+
+    @Test()
+    public void testGraphicThumbnailSize() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(0).graphicSegments(1).graphicSize(20000).generate();
+        NitfInputTransformer transformer = createTransformer();
+
+        BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(transformer.transform(new ByteArrayInputStream(nitf)).getThumbnail()));
+        assertThat(thumbnail.getWidth(), is(256));
+        assertThat(thumbnail.getHeight(), is(256));
+
+        transformer.setThumbnailMaxSize(64);
+        transformer.setThumbnailQuality(0.5f);
+        thumbnail = ImageIO.read(new ByteArrayInputStream(transformer.transform(new ByteArrayInputStream(nitf)).getThumbnail()));
+        assertThat(thumbnail.getWidth(), is(64));
+        assertThat(thumbnail.getColorModel().hasAlpha(), is(false));
+
+        try {
+            transformer.setThumbnailQuality(1.5f);
+            assertTrue(false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test()
+    public void testThumbnailCache() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(0).graphicSegments(1).generate();
+        byte[] larger = new SyntheticNitfGenerator().imageSegments(0).graphicSegments(1).graphicSize(400).generate();
+        NitfInputTransformer transformer = createTransformer();
+        transformer.setCacheMaxBytes(0);
+        NitfTransformerMetricsMXBean metrics = transformer.getMetrics();
+
+        byte[] rendered = transformer.transform(new ByteArrayInputStream(nitf)).getThumbnail();
+        byte[] cached = transformer.transform(new ByteArrayInputStream(nitf)).getThumbnail();
+        assertTrue(Arrays.equals(cached, rendered));
+        assertThat(metrics.getThumbnailCacheHitCount(), is(1L));
+        assertThat(metrics.getThumbnailCacheMissCount(), is(1L));
+        assertThat(metrics.getThumbnailCacheHitRate(), is(0.5));
+        assertThat(metrics.getThumbnailCacheEntryCount(), is(1L));
+        assertThat(metrics.getThumbnailCacheRetainedBytes() > rendered.length, is(true));
+
+        // The same graphic at another size is rendered again.
+        transformer.transform(new ByteArrayInputStream(larger));
+        assertThat(metrics.getThumbnailCacheMissCount(), is(2L));
+        assertThat(metrics.getThumbnailCacheEntryCount(), is(2L));
+
+        transformer.setThumbnailCacheMaxBytes(0);
+        assertThat(metrics.getThumbnailCacheEntryCount(), is(0L));
+        transformer.transform(new ByteArrayInputStream(nitf));
+        assertThat(metrics.getThumbnailCacheHitCount(), is(1L));
+    }
+
+    @Test()
+    public void testGraphicComposite() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(0).graphicSegments(3).graphicSpacing(100).generate();
+        byte[] stacked = new SyntheticNitfGenerator().imageSegments(0).graphicSegments(3).generate();
+        byte[] single = new SyntheticNitfGenerator().imageSegments(0).graphicSegments(1).generate();
+        NitfInputTransformer transformer = createTransformer();
+        transformer.setCacheMaxBytes(0);
+        NitfTransformerMetricsMXBean metrics = transformer.getMetrics();
+
+        // Each graphic is placed relative to the one it is attached to, so the three cover
+        // 300x300, which is scaled down to fit the thumbnail.
+        byte[] composite = transformer.transform(new ByteArrayInputStream(nitf)).getThumbnail();
+        BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(composite));
+        assertThat(thumbnail.getWidth(), is(256));
+        assertThat(thumbnail.getHeight(), is(256));
+        assertTrue(Arrays.equals(transformer.transform(new ByteArrayInputStream(nitf)).getThumbnail(), composite));
+        assertThat(metrics.getThumbnailCacheHitCount(), is(1L));
+
+        // Graphics drawn over each other take up no more room than one.
+        thumbnail = ImageIO.read(new ByteArrayInputStream(
+                transformer.transform(new ByteArrayInputStream(stacked)).getThumbnail()));
+        assertThat(thumbnail.getWidth(), is(100));
+        assertThat(thumbnail.getHeight(), is(100));
+        assertThat(metrics.getThumbnailCacheMissCount(), is(2L));
+
+        // The layout is the same whichever way the segments are built.
+        NitfInputTransformer parallel = createTransformer();
+        parallel.setParallelSegments(true);
+        parallel.setThumbnailCacheMaxBytes(0);
+        parallel.setPhaseTimeBudgets(Arrays.asList("thumbnail=60000"));
+        try {
+            assertTrue(Arrays.equals(parallel.transform(new ByteArrayInputStream(nitf)).getThumbnail(), composite));
+            thumbnail = ImageIO.read(new ByteArrayInputStream(
+                    parallel.transform(new ByteArrayInputStream(single)).getThumbnail()));
+            assertThat(thumbnail.getWidth(), is(100));
+        } finally {
+            parallel.destroy();
+        }
+    }
+
+    @Test()
+    public void testUncompressedImageThumbnail() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException, URISyntaxException {
+        Metacard metacard = createTransformer().transform(getInputStream(TRE_NITF));
+
+        assertNotNull(metacard.getThumbnail());
+        BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(metacard.getThumbnail()));
+        assertThat(thumbnail.getWidth(), is(256));
+        assertThat(thumbnail.getHeight(), is(240));
+
+        // 512x480 8 bit mono, single block, after a 1903 byte header and 1099 byte subheader
+        byte[] nitf = Files.readAllBytes(getPath(TRE_NITF));
+        long totalDifference = 0;
+        for (int y = 0; y < thumbnail.getHeight(); ++y) {
+            for (int x = 0; x < thumbnail.getWidth(); ++x) {
+                int expected = nitf[1903 + 1099 + (y * 2) * 512 + x * 2] & 0xFF;
+                totalDifference += Math.abs(thumbnail.getRaster().getSample(x, y, 0) - expected);
+            }
+        }
+        assertTrue(totalDifference / (thumbnail.getWidth() * thumbnail.getHeight()) < 8);
+    }
+
+    @Test()
+    public void testJpegDcDecoding() throws IOException, URISyntaxException {
+        // The image segment is a 683x512 YCbCr JPEG from byte 892 to the EOI at 100409
+        byte[] nitf = Files.readAllBytes(getPath(BE_NUM_NITF));
+        byte[] jpeg = Arrays.copyOfRange(nitf, 892, 100411);
+        BufferedImage full = ImageIO.read(new ByteArrayInputStream(jpeg));
+
+        // Decoding the second of two images checks that skipping finds the end of the first
+        byte[] twice = new byte[jpeg.length * 2];
+        System.arraycopy(jpeg, 0, twice, 0, jpeg.length);
+        System.arraycopy(jpeg, 0, twice, jpeg.length, jpeg.length);
+        InputStream input = new ByteArrayInputStream(twice);
+        JpegDcDecoder decoder = new JpegDcDecoder();
+        decoder.skip(input);
+        decoder.decode(input);
+        assertThat(input.available(), is(0));
+        assertThat(decoder.getWidth(), is(86));
+        assertThat(decoder.getHeight(), is(64));
+
+        long totalDifference = 0;
+        for (int y = 0; y < decoder.getHeight(); ++y) {
+            for (int x = 0; x < decoder.getWidth(); ++x) {
+                int rgb = decoder.getRgb(x, y, true);
+                int[] blockMean = new int[3];
+                int count = 0;
+                for (int j = y * 8; j < Math.min(y * 8 + 8, full.getHeight()); ++j) {
+                    for (int i = x * 8; i < Math.min(x * 8 + 8, full.getWidth()); ++i) {
+                        int pixel = full.getRGB(i, j);
+                        blockMean[0] += (pixel >> 16) & 0xFF;
+                        blockMean[1] += (pixel >> 8) & 0xFF;
+                        blockMean[2] += pixel & 0xFF;
+                        ++count;
+                    }
+                }
+                totalDifference += Math.abs(((rgb >> 16) & 0xFF) - blockMean[0] / count);
+                totalDifference += Math.abs(((rgb >> 8) & 0xFF) - blockMean[1] / count);
+                totalDifference += Math.abs((rgb & 0xFF) - blockMean[2] / count);
+            }
+        }
+        assertTrue(totalDifference / (decoder.getWidth() * decoder.getHeight() * 3) < 4);
+    }
+
+    @Test()
+    public void testMetadataEntryEscaping() {
+        String value = "Tom & Jerry's <\"quoted\"> caf\u00e9";
+        MetadataXmlWriter xml = new MetadataXmlWriter(16);
+        xml.entry("fileTitle", value).entry("fileTitle", (String) null);
+
+        assertThat(xml.toString(), is("    <fileTitle>" + StringEscapeUtils.escapeXml(value)
+                + "</fileTitle>\n    <fileTitle>null</fileTitle>\n"));
+    }
+
+    @Test()
+    public void testBatchTransformIsolatesFailures() throws IOException, InterruptedException, UnsupportedQueryException, SourceUnavailableException, FederationException, URISyntaxException {
+        Path badFile = Files.createTempFile("bad", ".ntf");
+        try {
+            Files.write(badFile, "{key=".getBytes());
+            List<Path> inputs = new ArrayList<Path>(Collections.nCopies(100, getPath(TRE_NITF)));
+            inputs.add(50, badFile);
+
+            // Throughput at each parallelism is reported for comparison, not checked.
+            StringBuilder report = new StringBuilder(String.format(Locale.US,
+                    "Batch transform of %d files%n%n%-12s %10s%n", inputs.size(), "parallelism",
+                    "files/s"));
+            int processors = Runtime.getRuntime().availableProcessors();
+            for (int parallelism = 1; parallelism <= Math.max(4, processors); parallelism *= 2) {
+                NitfInputTransformer transformer = createTransformer();
+                transformer.setBatchParallelism(parallelism);
+                final List<Metacard> metacards = new ArrayList<Metacard>();
+                final List<Path> failures = new ArrayList<Path>();
+                try {
+                    long start = System.nanoTime();
+                    transformer.transform(inputs.iterator(), new BatchTransformListener() {
+                        @Override
+                        public void transformed(Path input, Metacard metacard) {
+                            metacards.add(metacard);
+                        }
+
+                        @Override
+                        public void failed(Path input, Exception cause) {
+                            failures.add(input);
+                        }
+                    });
+                    long elapsed = System.nanoTime() - start;
+                    report.append(String.format(Locale.US, "%-12d %10.0f%n", parallelism,
+                            inputs.size() * 1e9 / elapsed));
+                } finally {
+                    transformer.destroy();
+                }
+
+                assertThat(metacards.size(), is(100));
+                assertThat(failures, is(Collections.singletonList(badFile)));
+                assertNotNull(metacards.get(99).getMetadata());
+            }
+            Files.createDirectories(BATCH_REPORT.getParent());
+            Files.write(BATCH_REPORT, report.toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            Files.delete(badFile);
+        }
+    }
+
+    @Test()
+    public void testSyntheticNitf() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+        SyntheticNitfGenerator generator = new SyntheticNitfGenerator().imageSegments(2)
+                .graphicSegments(1).textSegments(2).imageSize(300, 200).treCount(3)
+                .treGroupDepth(2).seed(42);
+        byte[] nitf = generator.generate();
+        assertThat(generator.generate(), is(nitf));
+
+        Metacard metacard = createTransformer().transform(new ByteArrayInputStream(nitf));
+
+        String metadata = metacard.getMetadata();
+        assertThat(metadata.split("<image>").length - 1, is(2));
+        assertThat(metadata.split("<graphic>").length - 1, is(1));
+        assertThat(metadata.split("<text>").length - 1, is(2));
+        assertThat(metadata.split("<tre name=\"ACCHZB\">").length - 1, is(9));
+        assertTrue(metacard.getLocation().startsWith("MULTIPOLYGON"));
+    }
+
+    @Test()
+    public void testTreAttributes() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+        byte[] nitf = new SyntheticNitfGenerator().treCount(2).treGroupDepth(0).generate();
+
+        Metacard metacard = createTransformer().transform(new ByteArrayInputStream(nitf));
+        List<String> treAttributes = getTreAttributeNames(metacard);
+        assertTrue(treAttributes.size() > 0);
+        for (String name : treAttributes) {
+            assertTrue(name.startsWith("tre.STDIDC."));
+            assertNotNull(metacard.getAttribute(name));
+            assertTrue(metacard.getAttribute(name).getValues().size() >= 4);
+        }
+        assertThat(metacard.getMetacardType().getName(), is(NitfMetacardType.NAME));
+
+        NitfInputTransformer limited = createTransformer();
+        limited.setMaxTreAttributes(1);
+        assertThat(getTreAttributeNames(limited.transform(new ByteArrayInputStream(nitf))).size(), is(1));
+
+        NitfInputTransformer disabled = createTransformer();
+        disabled.setMaxTreAttributes(0);
+        assertTrue(getTreAttributeNames(disabled.transform(new ByteArrayInputStream(nitf))).isEmpty());
+    }
+
+    @Test()
+    public void testTransformMetrics() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(2).graphicSegments(1).treCount(2).generate();
+        NitfInputTransformer transformer = createTransformer();
+        NitfTransformerMetricsMXBean metrics = transformer.getMetrics();
+
+        transformer.transform(new ByteArrayInputStream(nitf));
+        try {
+            transformer.transform(new ByteArrayInputStream("{key=".getBytes()));
+        } catch (CatalogTransformerException e) {
+            // counted as a failure
+        }
+        assertThat(metrics.getTransformCount(), is(1L));
+        assertThat(metrics.getFailureCount(), is(1L));
+        assertThat(metrics.getBytesProcessed(), is((long) nitf.length));
+        assertThat(metrics.getImageSegmentCount(), is(2L));
+        assertThat(metrics.getGraphicSegmentCount(), is(1L));
+        assertThat(metrics.getTreCount(), is(6L));
+        for (String phase : Arrays.asList("read", "parse", "attributes", "location", "metadata", "thumbnail", "total")) {
+            assertThat(phase, metrics.getPhaseStatistics().get(phase).getCount(), is(1L));
+        }
+
+        transformer.setMetricsEnabled(false);
+        transformer.transform(new ByteArrayInputStream(nitf));
+        assertThat(metrics.getTransformCount(), is(1L));
+
+        ObjectName objectName = new ObjectName("net.frogmouth.ddf.nitfinputtransformer:type=NitfTransformerMetrics");
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        transformer.init();
+        assertThat(mBeanServer.getAttribute(objectName, "TransformCount"), is((Object) 1L));
+        assertNotNull(mBeanServer.getAttribute(objectName, "PhaseStatistics"));
+        transformer.destroy();
+        assertTrue(!mBeanServer.isRegistered(objectName));
+    }
+
+    @Test()
+    public void testMetacardCache() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+        byte[] first = new SyntheticNitfGenerator().seed(1).generate();
+        NitfInputTransformer transformer = createTransformer();
+        NitfTransformerMetricsMXBean metrics = transformer.getMetrics();
+
+        Metacard original = transformer.transform(new ByteArrayInputStream(first), "one");
+        Metacard copy = transformer.transform(new ByteArrayInputStream(first), "two");
+        assertThat(metrics.getCacheMissCount(), is(1L));
+        assertThat(metrics.getCacheHitCount(), is(1L));
+        assertThat(metrics.getTransformCount(), is(1L));
+        assertThat(original.getId(), is("one"));
+        assertThat(copy.getId(), is("two"));
+        assertThat(copy.getMetadata(), is(original.getMetadata()));
+        assertThat(copy.getLocation(), is(original.getLocation()));
+        assertThat(copy.getTitle(), is(original.getTitle()));
+
+        // Room for about six metacards, so later files evict the first.
+        long maxBytes = 6 * MetacardCache.estimateSize(original);
+        transformer.setCacheMaxBytes(maxBytes);
+        for (int seed = 2; seed < 10; ++seed) {
+            transformer.transform(new ByteArrayInputStream(new SyntheticNitfGenerator().seed(seed).generate()));
+        }
+        assertTrue(metrics.getCacheEntryCount() < 8);
+        assertTrue(metrics.getCacheRetainedBytes() <= maxBytes);
+        transformer.transform(new ByteArrayInputStream(first));
+        assertThat(metrics.getCacheHitCount(), is(1L));
+
+        transformer.setCacheMaxBytes(0);
+        transformer.transform(new ByteArrayInputStream(first));
+        transformer.transform(new ByteArrayInputStream(first));
+        assertThat(metrics.getCacheHitCount(), is(1L));
+    }
+
+    @Test()
+    public void testFootprintModes() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(40).imageSize(16, 16).seed(7).generate();
+        WKTReader reader = new WKTReader();
+
+        NitfInputTransformer transformer = createTransformer();
+        Geometry segments = reader.read(transformer.transform(new ByteArrayInputStream(nitf)).getLocation());
+        assertThat(segments.getNumGeometries(), is(40));
+        assertThat(segments.toText(), is(transformer.transform(new ByteArrayInputStream(nitf)).getLocation()));
+
+        transformer.setFootprintMode("hull");
+        transformer.setFootprintMaxVertices(8);
+        Geometry hull = reader.read(transformer.transform(new ByteArrayInputStream(nitf)).getLocation());
+        assertTrue(hull instanceof Polygon);
+        assertTrue(hull.getNumPoints() <= 9);
+        assertTrue(hull.buffer(1e-9).covers(segments));
+
+        transformer.setFootprintMode("union");
+        transformer.setFootprintMaxVertices(1000);
+        Geometry union = reader.read(transformer.transform(new ByteArrayInputStream(nitf)).getLocation());
+        assertTrue(union.buffer(1e-9).covers(segments));
+        assertTrue(segments.buffer(1e-9).covers(union));
+    }
+
+    @Test()
+    public void testSingleSegmentFootprint() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(1).imageSize(16, 16).seed(7).generate();
+        String location = createTransformer().transform(new ByteArrayInputStream(nitf)).getLocation();
+        Geometry footprint = new WKTReader().read(location);
+        assertTrue(footprint instanceof Polygon);
+        assertThat(footprint.getNumPoints(), is(5));
+        assertThat(footprint.toText(), is(location));
+    }
+
+    @Test()
+    public void testFootprintNumberFormat() {
+        WKTWriter writer = new WKTWriter();
+        GeometryFactory factory = new GeometryFactory();
+        Random random = new Random(3);
+        List<Double> values = new ArrayList<Double>(Arrays.asList(0.0, -0.0, 1.0, -180.0, 1e-5, 1.5e-12, 123456789.0, 0.1 + 0.2, 1.0 / 3));
+        for (int i = 0; i < 1000; ++i) {
+            values.add(random.nextDouble() * 360 - 180);
+            values.add((random.nextInt(3600000) - 1800000) / 10000.0);
+        }
+        for (double value : values) {
+            StringBuilder wkt = new StringBuilder();
+            FootprintBuilder.appendNumber(wkt, value);
+            String expected = writer.write(factory.createPoint(new Coordinate(value, 0)));
+            assertThat(expected, is("POINT (" + wkt + " 0)"));
+        }
+    }
+
+    @Test()
+    public void testTrePolicy() throws IOException, CatalogTransformerException, UnsupportedQueryException, SourceUnavailableException, FederationException {
+        byte[] nitf = new SyntheticNitfGenerator().treCount(3).treGroupDepth(2).treGroupCount(8).generate();
+        NitfInputTransformer transformer = createTransformer();
+        transformer.setCacheMaxBytes(0);
+
+        Metacard expanded = transformer.transform(new ByteArrayInputStream(nitf));
+        assertThat(expanded.getMetadata().split("<tre name=\"ACCHZB\">").length - 1, is(6));
+
+        transformer.setTreDenylist(Arrays.asList("ACCHZB"));
+        Metacard denied = transformer.transform(new ByteArrayInputStream(nitf));
+        assertThat(denied.getMetadata().split("<tre name=\"ACCHZB\" length=\"").length - 1, is(6));
+        assertThat(denied.getMetadata().split("<field ").length - 1, is(0));
+        for (String name : getTreAttributeNames(denied)) {
+            assertTrue(denied.getAttribute(name) == null);
+        }
+
+        transformer.setTreDenylist(Collections.<String>emptyList());
+        transformer.setTreAllowlist(Arrays.asList("STDIDC"));
+        assertThat(transformer.transform(new ByteArrayInputStream(nitf)).getMetadata(), is(denied.getMetadata()));
+
+        transformer.setTreAllowlist(Collections.<String>emptyList());
+        transformer.setMaxTreLength(100);
+        assertThat(transformer.transform(new ByteArrayInputStream(nitf)).getMetadata(), is(denied.getMetadata()));
+
+        // Room for the expansion of some of the TREs only.
+        transformer.setMaxTreLength(0);
+        String metadata = expanded.getMetadata();
+        int treStart = metadata.indexOf("    <tre ");
+        int treLength = metadata.indexOf("</tre>\n", treStart) + "</tre>\n".length() - treStart;
+        transformer.setMaxFileTreLength(3 * treLength + treLength / 2);
+        String limited = transformer.transform(new ByteArrayInputStream(nitf)).getMetadata();
+        assertThat(limited.split("<tre name=\"ACCHZB\">").length - 1, is(3));
+        assertThat(limited.split("<tre name=\"ACCHZB\" length=\"").length - 1, is(3));
+
+        // No limits at all expands every TRE, in one document or written in fragments.
+        transformer.setMaxFileTreLength(0);
+        assertThat(transformer.transform(new ByteArrayInputStream(nitf)).getMetadata(), is(expanded.getMetadata()));
+        transformer.setParallelSegments(true);
+        assertThat(transformer.transform(new ByteArrayInputStream(nitf)).getMetadata(), is(expanded.getMetadata()));
+        transformer.setParallelSegments(false);
+
+        transformer.setMaxTreGroupDepth(1);
+        assertTrue(transformer.transform(new ByteArrayInputStream(nitf)).getMetadata().length() <= expanded.getMetadata().length());
+    }
+
+    @Test()
+    public void testTreMapping() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().treCount(2).treGroupDepth(0).generate();
+        NitfInputTransformer transformer = createTransformer();
+        transformer.setCacheMaxBytes(0);
+
+        Metacard metacard = transformer.transform(new ByteArrayInputStream(nitf));
+        assertThat(metacard.getMetacardType().getAttributeDescriptor("sensorId").getType(), is((Object) BasicTypes.STRING_TYPE));
+        assertThat(metacard.getMetacardType().getAttributeDescriptor("sunAzimuth").getType(), is((Object) BasicTypes.DOUBLE_TYPE));
+        String treAttribute = getTreAttributeNames(metacard).get(0);
+        String field = treAttribute.substring("tre.STDIDC.".length());
+
+        Path mappingFile = Files.createTempFile("tre-mapping", ".properties");
+        try {
+            Files.write(mappingFile, ("mapped = STDIDC." + field + "\n").getBytes("UTF-8"));
+            transformer.setTreMappingFile(mappingFile.toString());
+            transformer.setMaxTreAttributes(0);
+            Metacard mapped = transformer.transform(new ByteArrayInputStream(nitf));
+            assertThat(mapped.getAttribute("mapped").getValues(), is(metacard.getAttribute(treAttribute).getValues()));
+            assertTrue(mapped.getMetacardType().getAttributeDescriptor("sensorId") == null);
+            assertTrue(mapped.getAttribute(treAttribute) == null);
+
+            Files.write(mappingFile, ("remapped = STDIDC." + field + ", NOTRE.FIELD\n").getBytes("UTF-8"));
+            transformer.reloadTreMapping();
+            Metacard remapped = transformer.transform(new ByteArrayInputStream(nitf));
+            assertTrue(remapped.getMetacardType().getAttributeDescriptor("mapped") == null);
+            assertThat(remapped.getAttribute("remapped").getValues(), is(metacard.getAttribute(treAttribute).getValues()));
+
+            // A broken file leaves the rules loaded before in place.
+            Files.write(mappingFile, "broken = STDIDC\n".getBytes("UTF-8"));
+            transformer.reloadTreMapping();
+            assertNotNull(transformer.transform(new ByteArrayInputStream(nitf)).getAttribute("remapped"));
+        } finally {
+            Files.delete(mappingFile);
+        }
+
+        assertThat(TreMapping.ValueType.DATE.convert("20160203040506"), is((Object) new SimpleDateFormat("yyyyMMddHHmmssZ").parse("20160203040506+0000")));
+        assertThat(TreMapping.ValueType.DATE.convert("20160203"), is((Object) new SimpleDateFormat("yyyyMMddZ").parse("20160203+0000")));
+        assertThat(TreMapping.ValueType.DOUBLE.convert("+045.50"), is((Object) 45.5));
+        for (String rule : Arrays.asList("fileTitle = STDIDC.MISSION", "tre.x = STDIDC.MISSION", "x = STDIDC.MISSION : angle", "x = STDIDC")) {
+            Properties rules = new Properties();
+            rules.load(new StringReader(rule));
+            try {
+                TreMapping.compile(rules, NitfMetacardType.getInstance());
+                assertTrue(rule, false);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test()
+    public void testXmlDes() throws Exception {
+        StringBuilder sicd = new StringBuilder("<?xml version=\"1.0\"?>\n<SICD xmlns=\"urn:SICD:1.1.0\">"
+                + "<CollectionInfo><CollectorName>SAT-1</CollectorName><CoreName>CORE&amp;1</CoreName>"
+                + "<CollectType>MONOSTATIC</CollectType><RadarMode><ModeType>SPOTLIGHT</ModeType></RadarMode>"
+                + "<Classification>UNCLASSIFIED</Classification></CollectionInfo><ImageData>");
+        // Far more data than any value read, which is streamed past.
+        for (int i = 0; i < 50000; ++i) {
+            sicd.append("<Amp index=\"").append(i).append("\">0.5</Amp>");
+        }
+        sicd.append("</ImageData><Timeline><CollectStart>2016-02-03T04:05:06Z</CollectStart></Timeline></SICD>");
+        byte[] xml = sicd.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(1)
+                .dataExtensionSegment("CSSHPA DES", "not xml".getBytes(StandardCharsets.US_ASCII))
+                .dataExtensionSegment("XML_DATA_CONTENT", xml)
+                .generate();
+        NitfInputTransformer transformer = createTransformer();
+        transformer.setCacheMaxBytes(0);
+
+        Metacard metacard = transformer.transform(new ByteArrayInputStream(nitf));
+        assertThat((String) metacard.getAttribute("sicdClassification").getValue(), is("UNCLASSIFIED"));
+        assertThat((String) metacard.getAttribute("sicdCollectorName").getValue(), is("SAT-1"));
+        assertThat((String) metacard.getAttribute("sicdCoreName").getValue(), is("CORE&1"));
+        assertThat((String) metacard.getAttribute("sicdRadarMode").getValue(), is("SPOTLIGHT"));
+        assertThat((String) metacard.getAttribute("sicdCollectStart").getValue(), is("2016-02-03T04:05:06Z"));
+        String metadata = metacard.getMetadata();
+        assertThat(metadata.split("<des>", -1).length - 1, is(2));
+        assertTrue(metadata.contains("<desIdentifier>CSSHPA DES</desIdentifier>"));
+        assertTrue(metadata.contains("<desIdentifier>XML_DATA_CONTENT</desIdentifier>"));
+        assertTrue(metadata.contains("<sicdCoreName>CORE&amp;1</sicdCoreName>"));
+
+        // The metadata is the same whichever way it is built.
+        NitfInputTransformer parallel = createTransformer();
+        parallel.setParallelSegments(true);
+        try {
+            assertThat(parallel.transform(new ByteArrayInputStream(nitf)).getMetadata(), is(metadata));
+        } finally {
+            parallel.destroy();
+        }
+        transformer.setLazyMetacards(true);
+        assertThat(transformer.transform(new ByteArrayInputStream(nitf)).getMetadata(), is(metadata));
+        transformer.setLazyMetacards(false);
+
+        // Paths may pick out attributes and match any element, and values are typed.
+        Path mappingFile = Files.createTempFile("des-mapping", ".properties");
+        try {
+            Files.write(mappingFile, ("lastAmp = SICD_XML/SICD/*/Amp/@index : integer\n"
+                    + "mode = SICD_XML/SICD/CollectionInfo/RadarMode/ModeType : integer\n").getBytes("UTF-8"));
+            transformer.setTreMappingFile(mappingFile.toString());
+            byte[] legacy = new SyntheticNitfGenerator().imageSegments(1).dataExtensionSegment("SICD_XML", xml).generate();
+            Metacard mapped = transformer.transform(new ByteArrayInputStream(legacy));
+            assertThat(mapped.getAttribute("lastAmp").getValues().size(), is(50000));
+            assertThat((Integer) mapped.getAttribute("lastAmp").getValues().get(49999), is(49999));
+            assertTrue(mapped.getAttribute("mode") == null);
+            assertTrue(mapped.getMetadata().contains("<mode>SPOTLIGHT</mode>"));
+        } finally {
+            Files.delete(mappingFile);
+        }
+
+        // A malformed document gives the values before the error, and doesn't fail the file.
+        byte[] truncated = Arrays.copyOf(xml, 400);
+        Metacard partial = createTransformer().transform(new ByteArrayInputStream(new SyntheticNitfGenerator().imageSegments(1)
+                .dataExtensionSegment("XML_DATA_CONTENT", truncated).generate()));
+        assertThat((String) partial.getAttribute("sicdClassification").getValue(), is("UNCLASSIFIED"));
+        assertTrue(partial.getAttribute("sicdCollectStart") == null);
+
+        for (String rule : Arrays.asList("x = XML_DATA_CONTENT/", "x = /SICD", "x = XML_DATA_CONTENT/@index", "x = XML_DATA_CONTENT//SICD")) {
+            Properties rules = new Properties();
+            rules.load(new StringReader(rule));
+            try {
+                TreMapping.compile(rules, NitfMetacardType.getInstance());
+                assertTrue(rule, false);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test()
+    public void testParallelSegments() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(3).graphicSegments(2).treCount(3).treGroupDepth(1).generate();
+        NitfInputTransformer sequential = createTransformer();
+        NitfInputTransformer parallel = createTransformer();
+        parallel.setParallelSegments(true);
+        try {
+            for (int maxFileTreLength : new int[] {0, 5000, 100}) {
+                sequential.setMaxFileTreLength(maxFileTreLength);
+                parallel.setMaxFileTreLength(maxFileTreLength);
+                Metacard expected = sequential.transform(new ByteArrayInputStream(nitf));
+                Metacard actual = parallel.transform(new ByteArrayInputStream(nitf));
+                assertThat(actual.getMetadata(), is(expected.getMetadata()));
+                assertThat(actual.getLocation(), is(expected.getLocation()));
+                assertTrue(Arrays.equals(actual.getThumbnail(), expected.getThumbnail()));
+            }
+        } finally {
+            parallel.destroy();
+        }
+    }
+
+    @Test()
+    public void testTransformAsync() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(2).treCount(2).generate();
+        final AtomicBoolean slowThumbnail = new AtomicBoolean(true);
+        NitfInputTransformer transformer = new NitfInputTransformer() {
+            @Override
+            protected byte[] getThumbnail(HeaderOnlyParseStrategy slottedNitf) {
+                try {
+                    if (slowThumbnail.get()) {
+                        Thread.sleep(10000);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new byte[] {1};
+            }
+        };
+        try {
+            Metacard expected = createTransformer().transform(new ByteArrayInputStream(nitf));
+
+            // A thumbnail over its budget is left out, rather than failing the transform.
+            transformer.setPhaseTimeBudgets(Arrays.asList("thumbnail=100"));
+            long start = System.nanoTime();
+            Metacard metacard = transformer.transformAsync(new ByteArrayInputStream(nitf), "async").get(5, TimeUnit.SECONDS);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertThat(metacard.getId(), is("async"));
+            assertThat(metacard.getMetadata(), is(expected.getMetadata()));
+            assertTrue(metacard.getThumbnail() == null);
+
+            // The metacard missing its thumbnail isn't cached for later copies of the file.
+            slowThumbnail.set(false);
+            assertThat(transformer.transform(new ByteArrayInputStream(nitf)).getThumbnail(), is(new byte[] {1}));
+
+            // Any other phase over its budget fails the transform.
+            transformer.setPhaseTimeBudgets(Arrays.asList("read=100"));
+            try {
+                transformer.transformAsync(new SlowInputStream(nitf, 0), null).get(5, TimeUnit.SECONDS);
+                assertTrue(false);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof InterruptedIOException);
+            }
+
+            transformer.setPhaseTimeBudgets(Collections.<String>emptyList());
+            SlowInputStream blocked = new SlowInputStream(nitf, 60000);
+            CompletableFuture<Metacard> cancelled = transformer.transformAsync(blocked, null);
+            assertTrue(blocked.reading.await(5, TimeUnit.SECONDS));
+            cancelled.cancel(true);
+            assertTrue(blocked.interrupted.await(5, TimeUnit.SECONDS));
+        } finally {
+            transformer.destroy();
+        }
+    }
+
+    @Test()
+    public void testImageSegmentMetacards() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(5).graphicSegments(1).treCount(2).generate();
+        NitfInputTransformer transformer = createTransformer();
+        Metacard whole = transformer.transform(new ByteArrayInputStream(nitf), "file");
+        List<Metacard> metacards = transformer.transformSegments(new ByteArrayInputStream(nitf), "file");
+        assertThat(metacards.size(), is(6));
+
+        // The file's metacard describes the file and the segments other than images.
+        Metacard parent = metacards.get(0);
+        assertThat(parent.getId(), is("file"));
+        assertThat(parent.getLocation(), is(whole.getLocation()));
+        assertTrue(parent.getMetadata().contains("<graphic>"));
+        assertTrue(!parent.getMetadata().contains("<image>"));
+        assertTrue(whole.getMetadata().contains("<image>"));
+
+        Geometry footprint = new WKTReader().read(parent.getLocation());
+        for (int i = 0; i < 5; ++i) {
+            Metacard child = metacards.get(i + 1);
+            assertThat(child.getId(), is("file-image-" + i));
+            assertThat((String) child.getAttribute(NitfMetacardType.PARENT_ID).getValue(), is("file"));
+            assertThat((Integer) child.getAttribute(NitfMetacardType.IMAGE_SEGMENT_INDEX).getValue(), is(i));
+            assertThat(((Number) child.getAttribute(NitfMetacardType.NUMBER_OF_ROWS).getValue()).intValue(), is(256));
+            assertNotNull(child.getAttribute(NitfMetacardType.COMPRESSION));
+            assertNotNull(child.getResourceSize());
+            assertThat(child.getMetadata().split("<image>", -1).length, is(2));
+            Geometry segment = new WKTReader().read(child.getLocation());
+            assertThat(segment.getGeometryType(), is("Polygon"));
+            assertTrue(footprint.buffer(1e-9).covers(segment));
+        }
+
+        // Children are built the same way from a file, and without an id are left unlinked.
+        Path file = Files.createTempFile("segments", ".ntf");
+        try {
+            Files.write(file, nitf);
+            List<Metacard> fromFile = transformer.transformSegments(file, null);
+            assertThat(fromFile.size(), is(6));
+            assertNull(fromFile.get(1).getAttribute(NitfMetacardType.PARENT_ID));
+            assertThat(fromFile.get(1).getLocation(), is(metacards.get(1).getLocation()));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test()
+    public void testAttributeInterning() throws Exception {
+        NitfInputTransformer transformer = createTransformer();
+        transformer.setCacheMaxBytes(0);
+        NitfTransformerMetricsMXBean metrics = transformer.getMetrics();
+        Metacard first = transformer.transform(getInputStream(TRE_NITF));
+        Metacard second = transformer.transform(getInputStream(TRE_NITF));
+
+        // Values repeated between files are shared, as are those of TRE attributes.
+        for (String name : new String[] {NitfMetacardType.ISOURCE, NitfMetacardType.ORIGINATOR_NAME,
+                NitfMetacardType.CLASSIFICATION_SYSTEM}) {
+            assertTrue(name, first.getAttribute(name).getValue() == second.getAttribute(name).getValue());
+        }
+        for (String name : getTreAttributeNames(first)) {
+            Serializable value = first.getAttribute(name).getValue();
+            if (value instanceof String && ((String) value).length() <= AttributeInterner.MAX_VALUE_LENGTH) {
+                assertTrue(name, value == second.getAttribute(name).getValue());
+            }
+        }
+        assertTrue(metrics.getInternHitCount() > 0);
+        assertTrue(metrics.getInternSavedBytes() > 0);
+        assertTrue(metrics.getInternedValueCount() > 0);
+
+        transformer.setInternMaxEntries(0);
+        assertThat(metrics.getInternedValueCount(), is(0L));
+        Metacard unshared = transformer.transform(getInputStream(TRE_NITF));
+        assertTrue(unshared.getAttribute(NitfMetacardType.ISOURCE).getValue()
+                != first.getAttribute(NitfMetacardType.ISOURCE).getValue());
+
+        // An attribute with many values is held to its share, and long values aren't pooled.
+        AttributeInterner interner = new AttributeInterner(1000);
+        for (int i = 0; i < 2 * AttributeInterner.MAX_VALUES_PER_ATTRIBUTE; ++i) {
+            interner.intern("title", "title " + i);
+        }
+        assertThat(interner.getEntryCount(), is(AttributeInterner.MAX_VALUES_PER_ATTRIBUTE));
+        String code = interner.intern("compression", new String("NC"));
+        assertTrue(interner.intern("compression", new String("NC")) == code);
+        String comment = new String(new char[AttributeInterner.MAX_VALUE_LENGTH + 1]).replace('\0', 'x');
+        assertTrue(interner.intern("comment", new String(comment)) != interner.intern("comment", new String(comment)));
+        for (int i = 0; i < 2000; ++i) {
+            interner.intern("attribute" + i, "value " + i);
+        }
+        assertThat(interner.getEntryCount(), is(1000));
+    }
+
+    @Test()
+    public void testHeapBudget() throws Exception {
+        byte[] nitf = new SyntheticNitfGenerator().imageSegments(2).graphicSegments(1).treCount(2).generate();
+        NitfInputTransformer transformer = createTransformer();
+        transformer.setCacheMaxBytes(0);
+        NitfTransformerMetricsMXBean metrics = transformer.getMetrics();
+        Path spillDirectory = Files.createTempDirectory("nitf-spool");
+        try {
+            Metacard held = transformer.transform(new ByteArrayInputStream(nitf), "file");
+            assertThat(metrics.getSpilledTransformCount(), is(0L));
+
+            // Input over the threshold is read from a file, which is gone afterwards.
+            transformer.setSpillDirectory(spillDirectory.toString());
+            transformer.setSpillThresholdBytes(nitf.length / 2);
+            Metacard spilled = transformer.transform(new ByteArrayInputStream(nitf), "file");
+            assertThat(metrics.getSpilledTransformCount(), is(1L));
+            assertThat(spilled.getMetadata(), is(held.getMetadata()));
+            assertThat(spilled.getLocation(), is(held.getLocation()));
+            assertThat(spilled.getResourceSize(), is(held.getResourceSize()));
+            assertThat(spillDirectory.toFile().list().length, is(0));
+            assertThat(metrics.getHeapBudgetUsedBytes(), is(0L));
+
+            // With the budget held by one transform, another is turned away to be retried.
+            transformer.setSpillThresholdBytes(Long.MAX_VALUE);
+            transformer.setHeapBudgetBytes(nitf.length);
+            transformer.setHeapBudgetWaitMillis(0);
+            SlowInputStream slow = new SlowInputStream(nitf, 20);
+            CompletableFuture<Metacard> holding = transformer.transformAsync(slow, null);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (metrics.getHeapBudgetUsedBytes() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertThat(metrics.getHeapBudgetUsedBytes(), is((long) nitf.length));
+            try {
+                transformer.transform(new ByteArrayInputStream(nitf));
+                assertTrue(false);
+            } catch (TransformRejectedException e) {
+                assertThat(metrics.getHeapBudgetRejectionCount(), is(1L));
+            }
+            holding.cancel(true);
+            while (metrics.getHeapBudgetUsedBytes() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertThat(metrics.getHeapBudgetUsedBytes(), is(0L));
+            assertNotNull(transformer.transform(new ByteArrayInputStream(nitf)));
+
+            metrics.reset();
+            assertThat(metrics.getHeapBudgetRejectionCount(), is(0L));
+            assertThat(metrics.getSpilledTransformCount(), is(0L));
+
+            // A waiting reservation goes ahead once the holder releases.
+            final HeapBudget budget = new HeapBudget(100);
+            assertTrue(budget.acquire(60, 0));
+            assertTrue(!budget.acquire(60, 0));
+            CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return budget.acquire(60, 5000);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            });
+            while (budget.getWaiterCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            budget.release(60);
+            assertTrue(waiting.get(5, TimeUnit.SECONDS));
+            assertThat(budget.getUsedBytes(), is(60L));
+            assertThat(budget.getRejectionCount(), is(1L));
+        } finally {
+            transformer.destroy();
+            Files.deleteIfExists(spillDirectory);
+        }
+    }
+
+    @Test()
+    public void testHeaderSniffing() throws Exception {
+        NitfInputTransformer transformer = createTransformer();
+
+        // A mis-routed file is turned away after its first few hundred bytes.
+        final long[] tiffBytesRead = new long[1];
+        InputStream tiff = new InputStream() {
+            @Override
+            public int read() {
+                ++tiffBytesRead[0];
+                return tiffBytesRead[0] <= 4 ? "II*\0".charAt((int) tiffBytesRead[0] - 1) : 0;
+            }
+        };
+        try {
+            transformer.transform(tiff);
+            assertTrue("TIFF input was transformed", false);
+        } catch (CatalogTransformerException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("II*"));
+        }
+        assertTrue(tiffBytesRead[0] <= SniffedNitfHeader.SNIFF_LENGTH);
+
+        // A file length shorter than the header.
+        byte[] nitf = IOUtils.toByteArray(getInputStream(BE_NUM_NITF));
+        byte[] badLength = nitf.clone();
+        System.arraycopy("000000000100".getBytes(StandardCharsets.US_ASCII), 0, badLength, 342, 12);
+        try {
+            transformer.transform(new ByteArrayInputStream(badLength));
+            assertTrue("Inconsistent lengths were accepted", false);
+        } catch (CatalogTransformerException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("header length 423"));
+        }
+
+        // A file cut short is rejected before it is parsed.
+        Path truncated = Files.createTempFile("truncated", ".ntf");
+        try {
+            Files.write(truncated, Arrays.copyOf(nitf, nitf.length / 2));
+            transformer.transform(truncated, "truncated");
+            assertTrue("Truncated file was transformed", false);
+        } catch (CatalogTransformerException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("longer than"));
+        } finally {
+            Files.delete(truncated);
+        }
+
+        // NITF 2.0 has its lengths 40 bytes later when it records a downgrade event.
+        byte[] nitf20 = Arrays.copyOf(nitf, SniffedNitfHeader.SNIFF_LENGTH);
+        System.arraycopy("NITF02.00".getBytes(StandardCharsets.US_ASCII), 0, nitf20, 0, 9);
+        System.arraycopy("      ".getBytes(StandardCharsets.US_ASCII), 0, nitf20, 280, 6);
+        SniffedNitfHeader header = SniffedNitfHeader.read(nitf20, nitf20.length);
+        assertThat(header.getFileLength(), is(102191L));
+        assertThat(header.getHeaderLength(), is(423));
+        System.arraycopy("999998".getBytes(StandardCharsets.US_ASCII), 0, nitf20, 280, 6);
+        System.arraycopy("000000102191000463".getBytes(StandardCharsets.US_ASCII), 0, nitf20, 382, 18);
+        header = SniffedNitfHeader.read(nitf20, nitf20.length);
+        assertThat(header.getHeaderLength(), is(463));
+    }
+
+    @Test()
+    public void testMimeTypeResolver() throws Exception {
+        NitfMimeTypeResolver resolver = new NitfMimeTypeResolver();
+        assertThat(resolver.getMimeTypeForFileExtension("ntf"), is("image/nitf"));
+        assertThat(resolver.getMimeTypeForFileExtension(".NSF"), is("image/nitf"));
+        assertNull(resolver.getMimeTypeForFileExtension("tif"));
+        assertThat(resolver.getFileExtensionForMimeType("image/nitf; version=2.1"), is("ntf"));
+        assertNull(resolver.getFileExtensionForMimeType("image/tiff"));
+
+        InputStream nitf = new BufferedInputStream(getInputStream(TRE_NITF));
+        assertThat(resolver.getMimeTypeForInputStream(nitf), is("image/nitf"));
+        byte[] start = new byte[9];
+        assertThat(nitf.read(start), is(9));
+        assertThat(new String(start, StandardCharsets.US_ASCII), is("NITF02.10"));
+        assertNull(resolver.getMimeTypeForInputStream(new ByteArrayInputStream("{key=".getBytes())));
+    }
+
+    /**
+     * Hands out its bytes a few at a time, pausing before each read.
+     */
+    private static class SlowInputStream extends ByteArrayInputStream {
+
+        private final long pauseMillis;
+
+        final CountDownLatch reading = new CountDownLatch(1);
+
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        SlowInputStream(byte[] bytes, long pauseMillis) {
+            super(bytes);
+            this.pauseMillis = pauseMillis;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            reading.countDown();
+            try {
+                Thread.sleep(pauseMillis > 0 ? pauseMillis : 5);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            return super.read(buffer, offset, Math.min(length, 16));
+        }
+    }
+
+    private static List<String> getTreAttributeNames(Metacard metacard) {
+        List<String> names = new ArrayList<String>();
+        for (AttributeDescriptor descriptor : metacard.getMetacardType().getAttributeDescriptors()) {
+            if (descriptor.getName().startsWith("tre.")) {
+                names.add(descriptor.getName());
+            }
+        }
+        return names;
+    }
+
+    private Path getPath(String filename) throws URISyntaxException {
+        assertNotNull("Test file missing", getClass().getResource(filename));
+        return Paths.get(getClass().getResource(filename).toURI());
+    }
+
     private InputStream getInputStream(String filename) {
         assertNotNull("Test file missing", getClass().getResource(filename));
         return getClass().getResourceAsStream(filename);
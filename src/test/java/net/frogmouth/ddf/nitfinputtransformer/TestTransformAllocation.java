@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) Codice Foundation
+ *
+ * This is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details. A copy of the GNU Lesser General Public License is distributed along with this program and can be found at
+ * <http://www.gnu.org/licenses/lgpl.html>.
+ *
+ **/
+package net.frogmouth.ddf.nitfinputtransformer;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import net.frogmouth.ddf.nitfinputtransformer.NitfTransformerMetricsMXBean.PhaseStatistics;
+
+/**
+ * Guards against allocation regressions: transforms each input a number of times, and fails
+ * if the mean bytes allocated by a phase, or by the whole transform, grow past the checked in
+ * baseline by more than the tolerance.
+ * <p>
+ * A report of every phase against its baseline is written to
+ * {@code target/allocation-report.txt}. Phases without a baseline are reported but don't fail,
+ * while a missing or empty baseline fails the test, as there would be nothing to hold the
+ * transform to.
+ * Set {@code nitf.allocation.tolerance} to change the allowed growth (0.10 is 10%), and
+ * {@code nitf.allocation.updateBaseline} to a file to write the measured values to, such as
+ * {@code src/test/resources/allocation-baseline.properties}.
+ */
+public class TestTransformAllocation {
+
+    private static final String BASELINE = "/allocation-baseline.properties";
+
+    private static final Path REPORT = Paths.get("target", "allocation-report.txt");
+
+    private static final int WARMUP = 5;
+
+    private static final int RUNS = 10;
+
+    /**
+     * Allocation below this is too small to judge a percentage by.
+     */
+    private static final long MIN_BYTES = 64 * 1024;
+
+    @Test
+    public void testAllocationAgainstBaseline() throws Exception {
+        assumeTrue(AllocationCounter.isSupported());
+        double tolerance = Double.parseDouble(System.getProperty("nitf.allocation.tolerance",
+                "0.10"));
+
+        Map<String, byte[]> inputs = new LinkedHashMap<String, byte[]>();
+        inputs.put("WithBE", resource("/WithBE.ntf"));
+        inputs.put("i_3128b", resource("/i_3128b.ntf"));
+        inputs.put("largeImages", new SyntheticNitfGenerator().imageSegments(4)
+                .imageSize(1024, 1024).treCount(8).treGroupDepth(2).seed(1).generate());
+        inputs.put("largeGraphics", new SyntheticNitfGenerator().graphicSegments(8)
+                .graphicSize(2048).textSegments(4).textLength(16384).seed(2).generate());
+
+        NitfInputTransformer transformer = TestBasicInputTransformer.createTransformer();
+        transformer.setCacheMaxBytes(0);
+        transformer.setThumbnailCacheMaxBytes(0);
+        transformer.setAllocationTrackingEnabled(true);
+        NitfTransformerMetricsMXBean metrics = transformer.getMetrics();
+
+        Properties baseline = new Properties();
+        InputStream baselineInput = getClass().getResourceAsStream(BASELINE);
+        if (baselineInput != null) {
+            try {
+                baseline.load(baselineInput);
+            } finally {
+                baselineInput.close();
+            }
+        }
+
+        Properties measured = new Properties();
+        List<String> regressions = new ArrayList<String>();
+        StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "Mean bytes allocated per transform, %d runs, tolerance %.0f%%%n%n"
+                        + "%-28s %14s %14s %9s%n", RUNS, tolerance * 100, "input.phase",
+                "baseline", "measured", "change"));
+        for (Map.Entry<String, byte[]> input : inputs.entrySet()) {
+            for (int i = 0; i < WARMUP; ++i) {
+                transformer.transform(new ByteArrayInputStream(input.getValue()));
+            }
+            metrics.reset();
+            for (int i = 0; i < RUNS; ++i) {
+                transformer.transform(new ByteArrayInputStream(input.getValue()));
+            }
+            for (Map.Entry<String, PhaseStatistics> phase : metrics.getPhaseStatistics()
+                    .entrySet()) {
+                if (phase.getValue().getCount() == 0) {
+                    continue;
+                }
+                String key = input.getKey() + "." + phase.getKey();
+                long bytes = phase.getValue().getMeanAllocatedBytes();
+                measured.setProperty(key, Long.toString(bytes));
+                String expected = baseline.getProperty(key);
+                if (expected == null) {
+                    report.append(String.format(Locale.US, "%-28s %14s %,14d %9s%n", key, "-",
+                            bytes, "new"));
+                    continue;
+                }
+                long expectedBytes = Long.parseLong(expected.trim());
+                double change = expectedBytes == 0 ? 0
+                        : (double) (bytes - expectedBytes) / expectedBytes;
+                boolean regressed = bytes > MIN_BYTES
+                        && bytes > expectedBytes * (1 + tolerance);
+                report.append(String.format(Locale.US, "%-28s %,14d %,14d %+8.1f%%%s%n", key,
+                        expectedBytes, bytes, change * 100, regressed ? "  REGRESSED" : ""));
+                if (regressed) {
+                    regressions.add(key);
+                }
+            }
+        }
+
+        Files.createDirectories(REPORT.getParent());
+        Writer writer = Files.newBufferedWriter(REPORT, StandardCharsets.UTF_8);
+        try {
+            writer.write(report.toString());
+        } finally {
+            writer.close();
+        }
+        String update = System.getProperty("nitf.allocation.updateBaseline");
+        if (update != null && !update.isEmpty()) {
+            writeBaseline(Paths.get(update), measured);
+        }
+
+        assertTrue("No allocation baseline is checked in at " + BASELINE + "; see " + REPORT,
+                !baseline.isEmpty());
+        assertTrue("Allocation grew past the baseline in " + regressions + "\n" + report,
+                regressions.isEmpty());
+    }
+
+    /**
+     * Writes {@code measured} to {@code file} in key order, under the comment header of the
+     * checked in baseline, so a regenerated baseline diffs cleanly against the old one.
+     */
+    private void writeBaseline(Path file, Properties measured) throws IOException {
+        StringBuilder baseline = new StringBuilder();
+        InputStream header = getClass().getResourceAsStream(BASELINE);
+        if (header != null) {
+            try {
+                for (String line : IOUtils.readLines(header, StandardCharsets.UTF_8)) {
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        break;
+                    }
+                    baseline.append(line).append('\n');
+                }
+            } finally {
+                header.close();
+            }
+        }
+        if (baseline.length() > 0 && !baseline.toString().endsWith("\n\n")) {
+            baseline.append('\n');
+        }
+        for (String key : new TreeSet<String>(measured.stringPropertyNames())) {
+            baseline.append(key).append(" = ").append(measured.getProperty(key)).append('\n');
+        }
+        Files.write(file, baseline.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] resource(String name) throws IOException {
+        InputStream input = getClass().getResourceAsStream(name);
+        try {
+            return IOUtils.toByteArray(input);
+        } finally {
+            input.close();
+        }
+    }
+}